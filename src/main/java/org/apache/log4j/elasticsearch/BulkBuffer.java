@@ -0,0 +1,244 @@
+/*
+ * Copyright 2020-2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Author: Guillermo Adrián Molina <guillermoadrianmolina@hotmail.com>
+
+package org.apache.log4j.elasticsearch;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.apache.log4j.elasticsearch.http.GzipOutputStream;
+import org.apache.log4j.elasticsearch.http.RequestBody;
+
+/**
+ * Reusable NDJSON body of a bulk request.
+ *
+ * <p>
+ * Documents are encoded as UTF-8 straight into one growable byte array, each
+ * preceded by its index action line, and the array is kept between requests.
+ * The start of every item is remembered so that a subset of the documents can
+ * be sent again.
+ */
+public class BulkBuffer {
+  public static final String CONTENT_TYPE = "application/x-ndjson";
+
+  private static final byte[] INDEX_ACTION = "{\"index\":{}}\n".getBytes(Charset.forName("UTF-8"));
+
+  private byte[] data;
+  private int length = 0;
+  private int[] offsets = new int[64];
+  private int count = 0;
+
+  private final OutputStream output = new OutputStream() {
+    public void write(final int b) {
+      ensureCapacity(1);
+      data[length++] = (byte) b;
+    }
+
+    public void write(final byte[] b, final int off, final int len) {
+      ensureCapacity(len);
+      System.arraycopy(b, off, data, length, len);
+      length += len;
+    }
+  };
+
+  /**
+   * @param capacity initial capacity in bytes
+   */
+  public BulkBuffer(final int capacity) {
+    data = new byte[Math.max(capacity, 256)];
+  }
+
+  /**
+   * Add a document.
+   *
+   * @param doc JSON document terminated by a new line
+   */
+  public void addDocument(final CharSequence doc) {
+    beginItem(Utf8.maxBytes(doc.length()));
+    length = Utf8.encode(doc, 0, doc.length(), data, length);
+  }
+
+  /**
+   * Add an already encoded document.
+   *
+   * @param doc    buffer holding the document, terminated by a new line
+   * @param offset offset of the document
+   * @param size   size of the document in bytes
+   */
+  public void addDocument(final byte[] doc, final int offset, final int size) {
+    beginItem(size);
+    System.arraycopy(doc, offset, data, length, size);
+    length += size;
+  }
+
+  /**
+   * Add an already encoded document, read from the current position of
+   * <code>source</code>.
+   */
+  public void addDocument(final ByteBuffer source, final int size) {
+    beginItem(size);
+    source.get(data, length, size);
+    length += size;
+  }
+
+  /**
+   * Start a document written through the returned stream, terminated by a new
+   * line. It ends when the next document is started.
+   *
+   * @return a stream appending to this buffer
+   */
+  public OutputStream newDocument() {
+    beginItem(0);
+    return output;
+  }
+
+  /**
+   * Add a document of another buffer.
+   */
+  public void addDocument(final BulkBuffer other, final int index) {
+    addDocument(other.data, other.documentOffset(index), other.documentLength(index));
+  }
+
+  /**
+   * @param size size of a document in bytes
+   * @return the number of bytes the document takes in the body, with its
+   *         action line
+   */
+  public static int itemLength(final int size) {
+    return INDEX_ACTION.length + size;
+  }
+
+  /**
+   * Start an item with its action line and make room for the document.
+   */
+  private void beginItem(final int size) {
+    if (count == offsets.length) {
+      final int[] grown = new int[offsets.length * 2];
+      System.arraycopy(offsets, 0, grown, 0, count);
+      offsets = grown;
+    }
+    offsets[count++] = length;
+    ensureCapacity(INDEX_ACTION.length + size);
+    System.arraycopy(INDEX_ACTION, 0, data, length, INDEX_ACTION.length);
+    length += INDEX_ACTION.length;
+  }
+
+  private void ensureCapacity(final int extra) {
+    if (length + extra > data.length) {
+      final byte[] grown = new byte[Math.max(data.length * 2, length + extra)];
+      System.arraycopy(data, 0, grown, 0, length);
+      data = grown;
+    }
+  }
+
+  /**
+   * @return the number of documents
+   */
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * @return the size of the body in bytes
+   */
+  public int getLength() {
+    return length;
+  }
+
+  public boolean isEmpty() {
+    return count == 0;
+  }
+
+  /**
+   * @return the backing array, valid until the next change
+   */
+  public byte[] array() {
+    return data;
+  }
+
+  /**
+   * @return the offset of a document, after its action line
+   */
+  public int documentOffset(final int index) {
+    return offsets[index] + INDEX_ACTION.length;
+  }
+
+  /**
+   * @return the size in bytes of a document, without its action line
+   */
+  public int documentLength(final int index) {
+    final int end = index + 1 < count ? offsets[index + 1] : length;
+    return end - documentOffset(index);
+  }
+
+  /**
+   * Remove the documents following the first <code>newCount</code> ones.
+   */
+  public void truncate(final int newCount) {
+    if (newCount < count) {
+      length = offsets[newCount];
+      count = newCount;
+    }
+  }
+
+  /**
+   * Remove every document, keeping the allocated memory.
+   */
+  public void clear() {
+    count = 0;
+    length = 0;
+  }
+
+  /**
+   * @return a request body reading this buffer
+   */
+  public RequestBody body() {
+    return new RequestBody(CONTENT_TYPE) {
+      public long getContentLength() {
+        return length;
+      }
+
+      public void writeTo(final OutputStream out) throws IOException {
+        out.write(data, 0, length);
+      }
+    };
+  }
+
+  /**
+   * @param gzip compressor
+   * @return a request body compressing this buffer as it is written, with
+   *         chunked transfer encoding
+   */
+  public RequestBody body(final GzipOutputStream gzip) {
+    final RequestBody body = new RequestBody(CONTENT_TYPE) {
+      public long getContentLength() {
+        return -1;
+      }
+
+      public void writeTo(final OutputStream out) throws IOException {
+        gzip.reset(out);
+        gzip.write(data, 0, length);
+        gzip.finish();
+      }
+    };
+    body.setContentEncoding("gzip");
+    return body;
+  }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2020-2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Author: Guillermo Adrián Molina <guillermoadrianmolina@hotmail.com>
+
+package org.apache.log4j.elasticsearch;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.TreeMap;
+
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * Segmented, memory-mapped write-ahead journal of formatted documents.
+ *
+ * <p>
+ * Documents are appended as length-prefixed records to the mapped segment
+ * files <code>&lt;sequence&gt;.journal</code>. A zero length marks the end of
+ * the data in a segment, since new segments are zero filled, and so does a
+ * length running past the end of the segment, left by a torn write. The position up to
+ * which documents were successfully sent is kept in the mapped
+ * <code>commit</code> file, so a restarted appender resumes from there.
+ *
+ * <p>
+ * Appending never forces the data to disk, {@link #sync()} does, and it is up
+ * to the caller to decide how often. This class is not thread safe, it is meant
+ * to be used by the dispatcher thread only.
+ */
+public class BulkJournal {
+  private static final String SEGMENT_SUFFIX = ".journal";
+  private static final String COMMIT_FILE = "commit";
+  private static final int LENGTH_SIZE = 4;
+
+  private final File directory;
+  private final int segmentSize;
+  private final int maxSegments;
+
+  /**
+   * Open segments by sequence number.
+   */
+  private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<Long, MappedByteBuffer>();
+
+  private final MappedByteBuffer commit;
+
+  private long writeSegment;
+  private MappedByteBuffer writeBuffer;
+
+  private long readSegment;
+  private int readPosition;
+
+  private long committedSegment;
+  private int committedPosition;
+
+  private boolean dirty = false;
+
+  /**
+   * Open or create a journal.
+   *
+   * @param directory   directory holding the segment files, created if missing
+   * @param segmentSize size of each segment file in bytes
+   * @param maxSegments maximum number of segments kept on disk, the oldest
+   *                    unsent segment is discarded beyond that, 0 for no limit
+   * @throws IOException if the journal can not be opened
+   */
+  public BulkJournal(final File directory, final int segmentSize, final int maxSegments) throws IOException {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.maxSegments = maxSegments;
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create journal directory " + directory);
+    }
+
+    commit = map(new File(directory, COMMIT_FILE), 12);
+    committedSegment = commit.getLong(0);
+    committedPosition = commit.getInt(8);
+
+    final String[] names = directory.list(new FilenameFilter() {
+      public boolean accept(final File dir, final String name) {
+        return name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    for (final String name : names) {
+      final long sequence;
+      try {
+        sequence = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+      } catch (final NumberFormatException e) {
+        continue;
+      }
+      if (sequence < committedSegment) {
+        segmentFile(sequence).delete();
+      } else {
+        segments.put(sequence, null);
+      }
+    }
+
+    if (segments.isEmpty()) {
+      committedSegment = Math.max(committedSegment, 0);
+      committedPosition = 0;
+      writeSegment = committedSegment;
+      writeBuffer = segment(writeSegment);
+    } else {
+      if (segments.firstKey() > committedSegment) {
+        committedSegment = segments.firstKey();
+        committedPosition = 0;
+      }
+      writeSegment = segments.lastKey();
+      writeBuffer = segment(writeSegment);
+      writeBuffer.position(end(writeBuffer, 0));
+    }
+    rewind();
+  }
+
+  /**
+   * Append a document to the journal.
+   *
+   * @param data   buffer holding the document
+   * @param offset offset of the document in the buffer
+   * @param length length of the document, must be positive
+   * @throws IOException if a new segment can not be created
+   */
+  public void append(final byte[] data, final int offset, final int length) throws IOException {
+    if (writeBuffer.remaining() < LENGTH_SIZE + length) {
+      roll(LENGTH_SIZE + length);
+    }
+    writeBuffer.putInt(length);
+    writeBuffer.put(data, offset, length);
+    dirty = true;
+  }
+
+  /**
+   * Read the documents following the last read one.
+   *
+   * @param docs    receives the documents
+   * @param maxDocs maximum number of documents to read
+   * @return the number of documents read
+   */
+  public int read(final BulkBuffer docs, final int maxDocs) throws IOException {
+    return read(docs, maxDocs, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Read the documents following the last read one, stopping before the body
+   * in <code>docs</code> grows beyond <code>maxBytes</code>. At least one
+   * document is read, whatever its size.
+   *
+   * @param docs     receives the documents
+   * @param maxDocs  maximum number of documents to read
+   * @param maxBytes maximum size of the body in bytes
+   * @return the number of documents read
+   */
+  public int read(final BulkBuffer docs, final int maxDocs, final int maxBytes) throws IOException {
+    int count = 0;
+    while (count < maxDocs) {
+      final MappedByteBuffer buffer = segment(readSegment);
+      int length = readPosition + LENGTH_SIZE <= buffer.capacity() ? buffer.getInt(readPosition) : 0;
+      if (length > 0 && (long) readPosition + LENGTH_SIZE + length > buffer.capacity()) {
+        // torn or corrupt record, the rest of the segment can not be trusted
+        if (readSegment < writeSegment) {
+          LogLog.warn("Corrupt record at " + readPosition + " in journal segment " + segmentFile(readSegment)
+              + ", skipping the rest of the segment");
+        }
+        length = 0;
+      }
+      if (length <= 0) {
+        if (readSegment >= writeSegment) {
+          break;
+        }
+        readSegment = segments.higherKey(readSegment);
+        readPosition = 0;
+        continue;
+      }
+      if (count > 0 && (long) docs.getLength() + BulkBuffer.itemLength(length) > maxBytes) {
+        break;
+      }
+      final ByteBuffer view = buffer.duplicate();
+      view.position(readPosition + LENGTH_SIZE);
+      docs.addDocument(view, length);
+      readPosition += LENGTH_SIZE + length;
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Mark every document read so far as sent, segments that are completely sent
+   * are deleted.
+   */
+  public void commit() {
+    committedSegment = readSegment;
+    committedPosition = readPosition;
+    commit.putLong(0, committedSegment);
+    commit.putInt(8, committedPosition);
+    while (segments.firstKey() < committedSegment) {
+      delete(segments.firstKey());
+    }
+  }
+
+  /**
+   * Go back to the last committed document, so that the documents read since
+   * then are read again.
+   */
+  public void rewind() {
+    readSegment = committedSegment;
+    readPosition = committedPosition;
+  }
+
+  /**
+   * @return true if there are documents that have not been read.
+   */
+  public boolean hasUnread() {
+    if (readSegment < writeSegment) {
+      return true;
+    }
+    return readPosition < writeBuffer.position();
+  }
+
+  /**
+   * Force appended documents and the commit position to disk.
+   */
+  public void sync() {
+    if (dirty) {
+      writeBuffer.force();
+      dirty = false;
+    }
+    commit.force();
+  }
+
+  public void close() {
+    sync();
+    segments.clear();
+    writeBuffer = null;
+  }
+
+  private void roll(final int needed) throws IOException {
+    writeBuffer.force();
+    writeSegment++;
+    writeBuffer = create(writeSegment, Math.max(segmentSize, needed));
+    if (maxSegments > 0) {
+      while (segments.size() > maxSegments) {
+        final long oldest = segments.firstKey();
+        LogLog.warn("Journal is full, discarding unsent segment " + segmentFile(oldest));
+        if (committedSegment <= oldest) {
+          committedSegment = segments.higherKey(oldest);
+          committedPosition = 0;
+          if (readSegment <= oldest) {
+            rewind();
+          }
+        }
+        delete(oldest);
+      }
+    }
+  }
+
+  private void delete(final long sequence) {
+    segments.remove(sequence);
+    if (!segmentFile(sequence).delete()) {
+      LogLog.warn("Could not delete journal segment " + segmentFile(sequence));
+    }
+  }
+
+  private MappedByteBuffer segment(final long sequence) throws IOException {
+    MappedByteBuffer buffer = segments.get(sequence);
+    if (buffer == null) {
+      final File file = segmentFile(sequence);
+      if (file.exists()) {
+        buffer = map(file, (int) Math.max(file.length(), segmentSize));
+        segments.put(sequence, buffer);
+      } else {
+        buffer = create(sequence, segmentSize);
+      }
+    }
+    return buffer;
+  }
+
+  private MappedByteBuffer create(final long sequence, final int size) throws IOException {
+    final MappedByteBuffer buffer = map(segmentFile(sequence), size);
+    segments.put(sequence, buffer);
+    return buffer;
+  }
+
+  private File segmentFile(final long sequence) {
+    return new File(directory, String.format("%020d%s", sequence, SEGMENT_SUFFIX));
+  }
+
+  /**
+   * Find the end of the data in a segment.
+   */
+  private static int end(final MappedByteBuffer buffer, int position) {
+    while (position + LENGTH_SIZE <= buffer.capacity()) {
+      final int length = buffer.getInt(position);
+      if (length <= 0 || position + LENGTH_SIZE + length > buffer.capacity()) {
+        break;
+      }
+      position += LENGTH_SIZE + length;
+    }
+    return position;
+  }
+
+  private static MappedByteBuffer map(final File file, final int size) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    } finally {
+      // the mapping stays valid after the channel is closed
+      raf.close();
+    }
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2020-2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Author: Guillermo Adrián Molina <guillermoadrianmolina@hotmail.com>
+
+package org.apache.log4j.elasticsearch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Streaming reader of <code>_bulk</code> responses.
+ *
+ * <p>
+ * Elasticsearch writes <code>errors</code> before <code>items</code>, so when
+ * every item succeeded the scan stops right there without reading the items.
+ * Otherwise the status of every item is collected, in request order. Meant to
+ * be used with {@link #FILTER_PATH} to keep responses small.
+ *
+ * <p>
+ * The filter can not drop the items that succeeded: Elasticsearch removes
+ * the items left empty by <code>filter_path</code> from the array, and the
+ * scanner would no longer know which document an error belongs to. Every item
+ * therefore keeps its status, a response shrinks to a few bytes per document
+ * and only failed items carry more.
+ */
+public class BulkResponseScanner {
+  /**
+   * Query string restricting the response to what the scanner reads: the
+   * status of every item, needed to match errors with documents, and the type
+   * and reason of the failed ones.
+   */
+  public static final String FILTER_PATH = "filter_path=errors,items.*.status,items.*.error.type,items.*.error.reason";
+
+  /**
+   * Outcome of a bulk request.
+   */
+  public static class Result {
+    private final boolean errors;
+    private final int[] statuses;
+    private final int defaultStatus;
+    private final String firstError;
+
+    Result(final boolean errors, final int[] statuses, final int defaultStatus, final String firstError) {
+      this.errors = errors;
+      this.statuses = statuses;
+      this.defaultStatus = defaultStatus;
+      this.firstError = firstError;
+    }
+
+    /**
+     * @return true if at least one item failed
+     */
+    public boolean hasErrors() {
+      return errors;
+    }
+
+    /**
+     * @return the status of an item, or 0 if the response did not report it
+     */
+    public int getStatus(final int index) {
+      if (statuses != null && index < statuses.length && statuses[index] != 0) {
+        return statuses[index];
+      }
+      return defaultStatus;
+    }
+
+    /**
+     * @return the type and reason of the first failed item, or null
+     */
+    public String getFirstError() {
+      return firstError;
+    }
+  }
+
+  /**
+   * @return true if an item failing with this status may succeed if sent again,
+   *         unknown statuses are retried
+   */
+  public static boolean isRetryable(final int status) {
+    return status == 0 || status == 429 || status == 502 || status == 503 || status == 504;
+  }
+
+  /**
+   * @return the outcome of a request that failed as a whole, every item gets
+   *         the status of the response
+   */
+  public static Result failed(final int status, final String error) {
+    return new Result(true, null, status, error);
+  }
+
+  /**
+   * Scan a response body.
+   *
+   * @param body      response body, only read as far as needed
+   * @param itemCount number of items in the request
+   * @return the outcome
+   * @throws IOException if the body can not be read or is not a bulk response
+   */
+  public static Result scan(final InputStream body, final int itemCount) throws IOException {
+    final JsonReader reader = new JsonReader(new InputStreamReader(body, "UTF-8"));
+    boolean errors = false;
+    int[] statuses = null;
+    String firstError = null;
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      final String name = reader.nextName();
+      if ("errors".equals(name)) {
+        errors = reader.nextBoolean();
+        if (!errors) {
+          // fast path, every item succeeded
+          return new Result(false, null, 200, null);
+        }
+      } else if ("items".equals(name)) {
+        statuses = new int[itemCount];
+        int index = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+          // {"index":{"status":429,"error":{"type":"...","reason":"..."}}}
+          reader.beginObject();
+          while (reader.hasNext()) {
+            reader.nextName();
+            reader.beginObject();
+            while (reader.hasNext()) {
+              final String field = reader.nextName();
+              if ("status".equals(field) && index < itemCount) {
+                statuses[index] = reader.nextInt();
+              } else if ("error".equals(field) && firstError == null && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                firstError = readError(reader);
+              } else {
+                reader.skipValue();
+              }
+            }
+            reader.endObject();
+          }
+          reader.endObject();
+          index++;
+        }
+        reader.endArray();
+      } else {
+        reader.skipValue();
+      }
+    }
+    return new Result(errors, statuses, errors ? 0 : 200, firstError);
+  }
+
+  private static String readError(final JsonReader reader) throws IOException {
+    String type = null;
+    String reason = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      final String field = reader.nextName();
+      if ("type".equals(field) && reader.peek() == JsonToken.STRING) {
+        type = reader.nextString();
+      } else if ("reason".equals(field) && reader.peek() == JsonToken.STRING) {
+        reason = reader.nextString();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return reason == null ? type : type + ": " + reason;
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2020-2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Author: Guillermo Adrián Molina <guillermoadrianmolina@hotmail.com>
+
+package org.apache.log4j.elasticsearch;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Layout able to write an event as UTF-8 bytes, without building the String
+ * returned by <code>Layout.format</code> and encoding it.
+ *
+ * <p>
+ * The appenders of this package use it when their layout implements it. The
+ * bytes are the UTF-8 encoding of what <code>format</code> would return.
+ */
+public interface ByteLayout {
+  /**
+   * Write a formatted event.
+   *
+   * @return the number of bytes written
+   */
+  int encode(LoggingEvent event, OutputStream out) throws IOException;
+
+  /**
+   * Write a formatted event from the position of a buffer.
+   *
+   * @return the number of bytes written
+   * @throws BufferOverflowException if the event does not fit in the remaining
+   *                                 bytes, the position is left unchanged
+   */
+  int encode(LoggingEvent event, ByteBuffer out);
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2020-2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Author: Guillermo Adrián Molina <guillermoadrianmolina@hotmail.com>
+
+package org.apache.log4j.elasticsearch;
+
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * Circuit breaker pausing requests to an overloaded cluster.
+ *
+ * <p>
+ * After <code>threshold</code> consecutive failed requests the breaker opens
+ * and no request is allowed for <code>interval</code> milliseconds, or longer
+ * if the server asked so with <code>Retry-After</code>. Then it becomes half
+ * open: a single small request probes the cluster, closing the breaker if it
+ * succeeds and opening it again otherwise. Only one caller gets to send the
+ * probe, the others are refused until its outcome is recorded, or until
+ * <code>interval</code> has elapsed in case it never is.
+ *
+ * <p>
+ * Shared by every thread sending requests.
+ */
+public class CircuitBreaker {
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final int threshold;
+  private final long interval;
+
+  private volatile State state = State.CLOSED;
+  private volatile int failures = 0;
+  private volatile long openUntil = 0;
+
+  /**
+   * Time until which the probe of a half open breaker is in flight.
+   */
+  private long probeUntil = 0;
+
+  /**
+   * @param threshold consecutive failures opening the breaker, 0 to never open
+   * @param interval  minimum time in milliseconds the breaker stays open
+   */
+  public CircuitBreaker(final int threshold, final long interval) {
+    this.threshold = threshold;
+    this.interval = interval;
+  }
+
+  /**
+   * Check whether a request may be sent, an open breaker becomes half open
+   * once its interval has elapsed and the caller sends the probe.
+   *
+   * @param now current time in milliseconds
+   * @return false while the breaker is open or its probe is in flight
+   */
+  public synchronized boolean allowRequest(final long now) {
+    if (state == State.OPEN) {
+      if (now < openUntil) {
+        return false;
+      }
+      state = State.HALF_OPEN;
+      LogLog.warn("Probing Elasticsearch after " + failures + " failed requests");
+    } else if (state == State.CLOSED) {
+      return true;
+    } else if (now < probeUntil) {
+      return false;
+    }
+    probeUntil = now + interval;
+    return true;
+  }
+
+  /**
+   * Check whether requests are refused, without taking the probe of a half
+   * open breaker.
+   *
+   * @param now current time in milliseconds
+   * @return true while the breaker is open or its probe is in flight
+   */
+  public synchronized boolean isPaused(final long now) {
+    if (state == State.OPEN) {
+      return now < openUntil;
+    }
+    return state == State.HALF_OPEN && now < probeUntil;
+  }
+
+  /**
+   * Record a request accepted by the cluster.
+   */
+  public synchronized void recordSuccess() {
+    if (state != State.CLOSED) {
+      LogLog.warn("Elasticsearch accepts requests again, resuming");
+    }
+    state = State.CLOSED;
+    failures = 0;
+    probeUntil = 0;
+  }
+
+  /**
+   * Record a request that failed or was rejected because of overload.
+   *
+   * @param now        current time in milliseconds
+   * @param retryAfter delay requested by the server in milliseconds, 0 if none
+   */
+  public synchronized void recordFailure(final long now, final long retryAfter) {
+    failures++;
+    probeUntil = 0;
+    if (state == State.HALF_OPEN || (threshold > 0 && failures >= threshold && state == State.CLOSED)) {
+      final long pause = Math.max(interval, retryAfter);
+      openUntil = now + pause;
+      state = State.OPEN;
+      LogLog.warn("Pausing requests to Elasticsearch for " + pause + " ms after " + failures + " failed requests");
+    }
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  public boolean isClosed() {
+    return state == State.CLOSED;
+  }
+
+  public boolean isOpen() {
+    return state == State.OPEN;
+  }
+
+  public boolean isHalfOpen() {
+    return state == State.HALF_OPEN;
+  }
+
+  /**
+   * @return the number of failed requests since the last successful one
+   */
+  public int getFailures() {
+    return failures;
+  }
+
+  /**
+   * @return the time in milliseconds until which the breaker stays open
+   */
+  public long getOpenUntil() {
+    return openUntil;
+  }
+}
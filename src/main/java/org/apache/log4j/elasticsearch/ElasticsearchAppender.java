@@ -18,19 +18,20 @@
 
 package org.apache.log4j.elasticsearch;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.Charset;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.elasticsearch.http.HttpResponse;
+import org.apache.log4j.elasticsearch.http.HttpTransport;
+import org.apache.log4j.elasticsearch.http.NodePool;
 import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.Filter;
 import org.apache.log4j.spi.LoggingEvent;
 
 public class ElasticsearchAppender extends AppenderSkeleton {
@@ -49,6 +50,32 @@ public class ElasticsearchAppender extends AppenderSkeleton {
   protected String docType = DEFAULT_DOC_TYPE;
   protected String username;
   protected String password;
+  protected int connectTimeout = HttpTransport.DEFAULT_CONNECT_TIMEOUT;
+  protected int readTimeout = HttpTransport.DEFAULT_READ_TIMEOUT;
+  protected int maxConnections = HttpTransport.DEFAULT_MAX_CONNECTIONS;
+  protected long idleTimeout = HttpTransport.DEFAULT_IDLE_TIMEOUT;
+  protected long keepAliveInterval = HttpTransport.DEFAULT_KEEP_ALIVE_INTERVAL;
+  protected String hosts;
+  protected String loadBalancing = NodePool.ROUND_ROBIN;
+  protected long nodeRetryInterval = NodePool.DEFAULT_RETRY_INTERVAL;
+  protected boolean discoverNodes = false;
+  protected long discoveryInterval = NodePool.DEFAULT_DISCOVERY_INTERVAL;
+  protected boolean concurrentAppend = false;
+
+  /**
+   * Nodes requests are sent to, each with its pool of persistent connections,
+   * created by activateOptions.
+   */
+  protected NodePool nodes;
+
+  /**
+   * Request body of the calling thread, for layouts encoding bytes.
+   */
+  private final ThreadLocal<ReusableOutputStream> bodies = new ThreadLocal<ReusableOutputStream>() {
+    protected ReusableOutputStream initialValue() {
+      return new ReusableOutputStream();
+    }
+  };
 
   /**
    * Set the server property
@@ -163,6 +190,190 @@ public class ElasticsearchAppender extends AppenderSkeleton {
   }
 
 
+  /**
+   * Set the connectTimeout property, in milliseconds
+   */
+  public void setConnectTimeout(int connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  /**
+   * return connectTimeout
+   * 
+   * @return connectTimeout
+   */
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /**
+   * Set the readTimeout property, in milliseconds
+   */
+  public void setReadTimeout(int readTimeout) {
+    this.readTimeout = readTimeout;
+  }
+
+  /**
+   * return readTimeout
+   * 
+   * @return readTimeout
+   */
+  public int getReadTimeout() {
+    return readTimeout;
+  }
+
+  /**
+   * Set the maxConnections property, the maximum number of open connections to
+   * the server
+   */
+  public void setMaxConnections(int maxConnections) {
+    this.maxConnections = maxConnections;
+  }
+
+  /**
+   * return maxConnections
+   * 
+   * @return maxConnections
+   */
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  /**
+   * Set the idleTimeout property, in milliseconds, connections idle for longer
+   * are closed
+   */
+  public void setIdleTimeout(long idleTimeout) {
+    this.idleTimeout = idleTimeout;
+  }
+
+  /**
+   * return idleTimeout
+   * 
+   * @return idleTimeout
+   */
+  public long getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  /**
+   * Set the keepAliveInterval property, in milliseconds, idle connections are
+   * kept warm with a request at this interval, 0 disables it
+   */
+  public void setKeepAliveInterval(long keepAliveInterval) {
+    this.keepAliveInterval = keepAliveInterval;
+  }
+
+  /**
+   * return keepAliveInterval
+   * 
+   * @return keepAliveInterval
+   */
+  public long getKeepAliveInterval() {
+    return keepAliveInterval;
+  }
+
+  /**
+   * Set the hosts property, a comma separated list of host[:port] to spread the
+   * requests over, instead of Server and Port
+   */
+  public void setHosts(String hosts) {
+    this.hosts = hosts;
+  }
+
+  /**
+   * return hosts
+   * 
+   * @return hosts
+   */
+  public String getHosts() {
+    return hosts;
+  }
+
+  /**
+   * Set the loadBalancing property, RoundRobin or LeastInFlight
+   */
+  public void setLoadBalancing(String loadBalancing) {
+    this.loadBalancing = loadBalancing;
+  }
+
+  /**
+   * return loadBalancing
+   * 
+   * @return loadBalancing
+   */
+  public String getLoadBalancing() {
+    return loadBalancing;
+  }
+
+  /**
+   * Set the nodeRetryInterval property, in milliseconds, the interval at which
+   * unavailable nodes are probed
+   */
+  public void setNodeRetryInterval(long nodeRetryInterval) {
+    this.nodeRetryInterval = nodeRetryInterval;
+  }
+
+  /**
+   * return nodeRetryInterval
+   * 
+   * @return nodeRetryInterval
+   */
+  public long getNodeRetryInterval() {
+    return nodeRetryInterval;
+  }
+
+  /**
+   * Set the discoverNodes property, whether to add the other nodes of the
+   * cluster to the hosts
+   */
+  public void setDiscoverNodes(boolean discoverNodes) {
+    this.discoverNodes = discoverNodes;
+  }
+
+  /**
+   * return discoverNodes
+   * 
+   * @return discoverNodes
+   */
+  public boolean getDiscoverNodes() {
+    return discoverNodes;
+  }
+
+  /**
+   * Set the discoveryInterval property, in milliseconds
+   */
+  public void setDiscoveryInterval(long discoveryInterval) {
+    this.discoveryInterval = discoveryInterval;
+  }
+
+  /**
+   * return discoveryInterval
+   * 
+   * @return discoveryInterval
+   */
+  public long getDiscoveryInterval() {
+    return discoveryInterval;
+  }
+
+  /**
+   * Set the concurrentAppend property, whether logging threads append without
+   * going through the appender lock. The layout must be thread safe, as
+   * JSONEventLayout is.
+   */
+  public void setConcurrentAppend(boolean concurrentAppend) {
+    this.concurrentAppend = concurrentAppend;
+  }
+
+  /**
+   * return concurrentAppend
+   * 
+   * @return concurrentAppend
+   */
+  public boolean getConcurrentAppend() {
+    return concurrentAppend;
+  }
+
   /**
    * the http/s URL to which the log is sent
    */
@@ -197,6 +408,36 @@ public class ElasticsearchAppender extends AppenderSkeleton {
   }
 
 
+  /**
+   * With concurrentAppend the checks of AppenderSkeleton.doAppend are done
+   * without holding the appender lock, so that logging threads format and send
+   * in parallel.
+   */
+  @Override
+  public void doAppend(LoggingEvent event) {
+    if (!concurrentAppend) {
+      super.doAppend(event);
+      return;
+    }
+    if (closed) {
+      LogLog.error("Attempted to append to closed appender named [" + name + "].");
+      return;
+    }
+    if (!isAsSevereAsThreshold(event.getLevel())) {
+      return;
+    }
+    for (Filter filter = getFirstFilter(); filter != null; filter = filter.getNext()) {
+      final int decision = filter.decide(event);
+      if (decision == Filter.DENY) {
+        return;
+      }
+      if (decision == Filter.ACCEPT) {
+        break;
+      }
+    }
+    append(event);
+  }
+
   @Override
   protected void append(LoggingEvent event) {
     if (url == null)
@@ -213,6 +454,10 @@ public class ElasticsearchAppender extends AppenderSkeleton {
 
   @Override
   public void close() {
+    closed = true;
+    if (nodes != null) {
+      nodes.close();
+    }
   }
 
   @Override
@@ -230,9 +475,42 @@ public class ElasticsearchAppender extends AppenderSkeleton {
     } catch (MalformedURLException e) {
       LogLog.error(e.getMessage());
     }
+    if (nodes != null) {
+      nodes.close();
+    }
+    nodes = new NodePool(new HttpTransport.Factory() {
+      public HttpTransport create(String host, int port) {
+        return createTransport(host, port);
+      }
+    });
+    nodes.setLoadBalancing(loadBalancing);
+    nodes.setRetryInterval(nodeRetryInterval);
+    nodes.setDiscover(discoverNodes);
+    nodes.setDiscoveryInterval(discoveryInterval);
+    if (hosts != null && hosts.trim().length() > 0) {
+      nodes.addNodes(hosts, port);
+    } else {
+      nodes.addNode(server, port);
+    }
+    nodes.start();
     super.activateOptions();
   }
 
+  /**
+   * Create a started transport to a server with the connection options of this
+   * appender.
+   */
+  protected HttpTransport createTransport(String server, int port) {
+    final HttpTransport result = new HttpTransport(protocol, server, port);
+    result.setConnectTimeout(connectTimeout);
+    result.setReadTimeout(readTimeout);
+    result.setMaxConnections(maxConnections);
+    result.setIdleTimeout(idleTimeout);
+    result.setKeepAliveInterval(keepAliveInterval);
+    result.start(username, password);
+    return result;
+  }
+
   /**
    * sends the request
    * 
@@ -242,7 +520,17 @@ public class ElasticsearchAppender extends AppenderSkeleton {
     if (event == null)
       return;
 
-    postItem(this.layout.format(event));
+    if (this.layout instanceof ByteLayout) {
+      final ReusableOutputStream body = bodies.get();
+      try {
+        ((ByteLayout) this.layout).encode(event, body);
+        postItem(body.array(), body.size());
+      } finally {
+        body.clear();
+      }
+    } else {
+      postItem(this.layout.format(event));
+    }
   }
 
   /**
@@ -253,31 +541,32 @@ public class ElasticsearchAppender extends AppenderSkeleton {
    *                     reading the request
    */
   public void postItem(final String doc) throws IOException {
-    final HttpURLConnection connection = (HttpURLConnection) getDocURL().openConnection();
+    final byte[] body = doc.getBytes(UTF8_CHARSET);
+    postItem(body, body.length);
+  }
 
-    if (username != null && password != null) {
-      final String userpass = username + ":" + password;
-      final String basicAuth = "Basic " + new String(new Base64().encode(userpass.getBytes()));
-      connection.setRequestProperty("Authorization", basicAuth);
-    }
-    connection.setDoInput(true);
-    connection.setDoOutput(true);
-    connection.setRequestMethod("POST");
-    connection.setRequestProperty("Content-Type", "application/json");
-    final OutputStream outputStream = connection.getOutputStream();
-    outputStream.write(doc.getBytes(UTF8_CHARSET));
-    outputStream.close();
-    final int responseCode = connection.getResponseCode();
-    InputStream inputStream;
-    if (responseCode == HttpURLConnection.HTTP_CREATED) {
-      inputStream = connection.getInputStream();
-    } else {
-      inputStream = connection.getErrorStream();
-      LogLog.error("Error indexing docs in elasticsearch");
-    }
-    if (inputStream != null) {
-      LogLog.debug(toString(inputStream));
-      inputStream.close();
+  /**
+   * POST an encoded document to the url
+   *
+   * @param body   buffer holding the UTF-8 document
+   * @param length size of the document in bytes
+   * @throws IOException if an I/O exception occurs while creating/writing/
+   *                     reading the request
+   */
+  public void postItem(final byte[] body, final int length) throws IOException {
+    final URL docURL = getDocURL();
+    if (docURL == null || nodes == null)
+      return;
+
+    final HttpResponse response = nodes.execute("POST", docURL.getFile(), "application/json", body, 0, length);
+    try {
+      if (response.getStatus() == HttpURLConnection.HTTP_CREATED) {
+        LogLog.debug(response.readBody());
+      } else {
+        LogLog.error("Error indexing docs in elasticsearch: " + response.readBody());
+      }
+    } finally {
+      response.close();
     }
   }
 
@@ -289,14 +578,14 @@ public class ElasticsearchAppender extends AppenderSkeleton {
    * @throws IOException
    */
   public String toString(InputStream inputStream) throws IOException {
-    String string;
-    StringBuilder outputBuilder = new StringBuilder();
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
     if (inputStream != null) {
-      BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-      while (null != (string = reader.readLine())) {
-        outputBuilder.append(string).append('\n');
+      final byte[] buffer = new byte[4096];
+      int count;
+      while ((count = inputStream.read(buffer)) != -1) {
+        output.write(buffer, 0, count);
       }
     }
-    return outputBuilder.toString();
+    return output.toString("UTF-8");
   }
 }
@@ -18,18 +18,39 @@
 
 package org.apache.log4j.elasticsearch;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.log4j.Layout;
+import org.apache.log4j.Level;
+import org.apache.log4j.elasticsearch.http.GzipOutputStream;
+import org.apache.log4j.elasticsearch.http.HttpResponse;
+import org.apache.log4j.elasticsearch.http.NodePool;
+import org.apache.log4j.elasticsearch.http.RequestBody;
+import org.apache.log4j.elasticsearch.data.HostData;
 import org.apache.log4j.helpers.LogLog;
 import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+
+import com.google.gson.JsonObject;
 
 public class ElasticsearchBulkAppender extends ElasticsearchAppender {
   /**
@@ -37,7 +58,7 @@ public class ElasticsearchBulkAppender extends ElasticsearchAppender {
    */
   public static final long DEFAULT_TIMEOUT = 5000;
 
-  private long timeout = DEFAULT_TIMEOUT;
+  private volatile long timeout = DEFAULT_TIMEOUT;
 
   /**
    * The default buffer size is set to 128 events.
@@ -45,26 +66,232 @@ public class ElasticsearchBulkAppender extends ElasticsearchAppender {
   public static final int DEFAULT_BUFFER_SIZE = 128;
 
   /**
-   * The default buffer size is set to 4096 events.
+   * The default maximum buffer size is set to 4096 events.
    */
   public static final int MAX_BUFFER_SIZE = 4096;
 
   /**
-   * Event buffer.
+   * The default time to block a logging thread on a full buffer in milliseconds.
+   */
+  public static final long DEFAULT_BLOCK_TIMEOUT = 1000;
+
+  /**
+   * Levels for which dropped events are accounted separately.
+   */
+  private static final Level[] DROP_LEVELS = { Level.TRACE, Level.DEBUG, Level.INFO, Level.WARN, Level.ERROR,
+      Level.FATAL };
+
+  /**
+   * Event buffer, a lock-free ring shared by all logging threads and drained by
+   * the dispatcher. Allocated by activateOptions.
+   */
+  private EventRingBuffer<LoggingEvent> buffer;
+
+  /**
+   * Maximum number of events held in the buffer.
+   */
+  private int maxBufferSize = MAX_BUFFER_SIZE;
+
+  private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+  private long blockTimeout = DEFAULT_BLOCK_TIMEOUT;
+
+  private Level overflowLevel = Level.WARN;
+
+  /**
+   * Selects the buffered events below <code>overflowLevel</code>.
+   */
+  private final EventRingBuffer.Matcher<LoggingEvent> belowOverflowLevel = new EventRingBuffer.Matcher<LoggingEvent>() {
+    public boolean matches(final LoggingEvent event) {
+      return !event.getLevel().isGreaterOrEqual(overflowLevel);
+    }
+  };
+
+  /**
+   * The default journal segment size is set to 16 MB.
+   */
+  public static final int DEFAULT_JOURNAL_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+  /**
+   * The default maximum number of journal segments kept on disk.
+   */
+  public static final int DEFAULT_JOURNAL_MAX_SEGMENTS = 64;
+
+  /**
+   * The default interval to force the journal to disk in milliseconds.
+   */
+  public static final long DEFAULT_JOURNAL_SYNC_INTERVAL = 1000;
+
+  /**
+   * Journal directory, the journal is disabled if null.
+   */
+  private String journalDirectory;
+
+  private int journalSegmentSize = DEFAULT_JOURNAL_SEGMENT_SIZE;
+
+  private int journalMaxSegments = DEFAULT_JOURNAL_MAX_SEGMENTS;
+
+  private volatile long journalSyncInterval = DEFAULT_JOURNAL_SYNC_INTERVAL;
+
+  /**
+   * No compression of bulk requests.
+   */
+  public static final String COMPRESSION_NONE = "none";
+
+  /**
+   * Gzip compression of bulk requests.
+   */
+  public static final String COMPRESSION_GZIP = "gzip";
+
+  /**
+   * The default compression level, a good balance between speed and size.
+   */
+  public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
+  private String compression = COMPRESSION_NONE;
+
+  private int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+
+  /**
+   * The default number of times documents rejected with a retryable status are
+   * sent again.
+   */
+  public static final int DEFAULT_MAX_RETRIES = 3;
+
+  /**
+   * The default delay before the first retry in milliseconds, it doubles with
+   * every retry.
+   */
+  public static final long DEFAULT_RETRY_BACKOFF = 1000;
+
+  /**
+   * The default maximum delay between retries in milliseconds.
+   */
+  public static final long DEFAULT_MAX_RETRY_BACKOFF = 30000;
+
+  /**
+   * The default number of consecutive failed requests pausing the dispatcher.
+   */
+  public static final int DEFAULT_CIRCUIT_BREAKER_THRESHOLD = 5;
+
+  /**
+   * The default time the dispatcher stays paused in milliseconds.
+   */
+  public static final long DEFAULT_CIRCUIT_BREAKER_INTERVAL = 30000;
+
+  private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+
+  private volatile long retryBackoff = DEFAULT_RETRY_BACKOFF;
+
+  private volatile long maxRetryBackoff = DEFAULT_MAX_RETRY_BACKOFF;
+
+  private int circuitBreakerThreshold = DEFAULT_CIRCUIT_BREAKER_THRESHOLD;
+
+  private long circuitBreakerInterval = DEFAULT_CIRCUIT_BREAKER_INTERVAL;
+
+  /**
+   * Pauses shipping while the cluster fails, created by activateOptions.
+   */
+  private CircuitBreaker breaker;
+
+  /**
+   * Documents sent again after being rejected.
+   */
+  private final AtomicLong retriedDocuments = new AtomicLong();
+
+  /**
+   * Documents rejected permanently or still rejected after the last retry.
    */
-  private final List<LoggingEvent> buffer = new ArrayList<LoggingEvent>();
+  private final AtomicLong failedDocuments = new AtomicLong();
+
+  /**
+   * Requests with at least one document rejected with status 429.
+   */
+  private final AtomicLong throttledRequests = new AtomicLong();
 
   /**
    * Buffer size.
    */
-  private int bufferSize = DEFAULT_BUFFER_SIZE;
+  private volatile int bufferSize = DEFAULT_BUFFER_SIZE;
+
+  /**
+   * The default maximum size of a bulk request body, 10 MB, within the 5 to 15
+   * MB range recommended by Elasticsearch.
+   */
+  public static final int DEFAULT_MAX_BATCH_BYTES = 10 * 1024 * 1024;
+
+  /**
+   * Estimated size in bytes of the fields of a document besides its message and
+   * stack trace.
+   */
+  private static final int EVENT_OVERHEAD = 512;
+
+  /**
+   * Estimated size in bytes of a formatted stack frame.
+   */
+  private static final int STACK_FRAME_SIZE = 100;
+
+  /**
+   * Cap on the estimated size of a stack trace, and number of causes counted.
+   */
+  private static final int MAX_STACK_TRACE_SIZE = 64 * 1024;
+  private static final int MAX_CAUSES = 8;
+
+  private volatile int maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+
+  /**
+   * Number of threads sending bulk requests concurrently.
+   */
+  private int concurrency = 1;
+
+  /**
+   * Should the events of a logger be sent by the same worker, in order.
+   */
+  private boolean orderedDelivery = false;
+
+  /**
+   * Number of threads formatting events besides the dispatcher, 0 to format on
+   * the dispatcher only.
+   */
+  private int formatThreads = 0;
+
+  /**
+   * Minimum number of events formatted by one task, smaller batches are not
+   * worth spreading.
+   */
+  private static final int MIN_FORMAT_CHUNK = 32;
+
+  /**
+   * Tells a worker to stop.
+   */
+  private static final BulkBuffer STOP = new BulkBuffer(0);
+
+  /**
+   * Estimated size of the events buffered since the dispatcher last drained the
+   * buffer.
+   */
+  private final AtomicLong pendingBytes = new AtomicLong();
+
+  /**
+   * Events dropped since the last summary, indexed like DROP_LEVELS.
+   */
+  private final AtomicLongArray droppedEvents = new AtomicLongArray(DROP_LEVELS.length);
+
+  /**
+   * Set by a producer once the buffer reaches <code>bufferSize</code> so that
+   * only one of them pays for waking up the dispatcher.
+   */
+  private final AtomicBoolean signalled = new AtomicBoolean();
 
-  private int removedMessages = 0;
+  /**
+   * Visible to the dispatcher without locking, unlike <code>closed</code>.
+   */
+  private volatile boolean shutdown = false;
 
   /**
    * Dispatcher.
    */
-  private final Thread dispatcher;
+  private Thread dispatcher;
 
   /**
    * Should location info be included in dispatched messages.
@@ -77,7 +304,24 @@ public class ElasticsearchBulkAppender extends ElasticsearchAppender {
   public ElasticsearchBulkAppender() {
     LogLog.setInternalDebugging(true);
     LogLog.setQuietMode(false);
+  }
+
+  /**
+   * Allocate the event buffer and start the dispatcher, the buffer can not be
+   * resized once the dispatcher is running.
+   */
+  @Override
+  public void activateOptions() {
+    super.activateOptions();
+    if (dispatcher != null) {
+      if (buffer.capacity() < maxBufferSize) {
+        LogLog.warn("MaxBufferSize can not be changed once the appender is active");
+      }
+      return;
+    }
 
+    buffer = new EventRingBuffer<LoggingEvent>(maxBufferSize);
+    breaker = new CircuitBreaker(circuitBreakerThreshold, circuitBreakerInterval);
     dispatcher = new Thread(new Dispatcher(this, buffer));
 
     // It is the user's responsibility to close appenders before
@@ -94,6 +338,9 @@ public class ElasticsearchBulkAppender extends ElasticsearchAppender {
    * {@inheritDoc}
    */
   public void append(final LoggingEvent event) {
+    if (buffer == null)
+      return;
+
     // Set the NDC and thread name for the calling thread as these
     // LoggingEvent fields were not set at event creation time.
     event.getNDC();
@@ -104,15 +351,107 @@ public class ElasticsearchBulkAppender extends ElasticsearchAppender {
       event.getLocationInformation();
     }
 
-    synchronized (buffer) {
-      if (buffer.size() > MAX_BUFFER_SIZE) {
-        removedMessages++;
-        buffer.remove(0);
+    boolean full = false;
+    final int maxBytes = maxBatchBytes;
+    if (maxBytes > 0) {
+      full = pendingBytes.addAndGet(estimateSize(event)) >= maxBytes;
+    }
+
+    if (!buffer.offer(event)) {
+      overflow(event);
+    }
+    if ((full || buffer.size() >= bufferSize) && signalled.compareAndSet(false, true)) {
+      LockSupport.unpark(dispatcher);
+    }
+  }
+
+  /**
+   * Estimate the size of the document of an event without formatting it. The
+   * message is rendered on the calling thread, as AsyncAppender does, but the
+   * stack trace is only estimated from its number of frames, it is formatted
+   * by the dispatcher.
+   */
+  private static long estimateSize(final LoggingEvent event) {
+    long size = EVENT_OVERHEAD;
+    final String message = event.getRenderedMessage();
+    if (message != null) {
+      size += message.length();
+    }
+    final ThrowableInformation information = event.getThrowableInformation();
+    if (information != null) {
+      long frames = 0;
+      Throwable throwable = information.getThrowable();
+      for (int i = 0; throwable != null && i < MAX_CAUSES; i++) {
+        frames += throwable.getStackTrace().length + 1;
+        throwable = throwable.getCause();
+      }
+      size += Math.min(frames * STACK_FRAME_SIZE, MAX_STACK_TRACE_SIZE);
+    }
+    return size;
+  }
+
+  /**
+   * Apply the overflow policy to an event that did not fit in the buffer.
+   *
+   * @param event event rejected by the buffer
+   */
+  private void overflow(final LoggingEvent event) {
+    switch (overflowPolicy) {
+    case BLOCK:
+      final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+      LockSupport.unpark(dispatcher);
+      while (!buffer.offer(event)) {
+        if (System.nanoTime() - deadline >= 0 || shutdown) {
+          dropped(event);
+          return;
+        }
+        LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(100));
+      }
+      return;
+    case DROP_NEWEST:
+      dropped(event);
+      return;
+    case DROP_BELOW_LEVEL:
+      if (!event.getLevel().isGreaterOrEqual(overflowLevel)) {
+        dropped(event);
+        return;
+      }
+      final LoggingEvent evicted = buffer.replace(belowOverflowLevel, event);
+      if (evicted != null) {
+        dropped(evicted);
+        return;
+      }
+      // only events at or above the level are buffered, evict the oldest
+      dropOldest(event);
+      return;
+    case DROP_OLDEST:
+    default:
+      dropOldest(event);
+    }
+  }
+
+  /**
+   * Evict the oldest buffered events until an event fits.
+   */
+  private void dropOldest(final LoggingEvent event) {
+    do {
+      final LoggingEvent oldest = buffer.poll();
+      if (oldest != null) {
+        dropped(oldest);
       }
-      buffer.add(event);
-      if (buffer.size() >= bufferSize)
-        buffer.notifyAll();
+    } while (!buffer.offer(event));
+  }
+
+  /**
+   * Account for a dropped event.
+   */
+  private void dropped(final LoggingEvent event) {
+    final int level = event.getLevel().toInt();
+    int index = 0;
+    while (index + 1 < DROP_LEVELS.length && level >= DROP_LEVELS[index + 1].toInt()) {
+      index++;
     }
+    droppedEvents.incrementAndGet(index);
   }
 
   /**
@@ -124,17 +463,19 @@ public class ElasticsearchBulkAppender extends ElasticsearchAppender {
      * Set closed flag and notify all threads to check their conditions. Should
      * result in dispatcher terminating.
      */
-    synchronized (buffer) {
-      closed = true;
-      buffer.notifyAll();
-    }
+    closed = true;
+    shutdown = true;
+    LockSupport.unpark(dispatcher);
 
-    try {
-      dispatcher.join();
-    } catch (final InterruptedException e) {
-      Thread.currentThread().interrupt();
-      LogLog.error("Got an InterruptedException while waiting for the " + "dispatcher to finish.", e);
+    if (dispatcher != null) {
+      try {
+        dispatcher.join();
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        LogLog.error("Got an InterruptedException while waiting for the " + "dispatcher to finish.", e);
+      }
     }
+    super.close();
   }
 
   /**
@@ -153,13 +494,11 @@ public class ElasticsearchBulkAppender extends ElasticsearchAppender {
       throw new java.lang.NegativeArraySizeException("size");
     }
 
-    synchronized (buffer) {
-      //
-      // don't let size be zero.
-      //
-      bufferSize = (size < 1) ? 1 : size;
-      buffer.notifyAll();
-    }
+    //
+    // don't let size be zero.
+    //
+    bufferSize = (size < 1) ? 1 : size;
+    LockSupport.unpark(dispatcher);
   }
 
   /**
@@ -172,193 +511,1329 @@ public class ElasticsearchBulkAppender extends ElasticsearchAppender {
   }
 
   /**
-   * Set the timeout property
+   * Sets the maximum size in bytes of a bulk request body. Buffered events are
+   * sent once their estimated size reaches it, and batches encoding to more
+   * than that are split. Zero means no limit.
    */
-  public void setTimeout(final long timeout) {
-    this.timeout = timeout;
+  public void setMaxBatchBytes(final int maxBatchBytes) {
+    this.maxBatchBytes = Math.max(0, maxBatchBytes);
   }
 
   /**
-   * return timeout
-   * 
-   * @return timeout
+   * @return the current value of the <b>MaxBatchBytes</b> option.
    */
-  public long getTimeout() {
-    return timeout;
+  public int getMaxBatchBytes() {
+    return maxBatchBytes;
   }
 
   /**
-   * Gets whether the location of the logging request call should be captured.
-   *
-   * @return the current value of the <b>LocationInfo</b> option.
+   * Sets the number of threads sending bulk requests, that is the maximum
+   * number of requests in flight. Drained events are split into batches of
+   * BufferSize events, the dispatcher formats the next batches while the
+   * workers send. Ignored with the journal, which is always sent by the
+   * dispatcher in order. Must be set before the appender is activated.
    */
-  public boolean getLocationInfo() {
-    return locationInfo;
+  public void setConcurrency(final int concurrency) {
+    this.concurrency = Math.max(1, concurrency);
   }
 
   /**
-   * The <b>LocationInfo</b> option takes a boolean value. By default, it is set
-   * to false which means there will be no effort to extract the location
-   * information related to the event. As a result, the event that will be
-   * ultimately logged will likely to contain the wrong location information (if
-   * present in the log format).
-   * <p/>
-   * <p/>
-   * Location information extraction is comparatively very slow and should be
-   * avoided unless performance is not a concern.
-   * </p>
-   * 
-   * @param flag true if location information should be extracted.
+   * @return the current value of the <b>Concurrency</b> option.
    */
-  public void setLocationInfo(final boolean flag) {
-    locationInfo = flag;
+  public int getConcurrency() {
+    return concurrency;
   }
 
   /**
-   * Event dispatcher.
+   * Sets whether the events of a logger are always sent by the same worker,
+   * so that they reach Elasticsearch in order when Concurrency is above 1.
+   * Must be set before the appender is activated.
    */
-  private static class Dispatcher implements Runnable {
-    /**
-     * Parent AsyncAppender.
-     */
-    private final ElasticsearchBulkAppender parent;
+  public void setOrderedDelivery(final boolean orderedDelivery) {
+    this.orderedDelivery = orderedDelivery;
+  }
 
-    /**
-     * Event buffer.
-     */
-    private final List<LoggingEvent> buffer;
+  /**
+   * @return the current value of the <b>OrderedDelivery</b> option.
+   */
+  public boolean getOrderedDelivery() {
+    return orderedDelivery;
+  }
 
-    private Layout layout;
+  /**
+   * Sets the number of threads formatting events in parallel with the
+   * dispatcher. Only used with JSONEventLayout, other layouts may not be safe
+   * to call from several threads. Must be set before the appender is
+   * activated.
+   */
+  public void setFormatThreads(final int formatThreads) {
+    this.formatThreads = Math.max(0, formatThreads);
+  }
 
-    /**
-     * Create new instance of dispatcher.
-     *
-     * @param parent parent ElasticsearchBulkAppender, may not be null.
-     * @param buffer event buffer, may not be null.
-     */
-    public Dispatcher(final ElasticsearchBulkAppender parent, final List<LoggingEvent> buffer) {
-      this.parent = parent;
-      this.buffer = buffer;
-      this.layout = parent.layout;
+  /**
+   * @return the current value of the <b>FormatThreads</b> option.
+   */
+  public int getFormatThreads() {
+    return formatThreads;
+  }
+
+  /**
+   * Sets the maximum number of events held in the buffer while waiting to be
+   * sent, rounded up to a power of two. Must be set before the appender is
+   * activated.
+   *
+   * @param size maximum buffer size, must be positive.
+   */
+  public void setMaxBufferSize(final int size) {
+    if (size < 1) {
+      throw new IllegalArgumentException("MaxBufferSize must be positive: " + size);
     }
+    maxBufferSize = size;
+  }
 
-    /**
-     * {@inheritDoc}
-     */
-    public void run() {
-      boolean isActive = true;
+  /**
+   * @return the current value of the <b>MaxBufferSize</b> option.
+   */
+  public int getMaxBufferSize() {
+    return maxBufferSize;
+  }
 
-      //
-      // if interrupted (unlikely), end thread
-      //
-      try {
-        //
-        // loop until the ElasticsearchBulkAppender is closed.
-        //
-        while (isActive) {
-          LoggingEvent[] events = null;
-
-          //
-          // extract pending events while synchronized
-          // on buffer
-          //
-          synchronized (buffer) {
-            int bufferSize = buffer.size();
-            isActive = !parent.closed;
-
-            while ((bufferSize == 0) && isActive) {
-              buffer.wait(parent.timeout);
-              bufferSize = buffer.size();
-              isActive = !parent.closed;
-            }
+  /**
+   * Sets what happens to an event that does not fit in the buffer: Block,
+   * DropOldest (default), DropNewest or DropBelowLevel.
+   */
+  public void setOverflowPolicy(final String policy) {
+    final OverflowPolicy value = OverflowPolicy.toPolicy(policy, null);
+    if (value == null) {
+      LogLog.warn("Unknown OverflowPolicy [" + policy + "], using " + overflowPolicy);
+      return;
+    }
+    overflowPolicy = value;
+  }
 
-            if (bufferSize > 0) {
-              events = new LoggingEvent[bufferSize];
-              buffer.toArray(events);
-              buffer.clear();
-              buffer.notifyAll();
+  /**
+   * @return the current value of the <b>OverflowPolicy</b> option.
+   */
+  public String getOverflowPolicy() {
+    return overflowPolicy.name();
+  }
 
-              if (parent.removedMessages > 0) {
-                LogLog.warn("Too many messages, " + parent.removedMessages + " have been removed");
-                parent.removedMessages = 0;
-              }
-              if (layout == null) {
-                layout = parent.layout;
-              }
-            }
-          }
+  /**
+   * Sets the maximum time in milliseconds a logging thread is blocked on a full
+   * buffer with the Block overflow policy.
+   */
+  public void setBlockTimeout(final long blockTimeout) {
+    this.blockTimeout = blockTimeout;
+  }
 
-          //
-          // process events after lock on buffer is released.
-          //
-          if (events != null && layout != null) {
-            String[] docs = new String[events.length];
-            for (int i = 0; i < events.length; i++) {
-              final LoggingEvent event = events[i];
-              final String doc = layout.format(event);
-              docs[i] = doc;
-            }
-            try {
-              postEvents(docs);
-            } catch (IOException e) {
-            }
-          }
-        }
-      } catch (final InterruptedException ex) {
-        Thread.currentThread().interrupt();
+  /**
+   * @return the current value of the <b>BlockTimeout</b> option.
+   */
+  public long getBlockTimeout() {
+    return blockTimeout;
+  }
+
+  /**
+   * Sets the level below which events are dropped first with the DropBelowLevel
+   * overflow policy.
+   */
+  public void setOverflowLevel(final String level) {
+    overflowLevel = Level.toLevel(level, overflowLevel);
+  }
+
+  /**
+   * @return the current value of the <b>OverflowLevel</b> option.
+   */
+  public String getOverflowLevel() {
+    return overflowLevel.toString();
+  }
+
+  /**
+   * Sets the directory of the write-ahead journal. When set, formatted events
+   * are written to the journal and only discarded after Elasticsearch accepts
+   * them, so they survive outages and restarts.
+   */
+  public void setJournalDirectory(final String journalDirectory) {
+    this.journalDirectory = journalDirectory;
+  }
+
+  /**
+   * @return the current value of the <b>JournalDirectory</b> option.
+   */
+  public String getJournalDirectory() {
+    return journalDirectory;
+  }
+
+  /**
+   * Sets the size in bytes of each journal segment file.
+   */
+  public void setJournalSegmentSize(final int journalSegmentSize) {
+    this.journalSegmentSize = journalSegmentSize;
+  }
+
+  /**
+   * @return the current value of the <b>JournalSegmentSize</b> option.
+   */
+  public int getJournalSegmentSize() {
+    return journalSegmentSize;
+  }
+
+  /**
+   * Sets the maximum number of journal segments kept on disk, beyond that the
+   * oldest unsent events are discarded. Zero means no limit.
+   */
+  public void setJournalMaxSegments(final int journalMaxSegments) {
+    this.journalMaxSegments = journalMaxSegments;
+  }
+
+  /**
+   * @return the current value of the <b>JournalMaxSegments</b> option.
+   */
+  public int getJournalMaxSegments() {
+    return journalMaxSegments;
+  }
+
+  /**
+   * Sets the interval in milliseconds at which the journal is forced to disk.
+   * Zero means only when the appender is closed.
+   */
+  public void setJournalSyncInterval(final long journalSyncInterval) {
+    this.journalSyncInterval = journalSyncInterval;
+  }
+
+  /**
+   * @return the current value of the <b>JournalSyncInterval</b> option.
+   */
+  public long getJournalSyncInterval() {
+    return journalSyncInterval;
+  }
+
+  /**
+   * Open the journal if one is configured.
+   *
+   * @return the journal or null
+   */
+  private BulkJournal openJournal() {
+    if (journalDirectory == null)
+      return null;
+    try {
+      return new BulkJournal(new File(journalDirectory), journalSegmentSize, journalMaxSegments);
+    } catch (IOException e) {
+      LogLog.error("Could not open the journal at " + journalDirectory + ", events will not be durable", e);
+      return null;
+    }
+  }
+
+  /**
+   * Sets the compression of bulk request bodies, none or gzip.
+   */
+  public void setCompression(final String compression) {
+    if (COMPRESSION_GZIP.equalsIgnoreCase(compression)) {
+      this.compression = COMPRESSION_GZIP;
+    } else {
+      if (!COMPRESSION_NONE.equalsIgnoreCase(compression)) {
+        LogLog.warn("Unknown Compression [" + compression + "], using " + COMPRESSION_NONE);
+      }
+      this.compression = COMPRESSION_NONE;
+    }
+  }
+
+  /**
+   * @return the current value of the <b>Compression</b> option.
+   */
+  public String getCompression() {
+    return compression;
+  }
+
+  /**
+   * Sets the compression level, from 1 (fastest) to 9 (smallest).
+   */
+  public void setCompressionLevel(final int compressionLevel) {
+    this.compressionLevel = compressionLevel;
+  }
+
+  /**
+   * @return the current value of the <b>CompressionLevel</b> option.
+   */
+  public int getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  /**
+   * Sets how many times documents rejected with a retryable status (429, 502,
+   * 503, 504) are sent again. Zero disables retries.
+   */
+  public void setMaxRetries(final int maxRetries) {
+    this.maxRetries = Math.max(0, maxRetries);
+  }
+
+  /**
+   * @return the current value of the <b>MaxRetries</b> option.
+   */
+  public int getMaxRetries() {
+    return maxRetries;
+  }
+
+  /**
+   * Sets the delay in milliseconds before the first retry. The delay doubles
+   * with every retry, with some random jitter, up to MaxRetryBackoff.
+   */
+  public void setRetryBackoff(final long retryBackoff) {
+    this.retryBackoff = retryBackoff;
+  }
+
+  /**
+   * @return the current value of the <b>RetryBackoff</b> option.
+   */
+  public long getRetryBackoff() {
+    return retryBackoff;
+  }
+
+  /**
+   * Sets the maximum delay in milliseconds between retries.
+   */
+  public void setMaxRetryBackoff(final long maxRetryBackoff) {
+    this.maxRetryBackoff = maxRetryBackoff;
+  }
+
+  /**
+   * @return the current value of the <b>MaxRetryBackoff</b> option.
+   */
+  public long getMaxRetryBackoff() {
+    return maxRetryBackoff;
+  }
+
+  /**
+   * Sets the number of consecutive failed requests after which shipping is
+   * paused. Zero never pauses. Must be set before the appender is activated.
+   */
+  public void setCircuitBreakerThreshold(final int circuitBreakerThreshold) {
+    this.circuitBreakerThreshold = circuitBreakerThreshold;
+  }
+
+  /**
+   * @return the current value of the <b>CircuitBreakerThreshold</b> option.
+   */
+  public int getCircuitBreakerThreshold() {
+    return circuitBreakerThreshold;
+  }
+
+  /**
+   * Sets the time in milliseconds shipping stays paused before a probe request
+   * is sent. Must be set before the appender is activated.
+   */
+  public void setCircuitBreakerInterval(final long circuitBreakerInterval) {
+    this.circuitBreakerInterval = circuitBreakerInterval;
+  }
+
+  /**
+   * @return the current value of the <b>CircuitBreakerInterval</b> option.
+   */
+  public long getCircuitBreakerInterval() {
+    return circuitBreakerInterval;
+  }
+
+  /**
+   * @return the state of the circuit breaker: CLOSED while shipping, OPEN while
+   *         paused, HALF_OPEN while probing.
+   */
+  public String getCircuitState() {
+    return breaker == null ? CircuitBreaker.State.CLOSED.name() : breaker.getState().name();
+  }
+
+  /**
+   * @return the number of consecutive failed requests.
+   */
+  public int getConsecutiveFailures() {
+    return breaker == null ? 0 : breaker.getFailures();
+  }
+
+  /**
+   * @return the number of requests throttled by Elasticsearch with status 429.
+   */
+  public long getThrottledRequests() {
+    return throttledRequests.get();
+  }
+
+  /**
+   * @return the number of documents sent again after being rejected.
+   */
+  public long getRetriedDocuments() {
+    return retriedDocuments.get();
+  }
+
+  /**
+   * @return the number of documents Elasticsearch did not accept, either
+   *         rejected permanently or still rejected after the last retry.
+   */
+  public long getFailedDocuments() {
+    return failedDocuments.get();
+  }
+
+  /**
+   * Set the timeout property
+   */
+  public void setTimeout(final long timeout) {
+    this.timeout = timeout;
+  }
+
+  /**
+   * return timeout
+   * 
+   * @return timeout
+   */
+  public long getTimeout() {
+    return timeout;
+  }
+
+  /**
+   * Gets whether the location of the logging request call should be captured.
+   *
+   * @return the current value of the <b>LocationInfo</b> option.
+   */
+  public boolean getLocationInfo() {
+    return locationInfo;
+  }
+
+  /**
+   * The <b>LocationInfo</b> option takes a boolean value. By default, it is set
+   * to false which means there will be no effort to extract the location
+   * information related to the event. As a result, the event that will be
+   * ultimately logged will likely to contain the wrong location information (if
+   * present in the log format).
+   * <p/>
+   * <p/>
+   * Location information extraction is comparatively very slow and should be
+   * avoided unless performance is not a concern.
+   * </p>
+   * 
+   * @param flag true if location information should be extracted.
+   */
+  public void setLocationInfo(final boolean flag) {
+    locationInfo = flag;
+  }
+
+
+  /**
+   * Event dispatcher.
+   */
+  private static class Dispatcher implements Runnable {
+    /**
+     * Parent AsyncAppender.
+     */
+    private final ElasticsearchBulkAppender parent;
+
+    /**
+     * Event buffer.
+     */
+    private final EventRingBuffer<LoggingEvent> buffer;
+
+    /**
+     * Reused to drain the buffer.
+     */
+    private final LoggingEvent[] events;
+
+    /**
+     * Events formatted by each format thread, the first one is for this thread.
+     */
+    private final List<BulkBuffer> formatted = new ArrayList<BulkBuffer>();
+
+    /**
+     * Holds a document moving to the next batch.
+     */
+    private final BulkBuffer spill = new BulkBuffer(4 * 1024);
+
+    /**
+     * Threads formatting events, null to format on this thread.
+     */
+    private ExecutorService formatters;
+
+    private final List<Future<?>> formatting = new ArrayList<Future<?>>();
+
+    private Layout layout;
+
+    /**
+     * Host information for the dropped events summary.
+     */
+    private final HostData hostData = new HostData();
+
+    /**
+     * Durable journal, null if disabled.
+     */
+    private BulkJournal journal;
+
+    private long lastSync = System.currentTimeMillis();
+
+    /**
+     * Body of the bulk requests sent by this thread, reused for every batch.
+     */
+    private final BulkBuffer batch = new BulkBuffer(64 * 1024);
+
+    /**
+     * Journaled documents still rejected after the last retry.
+     */
+    private final BulkBuffer leftovers = new BulkBuffer(4 * 1024);
+
+    /**
+     * Documents that could not be appended to the journal, sent directly once
+     * the documents journaled before them are sent.
+     */
+    private final BulkBuffer unjournaled = new BulkBuffer(4 * 1024);
+
+    private final CircuitBreaker breaker;
+
+    /**
+     * Sends the batches from this thread, when there are no workers.
+     */
+    private final Sender sender;
+
+    /**
+     * Batches being built, one per worker with ordered delivery, else a single
+     * one. A null entry is taken from the free batches when needed.
+     */
+    private BulkBuffer[] partitions;
+
+    /**
+     * Queues of the batches waiting for a worker, parallel to partitions. Null
+     * if the batches are sent by this thread.
+     */
+    private List<BlockingQueue<BulkBuffer>> queues;
+
+    /**
+     * Empty batches given back by the workers.
+     */
+    private BlockingQueue<BulkBuffer> free;
+
+    private Thread[] workers;
+
+    /**
+     * Create new instance of dispatcher.
+     *
+     * @param parent parent ElasticsearchBulkAppender, may not be null.
+     * @param buffer event buffer, may not be null.
+     */
+    public Dispatcher(final ElasticsearchBulkAppender parent, final EventRingBuffer<LoggingEvent> buffer) {
+      this.parent = parent;
+      this.buffer = buffer;
+      this.events = new LoggingEvent[buffer.capacity()];
+      this.layout = parent.layout;
+      this.breaker = parent.breaker;
+      this.sender = new Sender(parent);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void run() {
+      //
+      // loop until the ElasticsearchBulkAppender is closed and the buffer is
+      // empty.
+      //
+      journal = parent.openJournal();
+      if (journal == null) {
+        startWorkers(parent.concurrency);
+      } else {
+        // the journal is committed in order, so it is shipped by this thread
+        partitions = new BulkBuffer[] { batch };
+      }
+
+      while (true) {
+        final boolean isActive = !parent.shutdown;
+        // the probe of a half open breaker is left to the thread sending it
+        final boolean paused = isActive && breaker.isPaused(System.currentTimeMillis());
+
+        //
+        // wait until enough events are buffered or the timeout expires
+        //
+        if (isActive && (paused || !enoughBuffered())) {
+          LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(parent.timeout));
+        }
+        parent.signalled.set(false);
+
+        if (paused && journal == null) {
+          // leave the events in the buffer, the overflow policy applies
+          continue;
+        }
+
+        // a half open breaker probes with a single event
+        parent.pendingBytes.set(0);
+        final int count = buffer.drainTo(events, !breaker.isClosed() && journal == null ? 1 : events.length);
+        if (count == 0) {
+          if (journal != null) {
+            ship();
+            sync(!isActive);
+          }
+          if (!isActive) {
+            break;
+          }
+          continue;
+        }
+
+        final String summary = breaker.isClosed() ? droppedSummary() : null;
+        if (layout == null) {
+          layout = parent.layout;
+        }
+
+        if (layout != null) {
+          add(count);
+          if (summary != null) {
+            add(summary, ElasticsearchBulkAppender.class.getName());
+          }
+          for (int p = 0; p < partitions.length; p++) {
+            flush(p);
+          }
+        } else if (journal != null) {
+          ship();
+        }
+        for (int i = 0; i < count; i++) {
+          events[i] = null;
+        }
+      }
+
+      stopWorkers();
+      if (formatters != null) {
+        formatters.shutdown();
+      }
+      if (journal != null) {
+        if (!unjournaled.isEmpty()) {
+          sender.deliver(unjournaled);
+        }
+        journal.close();
+      }
+      sender.close();
+    }
+
+    /**
+     * Format the drained events into the batches, spreading large batches over
+     * the format threads.
+     */
+    private void add(final int count) {
+      if (formatters == null && parent.formatThreads > 0 && layout instanceof JSONEventLayout) {
+        formatters = Executors.newFixedThreadPool(parent.formatThreads, new ThreadFactory() {
+          private int index = 0;
+
+          public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            thread.setName(Thread.currentThread().getName() + "-Formatter-" + index++);
+            return thread;
+          }
+        });
+      }
+      if (formatters == null || count < 2 * MIN_FORMAT_CHUNK) {
+        for (int i = 0; i < count; i++) {
+          add(events[i]);
+        }
+        return;
+      }
+
+      // the dispatcher formats the first chunk itself
+      final int chunk = Math.max(MIN_FORMAT_CHUNK, (count + parent.formatThreads) / (parent.formatThreads + 1));
+      for (int start = chunk; start < count; start += chunk) {
+        final int from = start;
+        final int to = Math.min(count, start + chunk);
+        final BulkBuffer docs = formatted(start / chunk);
+        formatting.add(formatters.submit(new Runnable() {
+          public void run() {
+            for (int i = from; i < to; i++) {
+              encode(events[i], docs);
+            }
+          }
+        }));
+      }
+      final BulkBuffer first = formatted(0);
+      for (int i = 0; i < chunk; i++) {
+        encode(events[i], first);
+      }
+      boolean interrupted = false;
+      try {
+        for (final Future<?> future : formatting) {
+          while (true) {
+            try {
+              future.get();
+              break;
+            } catch (final InterruptedException e) {
+              // the tasks write into docs, they must be finished
+              interrupted = true;
+            } catch (final ExecutionException e) {
+              if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+              }
+              throw new RuntimeException(e.getCause());
+            }
+          }
+        }
+      } finally {
+        formatting.clear();
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+
+      for (int start = 0; start < count; start += chunk) {
+        final BulkBuffer docs = formatted.get(start / chunk);
+        for (int i = 0; i < docs.getCount(); i++) {
+          final int p = partition(events[start + i].getLoggerName());
+          partition(p).addDocument(docs, i);
+          added(p);
+        }
+        docs.clear();
+      }
+    }
+
+    /**
+     * @return the buffer of the events formatted by a format thread
+     */
+    private BulkBuffer formatted(final int index) {
+      while (formatted.size() <= index) {
+        formatted.add(new BulkBuffer(64 * 1024));
+      }
+      return formatted.get(index);
+    }
+
+    /**
+     * Format an event into a buffer, encoding straight into it when the layout
+     * can.
+     */
+    private void encode(final LoggingEvent event, final BulkBuffer docs) {
+      if (layout instanceof ByteLayout) {
+        try {
+          ((ByteLayout) layout).encode(event, docs.newDocument());
+        } catch (final IOException e) {
+          // writing to a BulkBuffer does not fail
+          throw new IllegalStateException(e);
+        }
+      } else {
+        docs.addDocument(layout.format(event));
+      }
+    }
+
+    /**
+     * Start the threads sending batches concurrently. With ordered delivery
+     * every worker has its own queue and the events of a logger always go to
+     * the same worker, otherwise the workers share one queue.
+     */
+    @SuppressWarnings("unchecked")
+    private void startWorkers(final int count) {
+      final int partitionCount = parent.orderedDelivery ? count : 1;
+      partitions = new BulkBuffer[partitionCount];
+      queues = new ArrayList<BlockingQueue<BulkBuffer>>(partitionCount);
+      for (int p = 0; p < partitionCount; p++) {
+        queues.add(new LinkedBlockingQueue<BulkBuffer>());
+      }
+      // bounds the batches waiting to be sent, the dispatcher blocks beyond
+      final int batches = partitionCount + 2 * count;
+      free = new ArrayBlockingQueue<BulkBuffer>(batches);
+      for (int i = 0; i < batches; i++) {
+        free.add(new BulkBuffer(64 * 1024));
+      }
+
+      workers = new Thread[count];
+      for (int i = 0; i < count; i++) {
+        workers[i] = new Thread(new Worker(new Sender(parent), queues.get(i % partitionCount), free));
+        workers[i].setDaemon(true);
+        workers[i].setName(Thread.currentThread().getName() + "-Worker-" + i);
+        workers[i].start();
+      }
+    }
+
+    /**
+     * Let the workers send the queued batches and wait for them to finish.
+     */
+    private void stopWorkers() {
+      if (workers == null) {
+        return;
+      }
+      for (int i = 0; i < workers.length; i++) {
+        queues.get(i % queues.size()).add(STOP);
+      }
+      for (final Thread worker : workers) {
+        try {
+          worker.join();
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+
+    /**
+     * @return true if the buffered events make a batch, by count or by
+     *         estimated size
+     */
+    private boolean enoughBuffered() {
+      final int maxBytes = parent.maxBatchBytes;
+      return buffer.size() >= parent.bufferSize || (maxBytes > 0 && parent.pendingBytes.get() >= maxBytes);
+    }
+
+    /**
+     * Format an event into its batch.
+     */
+    private void add(final LoggingEvent event) {
+      final int p = partition(event.getLoggerName());
+      encode(event, partition(p));
+      added(p);
+    }
+
+    /**
+     * Add a document to its batch.
+     *
+     * @param doc    formatted event
+     * @param logger name of the logger, selects the batch with ordered delivery
+     */
+    private void add(final String doc, final String logger) {
+      final int p = partition(logger);
+      partition(p).addDocument(doc);
+      added(p);
+    }
+
+    /**
+     * After adding a document to a batch, send the batch without it if the
+     * document took it beyond MaxBatchBytes. With workers, a batch is also sent
+     * once it holds BufferSize documents.
+     */
+    private void added(final int p) {
+      BulkBuffer docs = partitions[p];
+      final int maxBytes = parent.maxBatchBytes;
+      if (maxBytes > 0 && docs.getLength() > maxBytes && docs.getCount() > 1) {
+        spill.addDocument(docs, docs.getCount() - 1);
+        docs.truncate(docs.getCount() - 1);
+        flush(p);
+        docs = partition(p);
+        docs.addDocument(spill, 0);
+        spill.clear();
+      }
+      if (queues != null && docs.getCount() >= parent.bufferSize) {
+        flush(p);
+      }
+    }
+
+    /**
+     * @return the batch of the events of a logger
+     */
+    private int partition(final String logger) {
+      return partitions.length == 1 ? 0 : (logger.hashCode() & Integer.MAX_VALUE) % partitions.length;
+    }
+
+    /**
+     * @return the batch being built for a partition
+     */
+    private BulkBuffer partition(final int p) {
+      if (partitions[p] == null) {
+        try {
+          partitions[p] = free.take();
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          partitions[p] = new BulkBuffer(64 * 1024);
+        }
+      }
+      return partitions[p];
+    }
+
+    /**
+     * Hand a batch to the workers, or send it or append it to the journal from
+     * this thread, and clear it.
+     */
+    private void flush(final int p) {
+      final BulkBuffer docs = partitions[p];
+      if (docs == null || docs.isEmpty()) {
+        return;
+      }
+      if (queues != null) {
+        partitions[p] = null;
+        queues.get(p).add(docs);
+        return;
+      }
+      if (journal == null) {
+        sender.deliver(docs);
+      } else {
+        journal(docs);
+      }
+      docs.clear();
+    }
+
+    /**
+     * Append documents to the journal and ship whatever has not been sent yet.
+     * Documents that could not be appended are kept aside and sent directly
+     * once the journal is drained, so that they are neither sent twice nor
+     * ahead of older documents.
+     */
+    private void journal(final BulkBuffer docs) {
+      int appended = 0;
+      try {
+        for (; appended < docs.getCount(); appended++) {
+          journal.append(docs.array(), docs.documentOffset(appended), docs.documentLength(appended));
+        }
+      } catch (IOException e) {
+        LogLog.error("Could not write " + (docs.getCount() - appended) + " documents to the journal", e);
+        for (int i = appended; i < docs.getCount(); i++) {
+          if (unjournaled.getCount() < events.length) {
+            unjournaled.addDocument(docs, i);
+          } else {
+            parent.failedDocuments.incrementAndGet();
+          }
+        }
+      }
+      ship();
+      sync(false);
+    }
+
+    /**
+     * Send the documents in the journal, the committed position only advances
+     * after a successful bulk request. Documents still rejected after the last
+     * retry are appended to the journal again and shipping stops until the next
+     * cycle, as it does while the circuit breaker is open.
+     */
+    private void ship() {
+      try {
+        while (journal.hasUnread() && breaker.allowRequest(System.currentTimeMillis())) {
+          batch.clear();
+          final int maxBytes = parent.maxBatchBytes;
+          if (journal.read(batch, breaker.isHalfOpen() ? 1 : events.length,
+              maxBytes > 0 ? maxBytes : Integer.MAX_VALUE) == 0) {
+            break;
+          }
+          try {
+            sender.send(batch, leftovers);
+          } catch (IOException e) {
+            LogLog.debug("Could not send " + batch.getCount() + " journaled documents: " + e);
+            journal.rewind();
+            break;
+          }
+          for (int i = 0; i < leftovers.getCount(); i++) {
+            journal.append(leftovers.array(), leftovers.documentOffset(i), leftovers.documentLength(i));
+          }
+          journal.commit();
+          if (!leftovers.isEmpty()) {
+            break;
+          }
+        }
+      } catch (IOException e) {
+        journal.rewind();
+      } finally {
+        batch.clear();
+        leftovers.clear();
+      }
+      if (!unjournaled.isEmpty() && !journal.hasUnread() && breaker.allowRequest(System.currentTimeMillis())) {
+        sender.deliver(unjournaled);
+        unjournaled.clear();
+      }
+    }
+
+
+    /**
+     * Force the journal to disk if the sync interval has elapsed.
+     */
+    private void sync(final boolean force) {
+      final long now = System.currentTimeMillis();
+      final long interval = parent.journalSyncInterval;
+      if (force || (interval > 0 && now - lastSync >= interval)) {
+        journal.sync();
+        lastSync = now;
+      }
+    }
+
+    /**
+     * Collect the events dropped since the last call into a summary document.
+     *
+     * @return the summary or null if no events were dropped
+     */
+    private String droppedSummary() {
+      final long[] counts = new long[DROP_LEVELS.length];
+      long total = 0;
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = parent.droppedEvents.getAndSet(i, 0);
+        total += counts[i];
+      }
+      if (total == 0) {
+        return null;
+      }
+
+      final String message = "Too many messages, " + total + " have been dropped";
+      LogLog.warn(message);
+
+      final JsonObject summary = hostData.getCopy();
+      summary.addProperty("@timestamp", System.currentTimeMillis());
+      summary.addProperty("message", message);
+
+      final JsonObject log = new JsonObject();
+      summary.add("log", log);
+      log.addProperty("logger", ElasticsearchBulkAppender.class.getName());
+      log.addProperty("level", Level.WARN.toString());
+
+      final JsonObject overflow = new JsonObject();
+      summary.add("overflow", overflow);
+      overflow.addProperty("policy", parent.overflowPolicy.name());
+      overflow.addProperty("capacity", buffer.capacity());
+
+      final JsonObject dropped = new JsonObject();
+      overflow.add("dropped", dropped);
+      dropped.addProperty("total", total);
+      for (int i = 0; i < counts.length; i++) {
+        dropped.addProperty(DROP_LEVELS[i].toString().toLowerCase(), counts[i]);
+      }
+      return summary.toString() + "\n";
+    }
+
+  }
+
+  /**
+   * Sends bulk requests, retrying rejected documents. Each thread sending
+   * requests has its own.
+   */
+  private static class Sender {
+    private final ElasticsearchBulkAppender parent;
+
+    private final CircuitBreaker breaker;
+
+    /**
+     * Compressor reused for every request, null if compression is disabled.
+     */
+    private GzipOutputStream gzip;
+
+    /**
+     * Rejected documents being retried, two buffers so that each retry can be
+     * built from the previous one.
+     */
+    private final BulkBuffer[] retries = { new BulkBuffer(4 * 1024), new BulkBuffer(4 * 1024) };
+
+    /**
+     * Documents stopped by the circuit breaker, sent again once it allows.
+     */
+    private final BulkBuffer held = new BulkBuffer(4 * 1024);
+
+    /**
+     * Set when the last send stopped retrying because the circuit breaker
+     * refused requests.
+     */
+    private boolean paused;
+
+    /**
+     * Jitter of the retry delays.
+     */
+    private final Random random = new Random();
+
+    /**
+     * Delay requested by the last response with <code>Retry-After</code> in
+     * milliseconds, 0 if none.
+     */
+    private long retryAfter;
+
+    Sender(final ElasticsearchBulkAppender parent) {
+      this.parent = parent;
+      this.breaker = parent.breaker;
+    }
+
+    /**
+     * Send documents, counting them as failed if they can not be sent.
+     */
+    void deliver(final BulkBuffer docs) {
+      try {
+        send(docs, null);
+      } catch (IOException e) {
+        parent.failedDocuments.addAndGet(docs.getCount());
+        LogLog.warn("Could not send " + docs.getCount() + " documents: " + e);
+      }
+    }
+
+    /**
+     * Send documents, waiting while the circuit breaker is open and sending
+     * again what it stopped, so that a pause is not counted as failures. Once
+     * the appender is closed the documents get a last attempt.
+     *
+     * @param docs documents to send, left with those that could not be sent
+     */
+    void deliverWhenAllowed(final BulkBuffer docs) {
+      while (true) {
+        final boolean allowed = awaitBreaker();
+        held.clear();
+        try {
+          send(docs, held);
+        } catch (IOException e) {
+          if (allowed && paused) {
+            LogLog.debug("Holding " + docs.getCount() + " documents while the circuit breaker is open: " + e);
+            continue;
+          }
+          parent.failedDocuments.addAndGet(docs.getCount());
+          LogLog.warn("Could not send " + docs.getCount() + " documents: " + e);
+          return;
+        }
+        if (held.isEmpty()) {
+          return;
+        }
+        if (!allowed || !paused) {
+          parent.failedDocuments.addAndGet(held.getCount());
+          LogLog.warn("Dropping " + held.getCount() + " documents still rejected after " + parent.maxRetries
+              + " retries");
+          return;
+        }
+        docs.clear();
+        for (int i = 0; i < held.getCount(); i++) {
+          docs.addDocument(held, i);
+        }
+      }
+    }
+
+    /**
+     * Wait until the circuit breaker allows requests.
+     *
+     * @return false if the appender was closed meanwhile
+     */
+    private boolean awaitBreaker() {
+      while (!parent.shutdown) {
+        final long now = System.currentTimeMillis();
+        if (breaker.allowRequest(now)) {
+          return true;
+        }
+        // the breaker may stay half open until another thread's probe returns
+        long wait = breaker.getOpenUntil() - now;
+        if (wait <= 0 || wait > parent.timeout) {
+          wait = parent.timeout;
+        }
+        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(Math.max(1, wait)));
+      }
+      return false;
+    }
+
+    /**
+     * Send documents, sending again those rejected with a retryable status or
+     * the whole request if it failed, after a jittered exponential backoff.
+     * Documents rejected with any other status are counted as failed. Retries
+     * stop when the circuit breaker refuses them, setting <code>paused</code>.
+     *
+     * @param docs      documents to send
+     * @param leftovers receives the documents still rejected after the last
+     *                  retry, they are counted as failed if null
+     * @throws IOException if every attempt to send the whole batch failed
+     */
+    private void send(final BulkBuffer docs, final BulkBuffer leftovers) throws IOException {
+      paused = false;
+      BulkBuffer current = docs;
+      for (int attempt = 0;; attempt++) {
+        BulkBuffer retry = current;
+        String reason;
+        IOException failure = null;
+        try {
+          final BulkResponseScanner.Result result = postEvents(current);
+          if (!result.hasErrors()) {
+            breaker.recordSuccess();
+            return;
+          }
+
+          retry = current == retries[0] ? retries[1] : retries[0];
+          retry.clear();
+          int failed = 0;
+          boolean throttled = false;
+          for (int i = 0; i < current.getCount(); i++) {
+            final int status = result.getStatus(i);
+            if (status >= 200 && status < 300) {
+              continue;
+            }
+            if (BulkResponseScanner.isRetryable(status)) {
+              retry.addDocument(current, i);
+              throttled |= status == 429;
+            } else {
+              failed++;
+            }
+          }
+          if (throttled) {
+            parent.throttledRequests.incrementAndGet();
+          }
+          if (failed > 0) {
+            parent.failedDocuments.addAndGet(failed);
+            LogLog.warn(failed + " documents were rejected by Elasticsearch: " + result.getFirstError());
+          }
+          if (retry.getCount() == current.getCount()) {
+            breaker.recordFailure(System.currentTimeMillis(), retryAfter);
+          } else {
+            breaker.recordSuccess();
+          }
+          if (retry.isEmpty()) {
+            return;
+          }
+          reason = result.getFirstError();
+        } catch (IOException e) {
+          breaker.recordFailure(System.currentTimeMillis(), retryAfter);
+          failure = e;
+          reason = e.toString();
+        }
+
+        paused = breaker.isOpen();
+        if (attempt < parent.maxRetries && !paused) {
+          final long delay = backoff(attempt);
+          LogLog.debug("Retrying " + retry.getCount() + " documents in " + delay + " ms: " + reason);
+          if (pause(delay)) {
+            // a retry is a request like any other, it may be the probe
+            paused = !breaker.allowRequest(System.currentTimeMillis());
+            if (!paused) {
+              parent.retriedDocuments.addAndGet(retry.getCount());
+              current = retry;
+              continue;
+            }
+          }
+        }
+        if (failure != null && current == docs) {
+          throw failure;
+        }
+        giveUp(retry, leftovers, "still rejected after " + attempt + " retries: " + reason);
+        return;
+      }
+    }
+
+    /**
+     * Compute the delay before a retry: exponential, with equal jitter so that
+     * several appenders do not retry in lockstep, and never shorter than what
+     * the server asked for.
+     *
+     * @param attempt number of the failed attempt, from 0
+     * @return the delay in milliseconds
+     */
+    private long backoff(final int attempt) {
+      long delay = parent.retryBackoff << Math.min(attempt, 20);
+      if (delay <= 0 || delay > parent.maxRetryBackoff) {
+        delay = parent.maxRetryBackoff;
+      }
+      final long half = delay / 2;
+      delay = half + (long) (random.nextDouble() * (delay - half));
+      return Math.max(delay, retryAfter);
+    }
+
+    /**
+     * Wait before a retry.
+     *
+     * @return false if the appender was closed meanwhile
+     */
+    private boolean pause(final long millis) {
+      final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+      while (!parent.shutdown) {
+        final long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return true;
+        }
+        LockSupport.parkNanos(this, remaining);
+      }
+      return false;
+    }
+
+    /**
+     * Stop retrying documents.
+     */
+    private void giveUp(final BulkBuffer docs, final BulkBuffer leftovers, final String reason) {
+      if (leftovers != null) {
+        for (int i = 0; i < docs.getCount(); i++) {
+          leftovers.addDocument(docs, i);
+        }
+        return;
       }
+      parent.failedDocuments.addAndGet(docs.getCount());
+      LogLog.warn("Dropping " + docs.getCount() + " documents, " + reason);
     }
 
+
     /**
      * POST a request to the url
      *
-     * @param doc
+     * @param docs documents to send
+     * @return the status of every document
      * @throws IOException if an I/O exception occurs while creating/writing/
-     *                     reading the request
+     *                     reading the request, or if the request failed for a
+     *                     reason unrelated to its documents
      */
-    public void postEvents(final String[] docs) throws IOException {
+    public BulkResponseScanner.Result postEvents(final BulkBuffer docs) throws IOException {
       URL bulkURL = parent.getBulkURL();
-      if (bulkURL == null)
-        return;
+      final NodePool nodes = parent.nodes;
+      if (bulkURL == null || nodes == null)
+        throw new IOException("Appender is not active");
 
-      final HttpURLConnection connection = (HttpURLConnection) bulkURL.openConnection();
-
-      final String username = parent.getUsername();
-      final String password = parent.getPassword();
-      if (username != null && password != null) {
-        final String userpass = username + ":" + password;
-        final String basicAuth = "Basic " + new String(new Base64().encode(userpass.getBytes()));
-        connection.setRequestProperty("Authorization", basicAuth);
-      }
-      connection.setDoInput(true);
-      connection.setDoOutput(true);
-      connection.setRequestMethod("POST");
-      connection.setRequestProperty("Content-Type", "application/x-ndjson");
-      final StringBuffer data = new StringBuffer();
-      final String emptyJSON = "{\"index\":{}}\n";
-      for (final String doc : docs) {
-        data.append(emptyJSON);
-        data.append(doc);
-      }
-      final String dataString = data.toString();
-      final OutputStream outputStream = connection.getOutputStream();
-      LogLog.debug(dataString);
-      outputStream.write(dataString.getBytes(UTF8_CHARSET));
-      outputStream.close();
-      final int responseCode = connection.getResponseCode();
-      InputStream inputStream;
-      if (responseCode == HttpURLConnection.HTTP_OK) {
-        inputStream = connection.getInputStream();
-        String result = parent.toString(inputStream);
-        LogLog.debug(result);
+      final RequestBody body;
+      if (COMPRESSION_GZIP.equals(parent.compression)) {
+        if (gzip == null) {
+          gzip = new GzipOutputStream(parent.compressionLevel);
+        }
+        body = docs.body(gzip);
       } else {
-        inputStream = connection.getErrorStream();
-        String result = parent.toString(inputStream);
-        LogLog.error(result);
+        body = docs.body();
+      }
+      LogLog.debug("Sending " + docs.getCount() + " documents, " + docs.getLength() + " bytes");
+      retryAfter = 0;
+      final HttpResponse response = nodes.execute("POST", bulkURL.getFile() + "?" + BulkResponseScanner.FILTER_PATH,
+          body);
+      try {
+        final int responseCode = response.getStatus();
+        if (responseCode == HttpURLConnection.HTTP_OK) {
+          return BulkResponseScanner.scan(response.getBody(), docs.getCount());
+        }
+        retryAfter = parseRetryAfter(response.getHeader("Retry-After"));
+        final String error = response.readBody();
+        // back-pressure or a bad payload concern the documents, anything else
+        // (authentication, missing index, server error) is a failed request
+        if (BulkResponseScanner.isRetryable(responseCode) || responseCode == HttpURLConnection.HTTP_BAD_REQUEST
+            || responseCode == HttpURLConnection.HTTP_ENTITY_TOO_LARGE) {
+          return BulkResponseScanner.failed(responseCode, error);
+        }
+        LogLog.error(error);
+        throw new IOException("Bulk request failed with status " + responseCode);
+      } finally {
+        response.close();
+      }
+    }
+
+    /**
+     * Parse a <code>Retry-After</code> header given in seconds, HTTP dates are
+     * ignored.
+     *
+     * @return the delay in milliseconds, 0 if none
+     */
+    private static long parseRetryAfter(final String value) {
+      if (value == null) {
+        return 0;
+      }
+      try {
+        return Math.max(0, Long.parseLong(value.trim()) * 1000);
+      } catch (final NumberFormatException e) {
+        return 0;
       }
-      if (inputStream != null) {
-        inputStream.close();
+    }
+
+    void close() {
+      if (gzip != null) {
+        gzip.close();
+      }
+    }
+  }
+
+  /**
+   * Sends the batches of one queue.
+   */
+  private static class Worker implements Runnable {
+    private final Sender sender;
+
+    private final BlockingQueue<BulkBuffer> queue;
+
+    private final BlockingQueue<BulkBuffer> free;
+
+    Worker(final Sender sender, final BlockingQueue<BulkBuffer> queue, final BlockingQueue<BulkBuffer> free) {
+      this.sender = sender;
+      this.queue = queue;
+      this.free = free;
+    }
+
+    public void run() {
+      while (true) {
+        final BulkBuffer docs;
+        try {
+          docs = queue.take();
+        } catch (final InterruptedException e) {
+          break;
+        }
+        if (docs == STOP) {
+          break;
+        }
+        sender.deliverWhenAllowed(docs);
+        docs.clear();
+        free.offer(docs);
       }
+      sender.close();
     }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2020-2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Author: Guillermo Adrián Molina <guillermoadrianmolina@hotmail.com>
+
+package org.apache.log4j.elasticsearch;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, pre-allocated, lock-free ring buffer.
+ *
+ * <p>
+ * Any number of threads may offer elements concurrently. Elements are normally
+ * removed by a single consumer, but removal is also safe from producers, which
+ * is how the oldest element is evicted in O(1) when the buffer is full.
+ *
+ * <p>
+ * Every slot carries a sequence number that tells producers and consumers
+ * whether the slot is free for the current lap, so enqueueing and dequeueing
+ * are a couple of CAS operations and never take a lock.
+ */
+public class EventRingBuffer<E> {
+  private final int capacity;
+  private final int mask;
+  private final AtomicReferenceArray<E> elements;
+  private final AtomicLongArray sequences;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+
+  /**
+   * Selects the elements {@link #replace} may evict.
+   */
+  public interface Matcher<E> {
+    boolean matches(E element);
+  }
+
+  /**
+   * Create a new ring buffer.
+   *
+   * @param capacity minimum number of elements held, rounded up to the next
+   *                 power of two
+   */
+  public EventRingBuffer(final int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    }
+    int size = 1;
+    while (size < capacity) {
+      size <<= 1;
+    }
+    this.capacity = size;
+    this.mask = size - 1;
+    this.elements = new AtomicReferenceArray<E>(size);
+    this.sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * Add an element at the tail of the buffer.
+   *
+   * @param element element to add, may not be null
+   * @return false if the buffer is full
+   */
+  public boolean offer(final E element) {
+    while (true) {
+      final long position = tail.get();
+      final int index = (int) position & mask;
+      final long difference = sequences.get(index) - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          elements.lazySet(index, element);
+          sequences.set(index, position + 1);
+          return true;
+        }
+      } else if (difference < 0) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Remove the element at the head of the buffer.
+   *
+   * @return the oldest element or null if the buffer is empty
+   */
+  public E poll() {
+    while (true) {
+      final long position = head.get();
+      final int index = (int) position & mask;
+      final long difference = sequences.get(index) - (position + 1);
+      if (difference == 0) {
+        if (head.compareAndSet(position, position + 1)) {
+          // getAndSet so that a concurrent replace either wins or fails
+          final E element = elements.getAndSet(index, null);
+          sequences.set(index, position + capacity);
+          return element;
+        }
+      } else if (difference < 0) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Put an element in the slot of the oldest buffered element a matcher
+   * selects, so that a full buffer can make room for an element by evicting a
+   * less important one. The element takes the place, and the turn, of the
+   * evicted one.
+   *
+   * @param matcher selects the elements that may be evicted
+   * @param element element to add, may not be null
+   * @return the evicted element, or null if no element matched
+   */
+  public E replace(final Matcher<? super E> matcher, final E element) {
+    final long end = tail.get();
+    for (long position = Math.max(head.get(), end - capacity); position < end; position++) {
+      final int index = (int) position & mask;
+      final E current = elements.get(index);
+      if (current != null && sequences.get(index) == position + 1 && matcher.matches(current)
+          && elements.compareAndSet(index, current, element)) {
+        return current;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Move up to <code>max</code> elements, oldest first, into
+   * <code>target</code>.
+   *
+   * @param target array receiving the elements from index 0
+   * @param max    maximum number of elements to move
+   * @return the number of elements moved
+   */
+  public int drainTo(final E[] target, final int max) {
+    final int limit = Math.min(max, target.length);
+    int count = 0;
+    while (count < limit) {
+      final E element = poll();
+      if (element == null) {
+        break;
+      }
+      target[count++] = element;
+    }
+    return count;
+  }
+
+  /**
+   * @return an estimate of the number of elements in the buffer
+   */
+  public int size() {
+    final long size = tail.get() - head.get();
+    if (size < 0) {
+      return 0;
+    }
+    return (int) Math.min(size, capacity);
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2020-2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Author: Guillermo Adrián Molina <guillermoadrianmolina@hotmail.com>
+
+package org.apache.log4j.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * The <code>UserFields</code> and <code>MDCProperties</code> of a
+ * {@link JSONEventLayout}, parsed once.
+ *
+ * <p>
+ * User fields are <code>key:value</code> pairs separated by commas, the key
+ * being a dotted path. A value in parentheses is a regular expression, the
+ * field is set to the logger name when it matches. Otherwise the value is a
+ * number when it parses as an integer, or a string. MDC properties are
+ * <code>key:mdcKey</code> pairs, the field is set to the value of the MDC
+ * entry when there is one.
+ *
+ * <p>
+ * The system properties {@link JSONEventLayout#ADDITIONAL_DATA_PROPERTY} and
+ * {@link JSONEventLayout#ADDITIONAL_MDC_PROPERTY} are read when the plan is
+ * compiled: the user fields of the first are set after the configured ones,
+ * the MDC properties of the second replace the configured ones.
+ *
+ * <p>
+ * The user fields set for a logger are resolved once, so that patterns are
+ * only matched the first time a logger is seen, up to
+ * {@link #MAX_CACHED_LOGGERS} loggers.
+ *
+ * <p>
+ * Immutable, apart from that cache, and thread safe.
+ */
+public final class FieldPlan {
+  /**
+   * Maximum number of logger names whose user fields are kept, patterns are
+   * matched for every event of the loggers seen after that.
+   */
+  public static final int MAX_CACHED_LOGGERS = 8192;
+
+  private static final String WHOAMI = JSONEventLayout.class.getSimpleName();
+
+  private final UserField[] userFields;
+  private final boolean hasPatterns;
+  /**
+   * The constant user fields, set for events without a logger name.
+   */
+  private final UserField[] constantFields;
+  private final ConcurrentMap<String, UserField[]> byLogger = new ConcurrentHashMap<String, UserField[]>();
+  private final String[][] mdcPaths;
+  private final String[] mdcKeys;
+
+  /**
+   * A user field: a constant, or the logger name when it matches a pattern.
+   */
+  private static final class UserField {
+    private final String[] path;
+    private final Pattern pattern;
+    private final String text;
+    private final long number;
+
+    private UserField(final String[] path, final Pattern pattern, final String text, final long number) {
+      this.path = path;
+      this.pattern = pattern;
+      this.text = text;
+      this.number = number;
+    }
+
+    private void write(final JsonTree tree, final String loggerName) {
+      final int object = tree.path(path, path.length - 1);
+      final String key = path[path.length - 1];
+      if (pattern != null) {
+        tree.put(object, key, loggerName);
+      } else if (text != null) {
+        tree.put(object, key, text);
+      } else {
+        tree.put(object, key, number);
+      }
+    }
+  }
+
+  private FieldPlan(final List<UserField> userFields, final List<String[]> mdcFields) {
+    this.userFields = userFields.toArray(new UserField[userFields.size()]);
+    final List<UserField> constants = new ArrayList<UserField>(userFields.size());
+    for (final UserField field : this.userFields) {
+      if (field.pattern == null) {
+        constants.add(field);
+      }
+    }
+    hasPatterns = constants.size() < this.userFields.length;
+    constantFields = constants.toArray(new UserField[constants.size()]);
+    mdcPaths = new String[mdcFields.size()][];
+    mdcKeys = new String[mdcFields.size()];
+    for (int i = 0; i < mdcKeys.length; i++) {
+      final String[] field = mdcFields.get(i);
+      mdcPaths[i] = field[0].split("\\.");
+      mdcKeys[i] = field[1];
+    }
+  }
+
+  /**
+   * Parse the fields of a layout and of the system properties.
+   *
+   * @param userFields    configured user fields, may be null
+   * @param mdcProperties configured MDC properties, may be null
+   */
+  public static FieldPlan compile(final String userFields, final String mdcProperties) {
+    final List<UserField> fields = new ArrayList<UserField>();
+    parseUserFields(fields, userFields);
+
+    final String systemFields = System.getProperty(JSONEventLayout.ADDITIONAL_DATA_PROPERTY);
+    if (systemFields != null) {
+      if (userFields != null) {
+        LogLog.warn("[" + WHOAMI
+            + "] Loading UserFields from command-line. This will override any UserFields set in the log4j configuration file");
+      }
+      LogLog.debug("[" + WHOAMI + "] Got user data from system property: " + systemFields);
+      parseUserFields(fields, systemFields);
+    }
+
+    String mdcProps = mdcProperties;
+    final String systemMdc = System.getProperty(JSONEventLayout.ADDITIONAL_MDC_PROPERTY);
+    if (systemMdc != null) {
+      if (mdcProps != null) {
+        LogLog.warn("[" + WHOAMI
+            + "] Loading mdcProperties from command-line. This will override any mdcProperties set in the log4j configuration file");
+      }
+      mdcProps = systemMdc;
+      LogLog.debug("[" + WHOAMI + "] Got user data from system property: " + mdcProps);
+    }
+
+    return new FieldPlan(fields, pairs(mdcProps, "mdcProperties"));
+  }
+
+  private static void parseUserFields(final List<UserField> fields, final String data) {
+    for (final String[] pair : pairs(data, "UserFields")) {
+      final String[] path = pair[0].split("\\.");
+      final String val = pair[1];
+      if (val.startsWith("(") && val.endsWith(")") && val.length() > 1) {
+        try {
+          fields.add(new UserField(path, Pattern.compile(val), null, 0));
+        } catch (final PatternSyntaxException e) {
+          LogLog.warn("[" + WHOAMI + "] Ignoring user field " + pair[0] + ", invalid pattern " + val, e);
+        }
+      } else {
+        try {
+          fields.add(new UserField(path, null, null, Integer.parseInt(val)));
+        } catch (final NumberFormatException e) {
+          fields.add(new UserField(path, null, val, 0));
+        }
+      }
+    }
+  }
+
+  /**
+   * Split a list of <code>key:value</code> pairs.
+   */
+  private static List<String[]> pairs(final String data, final String option) {
+    final List<String[]> pairs = new ArrayList<String[]>();
+    if (data != null) {
+      for (final String pair : data.split(",")) {
+        final String[] field = pair.split(":", 2);
+        if (field.length < 2) {
+          LogLog.warn("[" + WHOAMI + "] Ignoring " + option + " entry without a value: " + pair);
+        } else {
+          pairs.add(field);
+        }
+      }
+    }
+    return pairs;
+  }
+
+  /**
+   * Set the fields of an event.
+   */
+  public void write(final JsonTree tree, final LoggingEvent event) {
+    final String loggerName = event.getLoggerName();
+    for (final UserField field : userFields(loggerName)) {
+      field.write(tree, loggerName);
+    }
+    for (int i = 0; i < mdcKeys.length; i++) {
+      final Object val = event.getMDC(mdcKeys[i]);
+      if (val != null) {
+        final String[] path = mdcPaths[i];
+        tree.put(tree.path(path, path.length - 1), path[path.length - 1], String.valueOf(val));
+      }
+    }
+  }
+
+  /**
+   * @return the user fields set for a logger: the constants and the patterns
+   *         matching its name, in order
+   */
+  private UserField[] userFields(final String loggerName) {
+    if (!hasPatterns) {
+      return userFields;
+    }
+    if (loggerName == null) {
+      return constantFields;
+    }
+    UserField[] fields = byLogger.get(loggerName);
+    if (fields == null) {
+      final List<UserField> matched = new ArrayList<UserField>(userFields.length);
+      for (final UserField field : userFields) {
+        if (field.pattern == null || field.pattern.matcher(loggerName).matches()) {
+          matched.add(field);
+        }
+      }
+      fields = matched.toArray(new UserField[matched.size()]);
+      if (byLogger.size() < MAX_CACHED_LOGGERS) {
+        byLogger.put(loggerName, fields);
+      }
+    }
+    return fields;
+  }
+
+  /**
+   * @return the number of logger names whose user fields are cached
+   */
+  int getCachedLoggers() {
+    return byLogger.size();
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2020-2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Author: Guillermo Adrián Molina <guillermoadrianmolina@hotmail.com>
+
+package org.apache.log4j.elasticsearch;
+
+import java.util.TimeZone;
+
+import org.apache.commons.lang.time.FastDateFormat;
+
+/**
+ * Formatter of UTC timestamps as <code>yyyy-MM-dd'T'HH:mm:ss.SSS'Z'</code>.
+ *
+ * <p>
+ * The date and time up to the seconds is formatted once per second and
+ * reused, only the milliseconds are written for every timestamp. Events
+ * mostly come in time order, so that is nearly always the case.
+ *
+ * <p>
+ * Thread safe.
+ */
+public class IsoTimestamp {
+  private static final FastDateFormat SECONDS = FastDateFormat.getInstance("yyyy-MM-dd'T'HH:mm:ss.",
+      TimeZone.getTimeZone("UTC"));
+
+  /**
+   * A second and its formatted prefix.
+   */
+  private static final class Second {
+    private final long second;
+    private final String prefix;
+
+    private Second(final long second) {
+      this.second = second;
+      this.prefix = SECONDS.format(second * 1000);
+    }
+  }
+
+  private volatile Second last = new Second(0);
+
+  /**
+   * @param timestamp milliseconds since the epoch
+   * @return the formatted timestamp
+   */
+  public String format(final long timestamp) {
+    long second = timestamp / 1000;
+    if (timestamp < 0 && second * 1000 != timestamp) {
+      second--;
+    }
+    Second cached = last;
+    if (cached.second != second) {
+      cached = new Second(second);
+      last = cached;
+    }
+    final int millis = (int) (timestamp - second * 1000);
+    final String prefix = cached.prefix;
+    final int length = prefix.length();
+    final char[] text = new char[length + 4];
+    prefix.getChars(0, length, text, 0);
+    text[length] = (char) ('0' + millis / 100);
+    text[length + 1] = (char) ('0' + millis / 10 % 10);
+    text[length + 2] = (char) ('0' + millis % 10);
+    text[length + 3] = 'Z';
+    return new String(text);
+  }
+}
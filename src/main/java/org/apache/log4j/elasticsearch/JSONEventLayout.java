@@ -23,9 +23,12 @@ https://github.com/logstash/log4j-jsonevent-layout/blob/master/src/main/java/net
 
 package org.apache.log4j.elasticsearch;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.TimeZone;
 
-import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.time.FastDateFormat;
 import org.apache.log4j.Layout;
 import org.apache.log4j.elasticsearch.data.HostData;
@@ -35,11 +38,18 @@ import org.apache.log4j.spi.LoggingEvent;
 import org.apache.log4j.spi.ThrowableInformation;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonElement;
+import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
-public class JSONEventLayout extends Layout {
+public class JSONEventLayout extends Layout implements ByteLayout {
     private boolean locationInfo = false;
+    private boolean isoTimestamp = false;
+    private boolean eventCreated = false;
+    private int stackTraceMaxDepth = 0;
+    private int stackTraceMaxLength = 0;
+    private boolean fingerprint = false;
+    private long stackTraceDedupWindow = 0;
     private String customUserFields;
     private String customMDCProperties;
 
@@ -47,8 +57,74 @@ public class JSONEventLayout extends Layout {
 
     private boolean activeIgnoreThrowable = ignoreThrowable;
     private final HostData hostData = new HostData();
+
+    /**
+     * User fields and MDC properties, compiled on first use and again by
+     * activateOptions, so that system properties are read then.
+     */
+    private volatile FieldPlan plan;
+
+    /**
+     * Stack trace writer, built on first use when one of the stack trace
+     * options is set, null otherwise.
+     */
+    private volatile ThrowableEncoder throwableEncoder;
+    private volatile boolean throwableEncoderBuilt;
     // private String ndc;
 
+    private static final String TIMESTAMP_EPOCH = "epoch";
+    private static final String TIMESTAMP_ISO = "iso";
+    private static final IsoTimestamp ISO_TIMESTAMP = new IsoTimestamp();
+
+    private static final String[] THREAD_NAME_PATH = { "process", "thread", "name" };
+    private static final String[] NDC_PATH = { "jboss", "ndc" };
+
+    /**
+     * Serializes the other values, escaping them like a Gson tree does.
+     */
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+
+    /**
+     * Per thread document and text buffers, reused for every event so that
+     * several threads may format concurrently.
+     */
+    private static class Buffers {
+        /**
+         * Buffers larger than this are not kept between events.
+         */
+        private static final int MAX_RETAINED = 64 * 1024;
+
+        private final JsonTree tree = new JsonTree();
+        private StringBuilder text = new StringBuilder(1024);
+
+        /**
+         * Encoded text, written out a chunk at a time.
+         */
+        private final byte[] bytes = new byte[8 * 1024];
+
+        void trim() {
+            if (text.capacity() > MAX_RETAINED) {
+                text = new StringBuilder(1024);
+            }
+        }
+    }
+
+    private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    /**
+     * Last formatted event, only kept for toString(). Not volatile, so that
+     * threads formatting at once do not pay for a memory barrier per event.
+     */
+    private String lastEvent;
+
+    /**
+     * Last formatted event as modified by the public addEventData and
+     * addUserFields methods, parsed on demand.
+     */
     private JsonObject jsonEvent;
 
     public static final TimeZone UTC = TimeZone.getTimeZone("UTC");
@@ -58,7 +134,7 @@ public class JSONEventLayout extends Layout {
     public static final String ADDITIONAL_MDC_PROPERTY = "org.apache.log4j.elasticsearch.JSONEventLayout.MDCProperties";
 
     public static String dateFormat(final long timestamp) {
-        return ISO_DATETIME_TIME_ZONE_FORMAT_WITH_MILLIS.format(timestamp);
+        return ISO_TIMESTAMP.format(timestamp);
     }
 
     /**
@@ -81,41 +157,160 @@ public class JSONEventLayout extends Layout {
     }
 
     public String format(final LoggingEvent loggingEvent) {
-        final Long timestamp = loggingEvent.timeStamp;
+        final Buffers buffers = this.buffers.get();
+        final StringBuilder out = render(loggingEvent, buffers);
+        final String result = out.toString();
+        buffers.trim();
+        this.lastEvent = result;
+        if (this.jsonEvent != null) {
+            synchronized (this) {
+                this.jsonEvent = null;
+            }
+        }
+        return result + "\n";
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * Unlike format, the event is not kept for toString().
+     */
+    public int encode(final LoggingEvent loggingEvent, final OutputStream out) throws IOException {
+        final Buffers buffers = this.buffers.get();
+        final StringBuilder text = render(loggingEvent, buffers);
+        text.append('\n');
+        final byte[] bytes = buffers.bytes;
+        final int chunk = bytes.length / 3;
+        final int length = text.length();
+        int written = 0;
+        for (int start = 0; start < length;) {
+            final int end = chunkEnd(text, start, chunk);
+            final int size = Utf8.encode(text, start, end, bytes, 0);
+            out.write(bytes, 0, size);
+            written += size;
+            start = end;
+        }
+        buffers.trim();
+        return written;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * Unlike format, the event is not kept for toString().
+     */
+    public int encode(final LoggingEvent loggingEvent, final ByteBuffer out) {
+        final Buffers buffers = this.buffers.get();
+        final StringBuilder text = render(loggingEvent, buffers);
+        text.append('\n');
+        final byte[] bytes = buffers.bytes;
+        final int chunk = bytes.length / 3;
+        final int length = text.length();
+        final int position = out.position();
+        try {
+            for (int start = 0; start < length;) {
+                final int end = chunkEnd(text, start, chunk);
+                out.put(bytes, 0, Utf8.encode(text, start, end, bytes, 0));
+                start = end;
+            }
+        } catch (final BufferOverflowException e) {
+            out.position(position);
+            throw e;
+        } finally {
+            buffers.trim();
+        }
+        return out.position() - position;
+    }
+
+    /**
+     * @return the end of a chunk of at most <code>chunk</code> characters, not
+     *         splitting a surrogate pair
+     */
+    private static int chunkEnd(final CharSequence text, final int start, final int chunk) {
+        int end = Math.min(text.length(), start + chunk);
+        if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Build the document of an event and write it, without the final new line.
+     *
+     * @return the text buffer of this thread, holding the document
+     */
+    private StringBuilder render(final LoggingEvent loggingEvent, final Buffers buffers) {
+        final long timestamp = loggingEvent.timeStamp;
         final String loggerName = loggingEvent.getLoggerName();
-        final String whoami = this.getClass().getSimpleName();
 
-        jsonEvent = hostData.getCopy();
+        final JsonTree jsonEvent = buffers.tree;
+        jsonEvent.reset(hostData.getFragment());
 
-        jsonEvent.addProperty("@timestamp", timestamp);
-        jsonEvent.addProperty("message", loggingEvent.getRenderedMessage());
+        if (isoTimestamp) {
+            jsonEvent.put(JsonTree.ROOT, "@timestamp", ISO_TIMESTAMP.format(timestamp));
+        } else {
+            jsonEvent.put(JsonTree.ROOT, "@timestamp", timestamp);
+        }
+        jsonEvent.put(JsonTree.ROOT, "message", loggingEvent.getRenderedMessage());
 
         if (!activeIgnoreThrowable && loggingEvent.getThrowableInformation() != null) {
             final ThrowableInformation throwableInformation = loggingEvent.getThrowableInformation();
             final String type = throwableInformation.getThrowable().getClass().getCanonicalName();
             final String message = throwableInformation.getThrowable().getMessage();
-            final String[] stackTrace = throwableInformation.getThrowableStrRep();
+            final ThrowableEncoder encoder = throwableEncoder();
+            final String[] stackTrace = encoder == null ? throwableInformation.getThrowableStrRep() : null;
 
-            if (type != null || message != null || stackTrace != null) {
-                final JsonObject error = new JsonObject();
-                jsonEvent.add("error", error);
+            if (type != null || message != null || stackTrace != null || encoder != null) {
+                final int error = jsonEvent.newObject(JsonTree.ROOT, "error");
 
                 if (type != null)
-                    error.addProperty("type", type);
+                    jsonEvent.put(error, "type", type);
                 if (message != null)
-                    error.addProperty("message", message.replace("\"", "\\\""));
-                if (stackTrace != null) {
-                    if (stackTrace.length >= 1)
-                        stackTrace[0] = stackTrace[0].replace("\"", "\\\"");
-                    error.addProperty("stack_trace", StringUtils.join(stackTrace, "\n"));
+                    jsonEvent.put(error, "message", message.replace("\"", "\\\""));
+                if (encoder != null) {
+                    final Throwable throwable = throwableInformation.getThrowable();
+                    final long fingerprint = encoder.fingerprint(throwable);
+                    if (this.fingerprint || stackTraceDedupWindow > 0) {
+                        jsonEvent.put(error, "fingerprint", ThrowableEncoder.toHex(fingerprint));
+                    }
+                    if (encoder.shouldSend(fingerprint, timestamp)) {
+                        final StringBuilder lines = buffers.text;
+                        lines.setLength(0);
+                        encoder.encode(throwable, lines);
+                        jsonEvent.put(error, "stack_trace", lines.toString());
+                    }
+                } else if (stackTrace != null) {
+                    // the array is shared by every layout formatting the event, it is
+                    // not escaped in place
+                    final StringBuilder lines = buffers.text;
+                    lines.setLength(0);
+                    for (int i = 0; i < stackTrace.length; i++) {
+                        if (i == 0) {
+                            lines.append(stackTrace[0].replace("\"", "\\\""));
+                        } else {
+                            lines.append('\n').append(stackTrace[i]);
+                        }
+                    }
+                    jsonEvent.put(error, "stack_trace", lines.toString());
                 }
             }
         }
 
-        final JsonObject log = new JsonObject();
-        jsonEvent.add("log", log);
-        log.addProperty("logger", loggerName);
-        log.addProperty("level", loggingEvent.getLevel().toString());
+        if (eventCreated) {
+            final int event = jsonEvent.newObject(JsonTree.ROOT, "event");
+            final long now = System.currentTimeMillis();
+            if (isoTimestamp) {
+                jsonEvent.put(event, "created", ISO_TIMESTAMP.format(now));
+            } else {
+                jsonEvent.put(event, "created", now);
+            }
+        }
+
+        final int log = jsonEvent.newObject(JsonTree.ROOT, "log");
+        jsonEvent.put(log, "logger", loggerName);
+        jsonEvent.put(log, "level", loggingEvent.getLevel().toString());
 
         if (locationInfo) {
             final LocationInfo info = loggingEvent.getLocationInformation();
@@ -125,87 +320,33 @@ public class JSONEventLayout extends Layout {
             final String method_name = info.getMethodName();
 
             if (file_name != "?" && line_number != "?" && class_name != "?" && method_name != "?") {
-                final JsonObject origin = new JsonObject();
-                log.add("origin", origin);
-                origin.addProperty("class", class_name);
-                origin.addProperty("function", method_name);
-                final JsonObject file = new JsonObject();
-                origin.add("file", file);
-                file.addProperty("name", file_name);
+                final int origin = jsonEvent.newObject(log, "origin");
+                jsonEvent.put(origin, "class", class_name);
+                jsonEvent.put(origin, "function", method_name);
+                final int file = jsonEvent.newObject(origin, "file");
+                jsonEvent.put(file, "name", file_name);
                 try {
-                    file.addProperty("line", Integer.parseInt(line_number));
+                    jsonEvent.put(file, "line", Integer.parseInt(line_number));
                 } catch (final NumberFormatException e) {
                 }
 
             }
         }
 
-        addEventData("process.thread.name", loggingEvent.getThreadName());
+        addEventData(jsonEvent, THREAD_NAME_PATH, loggingEvent.getThreadName());
 
 
         String ndc = loggingEvent.getNDC();
         if (ndc != null) {
-            addEventData("jboss.ndc", loggingEvent.getThreadName());
-        }
-
-        /**
-         * Extract and add fields from log4j config, if defined
-         */
-        if (getUserFields() != null) {
-            final String userFieldsProperty = getUserFields();
-            addUserFields(userFieldsProperty, loggerName);
-        }
-
-        /**
-         * Extract fields from system properties, if defined Note that CLI props will
-         * override conflicts with log4j config
-         */
-        if (System.getProperty(ADDITIONAL_DATA_PROPERTY) != null) {
-            if (getUserFields() != null) {
-                LogLog.warn("[" + whoami
-                        + "] Loading UserFields from command-line. This will override any UserFields set in the log4j configuration file");
-            }
-            final String userFieldsProperty = System.getProperty(ADDITIONAL_DATA_PROPERTY);
-            LogLog.debug("[" + whoami + "] Got user data from system property: " + userFieldsProperty);
-            addUserFields(userFieldsProperty, loggerName);
-        }
-
-        /**
-         * Extract and add mdc properties from log4j config, if defined
-         */
-        String mdcProps = getMDCProperties();
-
-        /**
-         * Extract mdc properties from system properties, if defined Note that CLI props will
-         * override conflicts with log4j config
-         */
-        if (System.getProperty(ADDITIONAL_MDC_PROPERTY) != null) {
-            if (mdcProps != null) {
-                LogLog.warn("[" + whoami
-                        + "] Loading mdcProperties from command-line. This will override any mdcProperties set in the log4j configuration file");
-            }
-            mdcProps = System.getProperty(ADDITIONAL_MDC_PROPERTY);
-            LogLog.debug("[" + whoami + "] Got user data from system property: " + mdcProps);
-        }
-
-        if (mdcProps != null) {
-            final String[] pairs = mdcProps.split(",");
-            for (final String pair : pairs) {
-                final String[] mdcField = pair.split(":", 2);
-                if (mdcField[0] != null) {
-                    final String key = mdcField[0];
-                    final String mdcKey = mdcField[1];
-
-                    final Object val = loggingEvent.getMDC(mdcKey);
-                    if (val != null) {
-                        addEventData(key, String.valueOf(val));
-                    }
-                }
-            }
+            addEventData(jsonEvent, NDC_PATH, loggingEvent.getThreadName());
         }
 
+        plan().write(jsonEvent, loggingEvent);
 
-        return toString() + "\n";
+        final StringBuilder out = buffers.text;
+        out.setLength(0);
+        jsonEvent.write(out);
+        return out;
     }
 
     public boolean ignoresThrowable() {
@@ -232,8 +373,128 @@ public class JSONEventLayout extends Layout {
         this.locationInfo = locationInfo;
     }
 
+    /**
+     * @return epoch or iso
+     */
+    public String getTimestampFormat() {
+        return isoTimestamp ? TIMESTAMP_ISO : TIMESTAMP_EPOCH;
+    }
+
+    /**
+     * Set how @timestamp and event.created are written: <code>epoch</code>, the
+     * default, as milliseconds since the epoch, or <code>iso</code> as ISO 8601
+     * UTC strings with milliseconds.
+     */
+    public void setTimestampFormat(final String format) {
+        if (TIMESTAMP_ISO.equalsIgnoreCase(format)) {
+            isoTimestamp = true;
+        } else if (TIMESTAMP_EPOCH.equalsIgnoreCase(format)) {
+            isoTimestamp = false;
+        } else {
+            LogLog.warn("Unknown TimestampFormat [" + format + "], using " + getTimestampFormat());
+        }
+    }
+
+    public boolean getEventCreated() {
+        return eventCreated;
+    }
+
+    /**
+     * Set whether to add event.created, the time the event is formatted.
+     */
+    public void setEventCreated(final boolean eventCreated) {
+        this.eventCreated = eventCreated;
+    }
+
+    public int getStackTraceMaxDepth() {
+        return stackTraceMaxDepth;
+    }
+
+    /**
+     * Set the number of frames written per throwable, the other ones are
+     * collapsed. 0, the default, writes them all.
+     */
+    public void setStackTraceMaxDepth(final int stackTraceMaxDepth) {
+        this.stackTraceMaxDepth = stackTraceMaxDepth;
+        resetThrowableEncoder();
+    }
+
+    public int getStackTraceMaxLength() {
+        return stackTraceMaxLength;
+    }
+
+    /**
+     * Set the maximum number of characters of error.stack_trace, 0, the default,
+     * for no limit.
+     */
+    public void setStackTraceMaxLength(final int stackTraceMaxLength) {
+        this.stackTraceMaxLength = stackTraceMaxLength;
+        resetThrowableEncoder();
+    }
+
+    public boolean getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Set whether to add error.fingerprint, a hash identifying the stack trace.
+     */
+    public void setFingerprint(final boolean fingerprint) {
+        this.fingerprint = fingerprint;
+        resetThrowableEncoder();
+    }
+
+    public long getStackTraceDedupWindow() {
+        return stackTraceDedupWindow;
+    }
+
+    /**
+     * Set the milliseconds during which the stack trace of a fingerprint is only
+     * sent once, later events carry the fingerprint without the stack trace. 0,
+     * the default, always sends it.
+     */
+    public void setStackTraceDedupWindow(final long stackTraceDedupWindow) {
+        this.stackTraceDedupWindow = stackTraceDedupWindow;
+        resetThrowableEncoder();
+    }
+
+    private void resetThrowableEncoder() {
+        throwableEncoderBuilt = false;
+    }
+
+    /**
+     * @return the stack trace writer, null when the stack trace options are not
+     *         set
+     */
+    private ThrowableEncoder throwableEncoder() {
+        if (!throwableEncoderBuilt) {
+            if (stackTraceMaxDepth > 0 || stackTraceMaxLength > 0 || fingerprint || stackTraceDedupWindow > 0) {
+                throwableEncoder = new ThrowableEncoder(stackTraceMaxDepth, stackTraceMaxLength,
+                        stackTraceDedupWindow);
+            } else {
+                throwableEncoder = null;
+            }
+            throwableEncoderBuilt = true;
+        }
+        return throwableEncoder;
+    }
+
     public void activateOptions() {
         activeIgnoreThrowable = ignoreThrowable;
+        plan = FieldPlan.compile(customUserFields, customMDCProperties);
+    }
+
+    /**
+     * @return the compiled user fields and MDC properties, compiled now if the
+     *         options changed since
+     */
+    private FieldPlan plan() {
+        FieldPlan plan = this.plan;
+        if (plan == null) {
+            plan = FieldPlan.compile(customUserFields, customMDCProperties);
+            this.plan = plan;
+        }
+        return plan;
     }
 
     public String getUserFields() {
@@ -242,9 +503,16 @@ public class JSONEventLayout extends Layout {
 
     public void setUserFields(final String userFields) {
         this.customUserFields = userFields;
+        this.plan = null;
     }
 
-    public void addUserFields(final String data, final String loggerName) {
+    public synchronized void addUserFields(final String data, final String loggerName) {
+        final JsonTree tree = JsonTree.of(lastEvent());
+        addUserFields(tree, data, loggerName);
+        jsonEvent = JsonParser.parseString(toString(tree)).getAsJsonObject();
+    }
+
+    private static void addUserFields(final JsonTree jsonEvent, final String data, final String loggerName) {
         if (null != data) {
             final String[] pairs = data.split(",");
             for (final String pair : pairs) {
@@ -255,13 +523,13 @@ public class JSONEventLayout extends Layout {
 
                     if (val.matches("\\(.*\\)")) {
                         if (loggerName.matches(val)) {
-                            addEventData(key, loggerName);
+                            addEventData(jsonEvent, key.split("\\."), loggerName);
                         }
                     } else {
                         try {
-                            addEventData(key, Integer.parseInt(val));
+                            addEventData(jsonEvent, key.split("\\."), Integer.parseInt(val));
                         } catch (final NumberFormatException e) {
-                            addEventData(key, val);
+                            addEventData(jsonEvent, key.split("\\."), val);
                         }
                     }
                 }
@@ -269,41 +537,72 @@ public class JSONEventLayout extends Layout {
         }
     }
 
+    public String getHostName() {
+        return hostData.getHostName();
+    }
+
+    /**
+     * Set the host.name field, the local host name by default.
+     */
+    public void setHostName(final String hostName) {
+        hostData.setHostName(hostName);
+    }
+
     public String getMDCProperties() {
         return customMDCProperties;
     }
 
     public void setMDCProperties(final String mdcProperties) {
         this.customMDCProperties = mdcProperties;
+        this.plan = null;
     }
 
     /*
      * public String toString()
      */
-    public String toString() {
-        final String result = jsonEvent.toString();
-        return result;
-    }
-
-    public void addEventData(final String keyname, final Object keyval) {
-        if (null != keyval) {
-            final String[] keys = keyname.split("\\.");
-            JsonObject object = jsonEvent;
-            int i = 0;
-            for (final String key : keys) {
-                if (++i < keys.length) {
-                    final JsonElement innerobject = object.get(key);
-                    if (innerobject != null && innerobject.isJsonObject()) {
-                        object = innerobject.getAsJsonObject();
-                    } else {
-                        final JsonObject newObject = new JsonObject();
-                        object.add(key, newObject);
-                        object = newObject;
-                    }
-                } else {
-                    final Gson gson = new Gson();
-                    object.add(key, gson.toJsonTree(keyval));
-                }
+    public synchronized String toString() {
+        if (jsonEvent != null) {
+            return jsonEvent.toString();
+        }
+        return lastEvent;
+    }
+
+    /**
+     * @return the last formatted event as a Gson object
+     */
+    private JsonObject lastEvent() {
+        if (jsonEvent == null) {
+            jsonEvent = lastEvent == null ? new JsonObject() : JsonParser.parseString(lastEvent).getAsJsonObject();
+        }
+        return jsonEvent;
+    }
+
+    private static String toString(final JsonTree tree) {
+        final StringBuilder out = new StringBuilder();
+        tree.write(out);
+        return out.toString();
+    }
+
+    public synchronized void addEventData(final String keyname, final Object keyval) {
+        final JsonTree tree = JsonTree.of(lastEvent());
+        addEventData(tree, keyname.split("\\."), keyval);
+        jsonEvent = JsonParser.parseString(toString(tree)).getAsJsonObject();
+    }
+
+    /**
+     * Set a member of the event, the keys before the last one are objects
+     * merged with the existing ones.
+     */
+    static void addEventData(final JsonTree jsonEvent, final String[] keys, final Object keyval) {
+        if (null != keyval && keys.length > 0) {
+            final int object = jsonEvent.path(keys, keys.length - 1);
+            final String key = keys[keys.length - 1];
+            if (keyval instanceof String) {
+                jsonEvent.put(object, key, (String) keyval);
+            } else if (keyval instanceof Integer || keyval instanceof Long) {
+                jsonEvent.put(object, key, ((Number) keyval).longValue());
+            } else {
+                jsonEvent.putLiteral(object, key, GSON.toJson(keyval));
             }
         }
     }
@@ -0,0 +1,405 @@
+/*
+ * Copyright 2020-2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Author: Guillermo Adrián Molina <guillermoadrianmolina@hotmail.com>
+
+package org.apache.log4j.elasticsearch;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Reusable JSON document, written straight into a character buffer.
+ *
+ * <p>
+ * Members keep their insertion order and replacing a member keeps its
+ * position, like Gson's <code>JsonObject</code>, and strings are escaped like
+ * Gson's <code>JsonWriter</code>, so the output is the same as
+ * <code>JsonObject.toString()</code>. Nodes live in parallel arrays that are
+ * kept between documents, so building and writing a document allocates nothing
+ * once the arrays are large enough.
+ *
+ * <p>
+ * A document can start from a {@link Fragment}, an object rendered once and
+ * written as is. Members added to it are written after the rendered ones, and
+ * the fragment is only expanded into nodes when one of its own members
+ * changes.
+ *
+ * <p>
+ * This class is not thread safe, each thread should use its own.
+ */
+public class JsonTree {
+  /**
+   * The root object.
+   */
+  public static final int ROOT = 0;
+
+  private static final byte OBJECT = 0;
+  private static final byte STRING = 1;
+  private static final byte NUMBER = 2;
+  private static final byte NULL = 3;
+  private static final byte LITERAL = 4;
+  private static final byte FRAGMENT = 5;
+
+  private static final String[] REPLACEMENT_CHARS = new String[128];
+  static {
+    for (int i = 0; i < 0x20; i++) {
+      REPLACEMENT_CHARS[i] = String.format("\\u%04x", i);
+    }
+    REPLACEMENT_CHARS['"'] = "\\\"";
+    REPLACEMENT_CHARS['\\'] = "\\\\";
+    REPLACEMENT_CHARS['\t'] = "\\t";
+    REPLACEMENT_CHARS['\b'] = "\\b";
+    REPLACEMENT_CHARS['\n'] = "\\n";
+    REPLACEMENT_CHARS['\r'] = "\\r";
+    REPLACEMENT_CHARS['\f'] = "\\f";
+  }
+
+  private int size;
+  private String[] keys;
+  private byte[] types;
+  private String[] strings;
+  private long[] numbers;
+  private int[] firstChild;
+  private int[] lastChild;
+  private int[] next;
+  private Fragment[] fragments;
+
+  /**
+   * Object rendered once, with the members it is made of so that it can be
+   * expanded. Immutable.
+   */
+  public static final class Fragment {
+    private final String members;
+    private final String[] keys;
+
+    /**
+     * Fragment of an object member, or JSON text of any other member.
+     */
+    private final Object[] values;
+
+    private Fragment(final JsonObject object) {
+      final String text = object.toString();
+      members = text.substring(1, text.length() - 1);
+      keys = new String[object.size()];
+      values = new Object[keys.length];
+      int i = 0;
+      for (final Map.Entry<String, JsonElement> entry : object.entrySet()) {
+        keys[i] = entry.getKey();
+        final JsonElement value = entry.getValue();
+        values[i++] = value.isJsonObject() ? new Fragment(value.getAsJsonObject()) : value.toString();
+      }
+    }
+
+    /**
+     * Render an object, it is copied as it is now.
+     */
+    public static Fragment of(final JsonObject object) {
+      return new Fragment(object);
+    }
+
+    /**
+     * @return the members, rendered and escaped, without the braces
+     */
+    public String getMembers() {
+      return members;
+    }
+
+    private boolean has(final String key) {
+      for (final String member : keys) {
+        if (member.equals(key)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  public JsonTree() {
+    allocate(32);
+    clear();
+  }
+
+  /**
+   * Build a tree holding a copy of a Gson object.
+   */
+  public static JsonTree of(final JsonObject object) {
+    final JsonTree tree = new JsonTree();
+    tree.reset(Fragment.of(object));
+    return tree;
+  }
+
+  /**
+   * Remove every member of the root object.
+   */
+  public void clear() {
+    reset(null);
+  }
+
+  /**
+   * Start a new document from the members of a fragment.
+   *
+   * @param root fragment, null for an empty document
+   */
+  public void reset(final Fragment root) {
+    size = 1;
+    next[ROOT] = -1;
+    set(ROOT, root == null ? OBJECT : FRAGMENT);
+    fragments[ROOT] = root;
+  }
+
+  /**
+   * Get the object member of an object, creating it if missing or replacing it,
+   * in place, if it is not an object.
+   *
+   * @return the member
+   */
+  public int object(final int parent, final String key) {
+    final int node = find(parent, key);
+    if (node < 0) {
+      return append(parent, key, OBJECT);
+    }
+    if (types[node] != OBJECT && types[node] != FRAGMENT) {
+      set(node, OBJECT);
+    }
+    return node;
+  }
+
+  /**
+   * Set a member of an object to a new empty object.
+   *
+   * @return the member
+   */
+  public int newObject(final int parent, final String key) {
+    return member(parent, key, OBJECT);
+  }
+
+  /**
+   * Get the object at the end of a path of keys, creating the missing objects.
+   *
+   * @param path   keys from the root
+   * @param length number of keys of the path to follow
+   * @return the object
+   */
+  public int path(final String[] path, final int length) {
+    int node = ROOT;
+    for (int i = 0; i < length; i++) {
+      node = object(node, path[i]);
+    }
+    return node;
+  }
+
+  /**
+   * Set a string member of an object, null is written as null.
+   */
+  public void put(final int parent, final String key, final String value) {
+    if (value == null) {
+      member(parent, key, NULL);
+    } else {
+      strings[member(parent, key, STRING)] = value;
+    }
+  }
+
+  /**
+   * Set a number member of an object.
+   */
+  public void put(final int parent, final String key, final long value) {
+    numbers[member(parent, key, NUMBER)] = value;
+  }
+
+  /**
+   * Set a member of an object to JSON text written as is.
+   */
+  public void putLiteral(final int parent, final String key, final String json) {
+    strings[member(parent, key, LITERAL)] = json;
+  }
+
+  /**
+   * Write the root object.
+   */
+  public void write(final StringBuilder out) {
+    writeObject(out, ROOT);
+  }
+
+  /**
+   * Write a JSON string, escaped like Gson does.
+   */
+  public static void string(final StringBuilder out, final String value) {
+    out.append('"');
+    int last = 0;
+    final int length = value.length();
+    for (int i = 0; i < length; i++) {
+      final char c = value.charAt(i);
+      final String replacement;
+      if (c < 128) {
+        replacement = REPLACEMENT_CHARS[c];
+        if (replacement == null) {
+          continue;
+        }
+      } else if (c == 0x2028) {
+        replacement = "\\u2028";
+      } else if (c == 0x2029) {
+        replacement = "\\u2029";
+      } else {
+        continue;
+      }
+      if (last < i) {
+        out.append(value, last, i);
+      }
+      out.append(replacement);
+      last = i + 1;
+    }
+    if (last < length) {
+      out.append(value, last, length);
+    }
+    out.append('"');
+  }
+
+  private void writeObject(final StringBuilder out, final int object) {
+    out.append('{');
+    boolean first = true;
+    if (types[object] == FRAGMENT && fragments[object].members.length() > 0) {
+      out.append(fragments[object].members);
+      first = false;
+    }
+    for (int node = firstChild[object]; node >= 0; node = next[node]) {
+      if (!first) {
+        out.append(',');
+      }
+      first = false;
+      string(out, keys[node]);
+      out.append(':');
+      switch (types[node]) {
+      case OBJECT:
+      case FRAGMENT:
+        writeObject(out, node);
+        break;
+      case STRING:
+        string(out, strings[node]);
+        break;
+      case NUMBER:
+        out.append(numbers[node]);
+        break;
+      case LITERAL:
+        out.append(strings[node]);
+        break;
+      default:
+        out.append("null");
+      }
+    }
+    out.append('}');
+  }
+
+  /**
+   * Set a member of an object to an empty value of some type, in place if it
+   * exists.
+   */
+  private int member(final int parent, final String key, final byte type) {
+    final int node = find(parent, key);
+    if (node < 0) {
+      return append(parent, key, type);
+    }
+    set(node, type);
+    return node;
+  }
+
+  private int find(final int parent, final String key) {
+    if (types[parent] == FRAGMENT && fragments[parent].has(key)) {
+      expand(parent);
+    }
+    for (int node = firstChild[parent]; node >= 0; node = next[node]) {
+      if (keys[node].equals(key)) {
+        return node;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Turn a fragment into nodes, before the members added to it.
+   */
+  private void expand(final int object) {
+    final Fragment fragment = fragments[object];
+    final int added = firstChild[object];
+    final int lastAdded = lastChild[object];
+    types[object] = OBJECT;
+    fragments[object] = null;
+    firstChild[object] = -1;
+    lastChild[object] = -1;
+    for (int i = 0; i < fragment.keys.length; i++) {
+      final Object value = fragment.values[i];
+      if (value instanceof Fragment) {
+        fragments[append(object, fragment.keys[i], FRAGMENT)] = (Fragment) value;
+      } else {
+        strings[append(object, fragment.keys[i], LITERAL)] = (String) value;
+      }
+    }
+    if (added >= 0) {
+      if (lastChild[object] < 0) {
+        firstChild[object] = added;
+      } else {
+        next[lastChild[object]] = added;
+      }
+      lastChild[object] = lastAdded;
+    }
+  }
+
+  private void set(final int node, final byte type) {
+    types[node] = type;
+    strings[node] = null;
+    fragments[node] = null;
+    firstChild[node] = -1;
+    lastChild[node] = -1;
+  }
+
+  private int append(final int parent, final String key, final byte type) {
+    if (size == keys.length) {
+      allocate(size * 2);
+    }
+    final int node = size++;
+    keys[node] = key;
+    next[node] = -1;
+    set(node, type);
+    if (lastChild[parent] < 0) {
+      firstChild[parent] = node;
+    } else {
+      next[lastChild[parent]] = node;
+    }
+    lastChild[parent] = node;
+    return node;
+  }
+
+  private void allocate(final int capacity) {
+    keys = grow(keys, new String[capacity]);
+    strings = grow(strings, new String[capacity]);
+    types = types == null ? new byte[capacity] : Arrays.copyOf(types, capacity);
+    numbers = numbers == null ? new long[capacity] : Arrays.copyOf(numbers, capacity);
+    firstChild = firstChild == null ? new int[capacity] : Arrays.copyOf(firstChild, capacity);
+    lastChild = lastChild == null ? new int[capacity] : Arrays.copyOf(lastChild, capacity);
+    next = next == null ? new int[capacity] : Arrays.copyOf(next, capacity);
+    fragments = fragments == null ? new Fragment[capacity] : Arrays.copyOf(fragments, capacity);
+  }
+
+  private static String[] grow(final String[] array, final String[] grown) {
+    if (array != null) {
+      System.arraycopy(array, 0, grown, 0, array.length);
+    }
+    return grown;
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2020-2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Author: Guillermo Adrián Molina <guillermoadrianmolina@hotmail.com>
+
+package org.apache.log4j.elasticsearch;
+
+/**
+ * What {@link ElasticsearchBulkAppender} does with an event when its buffer is
+ * full.
+ */
+public enum OverflowPolicy {
+  /**
+   * Block the logging thread until there is room or the block timeout expires,
+   * then drop the new event.
+   */
+  BLOCK,
+
+  /**
+   * Evict the oldest buffered event.
+   */
+  DROP_OLDEST,
+
+  /**
+   * Drop the new event.
+   */
+  DROP_NEWEST,
+
+  /**
+   * Drop the new event if its level is below the overflow level, otherwise evict
+   * the oldest buffered event below that level, the new event taking its place,
+   * or the oldest buffered event if there is none.
+   */
+  DROP_BELOW_LEVEL;
+
+  /**
+   * Parse a policy name, either in constant form (<code>DROP_OLDEST</code>) or in
+   * option form (<code>DropOldest</code>), ignoring case.
+   *
+   * @param name         policy name
+   * @param defaultValue returned when name is null or unknown
+   * @return the policy
+   */
+  public static OverflowPolicy toPolicy(final String name, final OverflowPolicy defaultValue) {
+    if (name == null) {
+      return defaultValue;
+    }
+    final String normalized = name.trim().replace("_", "").replace("-", "");
+    for (final OverflowPolicy policy : values()) {
+      if (policy.name().replace("_", "").equalsIgnoreCase(normalized)) {
+        return policy;
+      }
+    }
+    return defaultValue;
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2020-2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Author: Guillermo Adrián Molina <guillermoadrianmolina@hotmail.com>
+
+package org.apache.log4j.elasticsearch;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Byte array stream reused for every event, whose array can be read without
+ * copying it.
+ */
+public class ReusableOutputStream extends ByteArrayOutputStream {
+  /**
+   * Arrays larger than this are not kept between events.
+   */
+  private static final int MAX_RETAINED = 64 * 1024;
+
+  public ReusableOutputStream() {
+    super(1024);
+  }
+
+  /**
+   * @return the array holding the <code>size()</code> bytes written
+   */
+  public byte[] array() {
+    return buf;
+  }
+
+  /**
+   * Empty the stream, releasing the array if it grew too large.
+   */
+  public void clear() {
+    reset();
+    if (buf.length > MAX_RETAINED) {
+      buf = new byte[1024];
+    }
+  }
+}
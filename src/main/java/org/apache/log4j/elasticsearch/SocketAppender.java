@@ -21,15 +21,32 @@
 
 package org.apache.log4j.elasticsearch;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.log4j.AppenderSkeleton;
 import org.apache.log4j.Layout;
 import org.apache.log4j.helpers.LogLog;
 import org.apache.log4j.net.SocketNode;
+import org.apache.log4j.spi.Filter;
 import org.apache.log4j.spi.LoggingEvent;
 
 /**
@@ -52,9 +69,10 @@ import org.apache.log4j.spi.LoggingEvent;
  * reachable, then log events will eventually arrive at the server.
  * 
  * <p>
- * <li>If the remote server is down, the logging requests are simply dropped.
- * However, if and when the server comes back up, then event transmission is
- * resumed transparently. This transparent reconneciton is performed by a
+ * <li>If the remote server is down, the last <b>BacklogSize</b> logging requests
+ * are kept and the older ones dropped. If and when the server comes back up,
+ * the kept events are sent first and event transmission is resumed
+ * transparently. This transparent reconneciton is performed by a
  * <em>connector</em> thread which periodically attempts to connect to the
  * server.
  * 
@@ -99,6 +117,47 @@ import org.apache.log4j.spi.LoggingEvent;
  * 
  * </ul>
  * 
+ * <p>
+ * The <b>Framing</b> option selects how the formatted events are written:
+ * <code>object</code>, the default, as serialized Java strings, <code>line</code>
+ * as UTF-8 text, one event per line, for the TCP inputs of Logstash or Beats, or
+ * <code>length</code> as UTF-8 text preceded by its length in bytes, as a four
+ * byte big endian integer.
+ * 
+ * <p>
+ * With the <b>Async</b> option, logging threads only put the events in a
+ * bounded queue, dropping them when it is full, and a writer thread sends them
+ * in batches, flushing every <b>FlushSize</b> events or when no more events
+ * came for <b>Linger</b> milliseconds. The application is then never blocked
+ * by a slow or unreachable server.
+ * 
+ * <p>
+ * With a <b>BacklogDirectory</b>, the events beyond <b>BacklogSize</b> spill to
+ * a journal on disk instead of being dropped, and the events still there when
+ * the application stops are sent after the next start. The connector first
+ * retries after <b>MinReconnectionDelay</b> milliseconds, then doubles the
+ * delay after every failed attempt up to <b>ReconnectionDelay</b>, with some
+ * random jitter so that many clients do not reconnect all at once.
+ * 
+ * <p>
+ * With the <b>Protocol</b> option set to <code>udp</code>, events are sent as
+ * UTF-8 lines in datagrams of up to <b>MaxDatagramSize</b> bytes through a
+ * non-blocking channel. Unless flushed after every event, several events are
+ * packed in each datagram. Datagrams are sent whether or not a server listens,
+ * and those the system cannot send at once are dropped, so that logging never
+ * waits for the network.
+ * 
+ * <p>
+ * The <b>RemoteHosts</b> option takes a list of servers instead of
+ * <b>RemoteHost</b>. Each server gets its own connection, with the options of
+ * this appender, and the events are spread over the connected servers in turn,
+ * or always sent to the same server for a given logger with the
+ * <code>Sticky</code> <b>LoadBalancing</b>. A server whose connection broke is
+ * skipped while its connector reconnects in the background, unless no server
+ * is connected. The addresses of the servers are looked up again every
+ * <b>ResolveInterval</b> milliseconds, and connections move to the new address
+ * when it changed.
+ * 
  * @author Ceki G&uuml;lc&uuml;
  * @since 0.8.4
  */
@@ -115,17 +174,220 @@ public class SocketAppender extends AppenderSkeleton {
    */
   static final int DEFAULT_RECONNECTION_DELAY = 30000;
 
+  /**
+   * The default delay of the first reconnection attempt (500 milliseconds).
+   */
+  static final int DEFAULT_MIN_RECONNECTION_DELAY = 500;
+
+  /**
+   * The default number of events kept while disconnected (1024 events).
+   */
+  static final int DEFAULT_BACKLOG_SIZE = 1024;
+
+  /**
+   * The default maximum size of a datagram (1400 bytes), which fits in an
+   * Ethernet frame with the IP and UDP headers, IPv4 or IPv6.
+   */
+  static final int DEFAULT_MAX_DATAGRAM_SIZE = 1400;
+
+  /**
+   * The default interval between lookups of the server addresses (300000
+   * milliseconds or 5 minutes).
+   */
+  static final long DEFAULT_RESOLVE_INTERVAL = 300000;
+
+  public static final String ROUND_ROBIN = "RoundRobin";
+  public static final String STICKY = "Sticky";
+
+  /**
+   * The default size of the socket output buffer (8192 bytes).
+   */
+  static final int DEFAULT_BUFFER_SIZE = 8192;
+
+  /**
+   * The default capacity of the async queue (4096 events).
+   */
+  static final int DEFAULT_QUEUE_SIZE = 4096;
+
+  /**
+   * The default number of events after which the writer thread flushes (128).
+   */
+  static final int DEFAULT_FLUSH_SIZE = 128;
+
+  /**
+   * The default time the writer thread waits for more events before flushing
+   * (20 milliseconds).
+   */
+  static final long DEFAULT_LINGER = 20;
+
+  /**
+   * Time the writer thread sleeps when there is nothing to write, it is woken
+   * up by new events.
+   */
+  private static final long IDLE_WAIT = 1000;
+
+  /**
+   * Maximum time close waits for the writer thread to send the queued events.
+   */
+  private static final long CLOSE_TIMEOUT = 5000;
+
+  private static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
+
+  /**
+   * How events are written to the socket.
+   */
+  public enum Framing {
+    /**
+     * Serialized Java strings, read by an ObjectInputStream.
+     */
+    OBJECT,
+
+    /**
+     * UTF-8 text, each event terminated by a new line.
+     */
+    LINE,
+
+    /**
+     * UTF-8 text, each event preceded by its length in bytes.
+     */
+    LENGTH
+  }
+
+  /**
+   * Transport protocol.
+   */
+  public enum Protocol {
+    /**
+     * A TCP connection, with the configured framing.
+     */
+    TCP,
+
+    /**
+     * UDP datagrams of new line terminated events.
+     */
+    UDP
+  }
+
   /**
    * We remember host name as String in addition to the resolved InetAddress so
    * that it can be returned via getOption().
    */
   String remoteHost;
 
-  InetAddress address;
+  volatile InetAddress address;
   int port = DEFAULT_PORT;
-  ObjectOutputStream oos;
+
+  /**
+   * Connected socket, null while disconnected.
+   */
+  private volatile Socket socket;
+  volatile ObjectOutputStream oos;
+
+  /**
+   * Buffered socket stream of the line and length framings.
+   */
+  volatile OutputStream out;
   int reconnectionDelay = DEFAULT_RECONNECTION_DELAY;
+  int minReconnectionDelay = DEFAULT_MIN_RECONNECTION_DELAY;
+  int backlogSize = DEFAULT_BACKLOG_SIZE;
+  String backlogDirectory;
   boolean locationInfo = false;
+  Framing framing = Framing.OBJECT;
+  int bufferSize = DEFAULT_BUFFER_SIZE;
+  boolean immediateFlush = true;
+  boolean async = false;
+  int queueSize = DEFAULT_QUEUE_SIZE;
+  int flushSize = DEFAULT_FLUSH_SIZE;
+  long linger = DEFAULT_LINGER;
+  boolean tcpNoDelay = false;
+  int sendBufferSize = 0;
+  Protocol protocol = Protocol.TCP;
+  String remoteHosts;
+  String loadBalancing = ROUND_ROBIN;
+  long resolveInterval = DEFAULT_RESOLVE_INTERVAL;
+
+  /**
+   * One appender per server of <b>RemoteHosts</b>, null with a single
+   * <b>RemoteHost</b>.
+   */
+  private SocketAppender[] hosts;
+  private final AtomicInteger nextHost = new AtomicInteger();
+
+  /**
+   * Looks up the server addresses every <code>resolveInterval</code>.
+   */
+  private Thread resolver;
+
+  /**
+   * Set when the address of the server changed, the thread writing to the
+   * server then moves the connection.
+   */
+  private volatile boolean addressChanged = false;
+  int maxDatagramSize = DEFAULT_MAX_DATAGRAM_SIZE;
+
+  /**
+   * Datagram channel, null unless the protocol is UDP.
+   */
+  private volatile DatagramChannel channel;
+  private InetSocketAddress target;
+
+  /**
+   * Events packed into the next datagram, and their number.
+   */
+  private ByteBuffer packet;
+  private int packed = 0;
+
+  /**
+   * Set after a datagram failed to be sent, so that failures are only logged
+   * once until a datagram is sent again.
+   */
+  private boolean sendFailing = false;
+
+  /**
+   * Events waiting for the writer thread, null unless async.
+   */
+  private EventRingBuffer<LoggingEvent> queue;
+  private Thread writer;
+  private volatile boolean shutdown = false;
+
+  /**
+   * Set when the writer thread has been woken up and has not drained the queue
+   * yet, so that logging threads do not wake it up again.
+   */
+  private final AtomicBoolean signalled = new AtomicBoolean(false);
+
+  /**
+   * Events dropped because the async queue was full.
+   */
+  private final AtomicLong droppedEvents = new AtomicLong();
+
+  /**
+   * Events kept while disconnected, null if disabled. Used by the thread
+   * writing to the socket: the writer thread in async mode, otherwise the
+   * logging threads and the connector under the appender lock.
+   */
+  private SocketBacklog backlog;
+
+  /**
+   * Socket connected by the connector, waiting for the writer thread.
+   */
+  private volatile Socket pendingSocket;
+
+  private final Random random = new Random();
+
+  /**
+   * Writes the replayed events to the socket.
+   */
+  private final SocketBacklog.Sink replaySink = new SocketBacklog.Sink() {
+    public void write(byte[] data, int offset, int length) throws IOException {
+      writePayload(data, offset, length);
+    }
+  };
+
+  /**
+   * Event being written with the length framing.
+   */
+  private final ReusableOutputStream frame = new ReusableOutputStream();
 
   private Connector connector;
 
@@ -161,100 +423,690 @@ public class SocketAppender extends AppenderSkeleton {
   }
 
   /**
-   * Connect to the specified <b>RemoteHost</b> and <b>Port</b>.
+   * Connect to the specified <b>RemoteHost</b> and <b>Port</b>.
+   */
+  public void activateOptions() {
+    if (remoteHosts != null) {
+      activateHosts();
+      return;
+    }
+    startResolver();
+    if (backlogSize > 0 && backlog == null && protocol == Protocol.TCP) {
+      backlog = new SocketBacklog(backlogSize, openJournal());
+    }
+    connect(address, port);
+    if (async && queue == null) {
+      queue = new EventRingBuffer<LoggingEvent>(queueSize);
+      writer = new Thread(new Writer());
+      writer.setDaemon(true);
+      writer.setName("SocketAppender-Writer-" + getName());
+      writer.start();
+    }
+  }
+
+  /**
+   * Close this appender.
+   *
+   * <p>
+   * This will mark the appender as closed, let the writer thread send the
+   * queued events, and call then {@link #cleanUp} method.
+   */
+  public void close() {
+    synchronized (this) {
+      if (closed)
+        return;
+
+      this.closed = true;
+    }
+    if (resolver != null) {
+      resolver.interrupt();
+      resolver = null;
+    }
+    if (hosts != null) {
+      for (final SocketAppender host : hosts) {
+        host.close();
+      }
+      return;
+    }
+    if (writer != null) {
+      shutdown = true;
+      LockSupport.unpark(writer);
+      try {
+        writer.join(CLOSE_TIMEOUT);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    synchronized (this) {
+      cleanUp();
+      final Socket pending = pendingSocket;
+      if (pending != null) {
+        closeQuietly(pending);
+        pendingSocket = null;
+      }
+      if (backlog != null) {
+        if (backlog.size() > 0) {
+          LogLog.warn("Closing with " + backlog.size() + " unsent events for " + remoteHost);
+        }
+        backlog.close();
+      }
+    }
+  }
+
+  /**
+   * Create and connect one appender per server of <b>RemoteHosts</b>.
+   */
+  private void activateHosts() {
+    if (hosts != null) {
+      return;
+    }
+    final List<SocketAppender> appenders = new ArrayList<SocketAppender>();
+    for (final String entry : remoteHosts.split(",")) {
+      String host = entry.trim();
+      if (host.length() == 0) {
+        continue;
+      }
+      int port = this.port;
+      final int colon = host.lastIndexOf(':');
+      if (colon > 0 && host.indexOf(']') < colon && (host.startsWith("[") || host.indexOf(':') == colon)) {
+        try {
+          port = Integer.parseInt(host.substring(colon + 1));
+          host = host.substring(0, colon);
+        } catch (NumberFormatException e) {
+          LogLog.warn("Invalid port in host [" + entry + "]");
+        }
+      }
+      if (host.startsWith("[") && host.endsWith("]")) {
+        host = host.substring(1, host.length() - 1);
+      }
+      appenders.add(newHost(host, port));
+    }
+    if (appenders.isEmpty()) {
+      LogLog.error("No host in RemoteHosts [" + remoteHosts + "] of SocketAppender named \"" + name + "\".");
+      return;
+    }
+    hosts = appenders.toArray(new SocketAppender[appenders.size()]);
+    startResolver();
+  }
+
+  /**
+   * @return the connected appender of one server, with the options of this
+   *         appender
+   */
+  private SocketAppender newHost(String host, int port) {
+    final SocketAppender appender = new SocketAppender();
+    appender.setName(name + "-" + host + ":" + port);
+    appender.setLayout(layout);
+    appender.setRemoteHost(host);
+    appender.port = port;
+    appender.reconnectionDelay = reconnectionDelay;
+    appender.minReconnectionDelay = minReconnectionDelay;
+    appender.backlogSize = backlogSize;
+    if (backlogDirectory != null) {
+      appender.backlogDirectory = new File(backlogDirectory, host + "-" + port).getPath();
+    }
+    appender.framing = framing;
+    appender.bufferSize = bufferSize;
+    appender.immediateFlush = immediateFlush;
+    appender.async = async;
+    appender.queueSize = queueSize;
+    appender.flushSize = flushSize;
+    appender.linger = linger;
+    appender.tcpNoDelay = tcpNoDelay;
+    appender.sendBufferSize = sendBufferSize;
+    appender.protocol = protocol;
+    appender.maxDatagramSize = maxDatagramSize;
+    // looked up by this appender's resolver
+    appender.resolveInterval = 0;
+    appender.activateOptions();
+    return appender;
+  }
+
+  /**
+   * @return the server an event is sent to: the next connected one, or the
+   *         first connected one from the logger's own with sticky load
+   *         balancing, or that one if none is connected
+   */
+  SocketAppender select(LoggingEvent event) {
+    final SocketAppender[] hosts = this.hosts;
+    final int start;
+    if (STICKY.equalsIgnoreCase(loadBalancing) && event.getLoggerName() != null) {
+      start = (event.getLoggerName().hashCode() & Integer.MAX_VALUE) % hosts.length;
+    } else {
+      start = (nextHost.getAndIncrement() & Integer.MAX_VALUE) % hosts.length;
+    }
+    for (int i = 0; i < hosts.length; i++) {
+      final SocketAppender host = hosts[(start + i) % hosts.length];
+      if (host.isConnected()) {
+        return host;
+      }
+    }
+    return hosts[start];
+  }
+
+  private void startResolver() {
+    if (resolveInterval > 0 && resolver == null) {
+      resolver = new Thread(new Resolver());
+      resolver.setDaemon(true);
+      resolver.setName("SocketAppender-Resolver-" + getName());
+      resolver.start();
+    }
+  }
+
+  /**
+   * Look up the addresses of the server again, flagging a change only if the
+   * current one is no longer among them.
+   */
+  void resolve() {
+    final String host = remoteHost;
+    if (host == null) {
+      return;
+    }
+    final InetAddress[] resolved;
+    try {
+      resolved = InetAddress.getAllByName(host);
+    } catch (UnknownHostException e) {
+      LogLog.warn("Could not look up the address of [" + host + "]: " + e);
+      return;
+    }
+    // round robin DNS rotates the addresses, keep the current one while listed
+    for (final InetAddress candidate : resolved) {
+      if (candidate.equals(address)) {
+        return;
+      }
+    }
+    LogLog.debug("Address of " + host + " is now " + resolved[0].getHostAddress());
+    address = resolved[0];
+    addressChanged = true;
+  }
+
+  /**
+   * Move the connection to the new address of the server, after sending the
+   * events written to the old one.
+   */
+  void moveAddress() {
+    addressChanged = false;
+    if (protocol == Protocol.UDP) {
+      if (channel == null) {
+        openChannel(address, port);
+      } else {
+        sendPacket();
+        target = new InetSocketAddress(address, port);
+      }
+      return;
+    }
+    if (reconnectionDelay <= 0) {
+      return;
+    }
+    if (isConnected()) {
+      LogLog.debug("Reconnecting to " + remoteHost + " at its new address.");
+      closeConnection();
+    }
+    fireConnector();
+  }
+
+  /**
+   * @return the journal the backlog spills to, null if none
+   */
+  private BulkJournal openJournal() {
+    if (backlogDirectory == null)
+      return null;
+    try {
+      return new BulkJournal(new File(backlogDirectory), ElasticsearchBulkAppender.DEFAULT_JOURNAL_SEGMENT_SIZE,
+          ElasticsearchBulkAppender.DEFAULT_JOURNAL_MAX_SEGMENTS);
+    } catch (IOException e) {
+      LogLog.error("Could not open the backlog journal in " + backlogDirectory + ", keeping events in memory only.",
+          e);
+      return null;
+    }
+  }
+
+  /**
+   * Drop the connection to the remote host and release the underlying connector
+   * thread if it has been created
+   */
+  public void cleanUp() {
+    closeConnection();
+    if (channel != null) {
+      sendPacket();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        LogLog.error("Could not close datagram channel.", e);
+      }
+      channel = null;
+    }
+    if (connector != null) {
+      connector.interrupted = true;
+      connector = null; // allow gc
+    }
+  }
+
+  /**
+   * Flush and close the connection to the remote host.
+   */
+  private void closeConnection() {
+    if (oos != null) {
+      try {
+        oos.close();
+      } catch (IOException e) {
+        LogLog.error("Could not close oos.", e);
+      }
+      oos = null;
+    }
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        LogLog.error("Could not close socket stream.", e);
+      }
+      out = null;
+    }
+    if (socket != null) {
+      closeQuietly(socket);
+      socket = null;
+    }
+  }
+
+  void connect(InetAddress address, int port) {
+    if (this.address == null)
+      return;
+    if (protocol == Protocol.UDP) {
+      cleanUp();
+      openChannel(address, port);
+      return;
+    }
+    try {
+      // First, close the previous connection if any.
+      cleanUp();
+      open(new Socket(address, port));
+      replay();
+    } catch (IOException e) {
+
+      String msg = "Could not connect to remote log4j server at [" + remoteHost + "].";
+      if (reconnectionDelay > 0) {
+        msg += " We will try again later.";
+        fireConnector(); // fire the connector thread
+      }
+      LogLog.error(msg, e);
+    }
+  }
+
+  /**
+   * Open the non-blocking channel the datagrams are sent through. It is not
+   * connected, so that a missing server does not make sending fail.
+   */
+  void openChannel(InetAddress address, int port) {
+    try {
+      final DatagramChannel channel = DatagramChannel.open();
+      channel.configureBlocking(false);
+      if (sendBufferSize > 0) {
+        channel.socket().setSendBufferSize(sendBufferSize);
+      }
+      target = new InetSocketAddress(address, port);
+      packet = ByteBuffer.allocateDirect(Math.max(maxDatagramSize, 1));
+      packed = 0;
+      addressChanged = false;
+      this.channel = channel;
+    } catch (IOException e) {
+      LogLog.error("Could not open a datagram channel to [" + remoteHost + "].", e);
+    }
+  }
+
+  /**
+   * Set up the streams of a connected socket.
+   */
+  void open(Socket socket) throws IOException {
+    this.socket = socket;
+    addressChanged = !socket.getInetAddress().equals(address);
+    socket.setTcpNoDelay(tcpNoDelay);
+    if (sendBufferSize > 0) {
+      socket.setSendBufferSize(sendBufferSize);
+    }
+    final OutputStream stream = new BufferedOutputStream(socket.getOutputStream(), bufferSize);
+    if (framing == Framing.OBJECT) {
+      oos = new ObjectOutputStream(stream);
+      oos.flush();
+    } else {
+      out = stream;
+    }
+  }
+
+  /**
+   * With <b>RemoteHosts</b> the checks of AppenderSkeleton.doAppend are done
+   * without holding this appender's lock, so that each server is only
+   * serialized by its own appender and a slow one does not hold up the others.
+   */
+  @Override
+  public void doAppend(LoggingEvent event) {
+    if (hosts == null) {
+      super.doAppend(event);
+      return;
+    }
+    if (closed) {
+      LogLog.error("Attempted to append to closed appender named [" + name + "].");
+      return;
+    }
+    if (!isAsSevereAsThreshold(event.getLevel())) {
+      return;
+    }
+    for (Filter filter = getFirstFilter(); filter != null; filter = filter.getNext()) {
+      final int decision = filter.decide(event);
+      if (decision == Filter.DENY) {
+        return;
+      }
+      if (decision == Filter.ACCEPT) {
+        break;
+      }
+    }
+    append(event);
+  }
+
+  public void append(LoggingEvent event) {
+    if (event == null)
+      return;
+
+    if (hosts != null) {
+      if (locationInfo) {
+        event.getLocationInformation();
+      }
+      select(event).doAppend(event);
+      return;
+    }
+
+    if (address == null) {
+      errorHandler.error("No remote host is set for SocketAppender named \"" + this.name + "\".");
+      return;
+    }
+
+    if (locationInfo) {
+      event.getLocationInformation();
+    }
+
+    if (queue != null) {
+      // Set the NDC and thread name for the calling thread as these
+      // LoggingEvent fields were not set at event creation time.
+      event.getNDC();
+      event.getThreadName();
+      // Get a copy of this thread's MDC.
+      event.getMDCCopy();
+      if (!queue.offer(event)) {
+        droppedEvents.incrementAndGet();
+      }
+      if (!signalled.get() && signalled.compareAndSet(false, true)) {
+        LockSupport.unpark(writer);
+      }
+      return;
+    }
+
+    if (addressChanged) {
+      moveAddress();
+    }
+    if (!isConnected()) {
+      keep(event);
+      return;
+    }
+    try {
+      write(event);
+      if (immediateFlush) {
+        flush();
+      }
+    } catch (IOException e) {
+      disconnected(e);
+      keep(event);
+    }
+  }
+
+  /**
+   * Hand a socket opened by the connector over to the thread writing to the
+   * server, which sends the backlog first.
+   */
+  void connected(Socket socket) throws IOException {
+    synchronized (this) {
+      connector = null;
+      if (closed) {
+        socket.close();
+        return;
+      }
+      if (queue == null) {
+        open(socket);
+        try {
+          replay();
+        } catch (IOException e) {
+          disconnected(e);
+        }
+        return;
+      }
+    }
+    pendingSocket = socket;
+    LockSupport.unpark(writer);
+  }
+
+  /**
+   * Keep an event in the backlog while disconnected.
+   */
+  void keep(LoggingEvent event) {
+    if (backlog == null) {
+      return;
+    }
+    try {
+      encode(event, frame);
+      backlog.add(frame.array(), 0, frame.size());
+    } catch (IOException e) {
+      LogLog.error("Could not keep an event for " + remoteHost, e);
+    } finally {
+      frame.clear();
+    }
+  }
+
+  /**
+   * Send the events kept while disconnected.
+   */
+  void replay() throws IOException {
+    if (backlog == null || backlog.isEmpty() || !isConnected()) {
+      return;
+    }
+    final int count = backlog.replay(replaySink);
+    flush();
+    LogLog.debug("Sent " + count + " events kept while disconnected from " + remoteHost + ".");
+  }
+
+  /**
+   * @return true if there is a connection to the server
+   */
+  boolean isConnected() {
+    return out != null || oos != null || channel != null;
+  }
+
+  /**
+   * Drop a broken connection and start reconnecting.
+   */
+  void disconnected(IOException e) {
+    oos = null;
+    out = null;
+    final Socket socket = this.socket;
+    if (socket != null) {
+      closeQuietly(socket);
+      this.socket = null;
+    }
+    LogLog.warn("Detected problem with connection: " + e);
+    if (reconnectionDelay > 0) {
+      fireConnector();
+    }
+  }
+
+  /**
+   * Write an event with the framing of the connection, encoding it straight
+   * into the stream when the layout can.
+   */
+  void write(LoggingEvent event) throws IOException {
+    if (channel != null) {
+      pack(event);
+      return;
+    }
+    final ObjectOutputStream oos = this.oos;
+    if (oos != null) {
+      oos.writeObject(this.layout.format(event));
+      if (++counter >= RESET_FREQUENCY) {
+        counter = 0;
+        // Failing to reset the object output stream every now and
+        // then creates a serious memory leak.
+        oos.reset();
+      }
+      return;
+    }
+    final OutputStream out = this.out;
+    if (out == null) {
+      return;
+    }
+    if (framing == Framing.LINE) {
+      if (layout instanceof ByteLayout) {
+        ((ByteLayout) layout).encode(event, out);
+      } else {
+        final String text = layout.format(event);
+        out.write(text.getBytes(UTF8_CHARSET));
+        if (!text.endsWith("\n")) {
+          out.write('\n');
+        }
+      }
+      return;
+    }
+    try {
+      encode(event, frame);
+      writePayload(frame.array(), 0, frame.size());
+    } finally {
+      frame.clear();
+    }
+  }
+
+  /**
+   * Format an event as UTF-8.
    */
-  public void activateOptions() {
-    connect(address, port);
+  private void encode(LoggingEvent event, OutputStream stream) throws IOException {
+    if (layout instanceof ByteLayout) {
+      ((ByteLayout) layout).encode(event, stream);
+    } else {
+      stream.write(layout.format(event).getBytes(UTF8_CHARSET));
+    }
   }
 
   /**
-   * Close this appender.
-   *
-   * <p>
-   * This will mark the appender as closed and call then {@link #cleanUp} method.
+   * Write a formatted event with the framing of the connection.
    */
-  synchronized public void close() {
-    if (closed)
+  void writePayload(byte[] data, int offset, int length) throws IOException {
+    final ObjectOutputStream oos = this.oos;
+    if (oos != null) {
+      oos.writeObject(new String(data, offset, length, UTF8_CHARSET));
+      if (++counter >= RESET_FREQUENCY) {
+        counter = 0;
+        oos.reset();
+      }
       return;
-
-    this.closed = true;
-    cleanUp();
+    }
+    final OutputStream out = this.out;
+    if (out == null) {
+      throw new IOException("Not connected");
+    }
+    if (framing == Framing.LINE) {
+      out.write(data, offset, length);
+      if (length == 0 || data[offset + length - 1] != '\n') {
+        out.write('\n');
+      }
+      return;
+    }
+    out.write(length >>> 24);
+    out.write(length >>> 16);
+    out.write(length >>> 8);
+    out.write(length);
+    out.write(data, offset, length);
   }
 
   /**
-   * Drop the connection to the remote host and release the underlying connector
-   * thread if it has been created
+   * Add an event to the next datagram, sending the datagram first if the event
+   * does not fit. An event larger than a datagram is sent on its own.
    */
-  public void cleanUp() {
-    if (oos != null) {
-      try {
-        oos.close();
-      } catch (IOException e) {
-        LogLog.error("Could not close oos.", e);
+  private void pack(LoggingEvent event) throws IOException {
+    try {
+      encode(event, frame);
+      if (frame.size() == 0 || frame.array()[frame.size() - 1] != '\n') {
+        frame.write('\n');
       }
-      oos = null;
-    }
-    if (connector != null) {
-      connector.interrupted = true;
-      connector = null; // allow gc
+      final int length = frame.size();
+      if (length > packet.remaining()) {
+        sendPacket();
+      }
+      if (length > packet.remaining()) {
+        send(ByteBuffer.wrap(frame.array(), 0, length), 1);
+      } else {
+        packet.put(frame.array(), 0, length);
+        packed++;
+      }
+    } finally {
+      frame.clear();
     }
   }
 
-  void connect(InetAddress address, int port) {
-    if (this.address == null)
+  /**
+   * Send the events packed so far.
+   */
+  private void sendPacket() {
+    if (packed == 0) {
       return;
+    }
+    packet.flip();
+    send(packet, packed);
+    packet.clear();
+    packed = 0;
+  }
+
+  /**
+   * Send a datagram, counting its events as dropped if it cannot be sent at
+   * once.
+   */
+  private void send(ByteBuffer datagram, int events) {
     try {
-      // First, close the previous connection if any.
-      cleanUp();
-      Socket socket = new Socket(address, port);
-      oos = new ObjectOutputStream(socket.getOutputStream());
+      if (channel.send(datagram, target) == 0) {
+        droppedEvents.addAndGet(events);
+      } else {
+        sendFailing = false;
+      }
     } catch (IOException e) {
-
-      String msg = "Could not connect to remote log4j server at [" + address.getHostName() + "].";
-      if (reconnectionDelay > 0) {
-        msg += " We will try again later.";
-        fireConnector(); // fire the connector thread
+      droppedEvents.addAndGet(events);
+      if (!sendFailing) {
+        sendFailing = true;
+        LogLog.warn("Could not send datagram to " + remoteHost + ": " + e);
       }
-      LogLog.error(msg, e);
     }
   }
 
-  public void append(LoggingEvent event) {
-    if (event == null)
-      return;
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // nothing more to do with a broken socket
+    }
+  }
 
-    if (address == null) {
-      errorHandler.error("No remote host is set for SocketAppender named \"" + this.name + "\".");
+  /**
+   * Flush the written events to the socket.
+   */
+  void flush() throws IOException {
+    if (channel != null) {
+      sendPacket();
       return;
     }
-
+    final ObjectOutputStream oos = this.oos;
     if (oos != null) {
-      try {
-        if (locationInfo) {
-          event.getLocationInformation();
-        }
-        oos.writeObject(this.layout.format(event));
-        // LogLog.debug("=========Flushing.");
-        oos.flush();
-        if (++counter >= RESET_FREQUENCY) {
-          counter = 0;
-          // Failing to reset the object output stream every now and
-          // then creates a serious memory leak.
-          // System.err.println("Doing oos.reset()");
-          oos.reset();
-        }
-      } catch (IOException e) {
-        oos = null;
-        LogLog.warn("Detected problem with connection: " + e);
-        if (reconnectionDelay > 0) {
-          fireConnector();
-        }
-      }
+      oos.flush();
+    }
+    final OutputStream out = this.out;
+    if (out != null) {
+      out.flush();
     }
   }
 
-  void fireConnector() {
-    if (connector == null) {
+  synchronized void fireConnector() {
+    if (connector == null && !closed) {
       LogLog.debug("Starting a new connector thread.");
       connector = new Connector();
       connector.setDaemon(true);
@@ -263,6 +1115,20 @@ public class SocketAppender extends AppenderSkeleton {
     }
   }
 
+  /**
+   * @return the delay before a reconnection attempt: the minimum delay doubled
+   *         after every failed attempt, up to the reconnection delay, and
+   *         randomly reduced by up to half
+   */
+  long reconnectionDelay(int attempt) {
+    long delay = (long) Math.max(minReconnectionDelay, 1) << Math.min(attempt, 20);
+    if (delay > reconnectionDelay) {
+      delay = reconnectionDelay;
+    }
+    final long half = delay / 2;
+    return half + (long) (random.nextDouble() * (delay - half));
+  }
+
   static InetAddress getAddressByName(String host) {
     try {
       return InetAddress.getByName(host);
@@ -296,6 +1162,55 @@ public class SocketAppender extends AppenderSkeleton {
     return remoteHost;
   }
 
+  /**
+   * The <b>RemoteHosts</b> option takes a comma separated list of
+   * <code>host[:port]</code> the events are spread over, instead of
+   * <b>RemoteHost</b>. The hosts without a port use <b>Port</b>.
+   */
+  public void setRemoteHosts(String hosts) {
+    this.remoteHosts = hosts;
+  }
+
+  /**
+   * Returns value of the <b>RemoteHosts</b> option.
+   */
+  public String getRemoteHosts() {
+    return remoteHosts;
+  }
+
+  /**
+   * The <b>LoadBalancing</b> option takes <code>RoundRobin</code>, the
+   * default, to send the events to each of the <b>RemoteHosts</b> in turn, or
+   * <code>Sticky</code> to send the events of a logger to the same host while
+   * it is connected.
+   */
+  public void setLoadBalancing(String loadBalancing) {
+    this.loadBalancing = loadBalancing;
+  }
+
+  /**
+   * Returns value of the <b>LoadBalancing</b> option.
+   */
+  public String getLoadBalancing() {
+    return loadBalancing;
+  }
+
+  /**
+   * The <b>ResolveInterval</b> option takes the number of milliseconds between
+   * lookups of the server addresses, 300000 by default, 0 to only look them up
+   * when connecting. Connections move to the new address of a server.
+   */
+  public void setResolveInterval(long resolveInterval) {
+    this.resolveInterval = resolveInterval;
+  }
+
+  /**
+   * Returns value of the <b>ResolveInterval</b> option.
+   */
+  public long getResolveInterval() {
+    return resolveInterval;
+  }
+
   /**
    * The <b>Port</b> option takes a positive integer representing the port where
    * the server is waiting for connections.
@@ -329,9 +1244,9 @@ public class SocketAppender extends AppenderSkeleton {
 
   /**
    * The <b>ReconnectionDelay</b> option takes a positive integer representing the
-   * number of milliseconds to wait between each failed connection attempt to the
-   * server. The default value of this option is 30000 which corresponds to 30
-   * seconds.
+   * maximum number of milliseconds to wait between each failed connection
+   * attempt to the server. The default value of this option is 30000 which
+   * corresponds to 30 seconds.
    * 
    * <p>
    * Setting this option to zero turns off reconnection capability.
@@ -347,10 +1262,353 @@ public class SocketAppender extends AppenderSkeleton {
     return reconnectionDelay;
   }
 
+  /**
+   * The <b>MinReconnectionDelay</b> option takes the number of milliseconds to
+   * wait before the first connection attempt after the connection was lost,
+   * 500 by default. The delay doubles after every failed attempt up to
+   * <b>ReconnectionDelay</b>.
+   */
+  public void setMinReconnectionDelay(int delay) {
+    this.minReconnectionDelay = delay;
+  }
+
+  /**
+   * Returns value of the <b>MinReconnectionDelay</b> option.
+   */
+  public int getMinReconnectionDelay() {
+    return minReconnectionDelay;
+  }
+
+  /**
+   * The <b>BacklogSize</b> option takes the number of events kept in memory
+   * while the server is unreachable, 1024 by default, 0 to drop them.
+   */
+  public void setBacklogSize(int backlogSize) {
+    this.backlogSize = backlogSize;
+  }
+
+  /**
+   * Returns value of the <b>BacklogSize</b> option.
+   */
+  public int getBacklogSize() {
+    return backlogSize;
+  }
+
+  /**
+   * The <b>BacklogDirectory</b> option takes the directory of a journal the
+   * events beyond <b>BacklogSize</b> spill to while the server is unreachable.
+   * Unset by default, the oldest events are dropped instead.
+   */
+  public void setBacklogDirectory(String backlogDirectory) {
+    this.backlogDirectory = backlogDirectory;
+  }
+
+  /**
+   * Returns value of the <b>BacklogDirectory</b> option.
+   */
+  public String getBacklogDirectory() {
+    return backlogDirectory;
+  }
+
+  /**
+   * The <b>Protocol</b> option takes <code>tcp</code>, the default, or
+   * <code>udp</code> to send the events in datagrams, one per line whatever the
+   * <b>Framing</b>. It applies to the connections opened afterwards.
+   */
+  public void setProtocol(String protocol) {
+    try {
+      this.protocol = Protocol.valueOf(protocol.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      LogLog.warn("Unknown Protocol [" + protocol + "], using " + this.protocol.name().toLowerCase());
+    }
+  }
+
+  /**
+   * Returns value of the <b>Protocol</b> option.
+   */
+  public String getProtocol() {
+    return protocol.name().toLowerCase();
+  }
+
+  /**
+   * The <b>MaxDatagramSize</b> option takes the maximum size in bytes of the
+   * datagrams sent with the udp protocol, 1400 by default. Events are packed
+   * into datagrams up to that size.
+   */
+  public void setMaxDatagramSize(int maxDatagramSize) {
+    this.maxDatagramSize = maxDatagramSize;
+  }
+
+  /**
+   * Returns value of the <b>MaxDatagramSize</b> option.
+   */
+  public int getMaxDatagramSize() {
+    return maxDatagramSize;
+  }
+
+  /**
+   * The <b>Framing</b> option takes one of <code>object</code>, the default,
+   * <code>line</code> or <code>length</code>. It applies to the connections
+   * opened afterwards.
+   */
+  public void setFraming(String framing) {
+    try {
+      this.framing = Framing.valueOf(framing.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      LogLog.warn("Unknown Framing [" + framing + "], using " + this.framing.name().toLowerCase());
+    }
+  }
+
+  /**
+   * Returns value of the <b>Framing</b> option.
+   */
+  public String getFraming() {
+    return framing.name().toLowerCase();
+  }
+
+  /**
+   * The <b>BufferSize</b> option takes the size in bytes of the socket output
+   * buffer, 8192 by default.
+   */
+  public void setBufferSize(int bufferSize) {
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Returns value of the <b>BufferSize</b> option.
+   */
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * The <b>ImmediateFlush</b> option takes a boolean value. If true, the
+   * default, every event is flushed to the socket as it is appended. If false,
+   * events are written when the buffer fills up and when the appender is
+   * closed, which is much faster but may lose the buffered events if the
+   * application stops abruptly.
+   */
+  public void setImmediateFlush(boolean immediateFlush) {
+    this.immediateFlush = immediateFlush;
+  }
+
+  /**
+   * Returns value of the <b>ImmediateFlush</b> option.
+   */
+  public boolean getImmediateFlush() {
+    return immediateFlush;
+  }
+
+  /**
+   * The <b>Async</b> option takes a boolean value. If true, events are queued
+   * and sent by a writer thread, so that logging threads never wait for the
+   * server. False by default.
+   */
+  public void setAsync(boolean async) {
+    this.async = async;
+  }
+
+  /**
+   * Returns value of the <b>Async</b> option.
+   */
+  public boolean getAsync() {
+    return async;
+  }
+
+  /**
+   * The <b>QueueSize</b> option takes the maximum number of events waiting for
+   * the writer thread, rounded up to a power of two, 4096 by default. Events
+   * are dropped when the queue is full.
+   */
+  public void setQueueSize(int queueSize) {
+    this.queueSize = queueSize;
+  }
+
+  /**
+   * Returns value of the <b>QueueSize</b> option.
+   */
+  public int getQueueSize() {
+    return queueSize;
+  }
+
+  /**
+   * The <b>FlushSize</b> option takes the number of events after which the
+   * writer thread flushes the socket, 128 by default.
+   */
+  public void setFlushSize(int flushSize) {
+    this.flushSize = flushSize;
+  }
+
+  /**
+   * Returns value of the <b>FlushSize</b> option.
+   */
+  public int getFlushSize() {
+    return flushSize;
+  }
+
+  /**
+   * The <b>Linger</b> option takes the number of milliseconds the writer thread
+   * waits for more events before flushing the socket, 20 by default.
+   */
+  public void setLinger(long linger) {
+    this.linger = linger;
+  }
+
+  /**
+   * Returns value of the <b>Linger</b> option.
+   */
+  public long getLinger() {
+    return linger;
+  }
+
+  /**
+   * The <b>TcpNoDelay</b> option takes a boolean value. If true, Nagle's
+   * algorithm is disabled and small writes are sent at once. False by default.
+   */
+  public void setTcpNoDelay(boolean tcpNoDelay) {
+    this.tcpNoDelay = tcpNoDelay;
+  }
+
+  /**
+   * Returns value of the <b>TcpNoDelay</b> option.
+   */
+  public boolean getTcpNoDelay() {
+    return tcpNoDelay;
+  }
+
+  /**
+   * The <b>SendBufferSize</b> option takes the size in bytes of the socket send
+   * buffer, 0, the default, leaves the system default.
+   */
+  public void setSendBufferSize(int sendBufferSize) {
+    this.sendBufferSize = sendBufferSize;
+  }
+
+  /**
+   * Returns value of the <b>SendBufferSize</b> option.
+   */
+  public int getSendBufferSize() {
+    return sendBufferSize;
+  }
+
+  /**
+   * @return the number of events dropped because the async queue or the
+   *         backlog was full, or their datagram could not be sent
+   */
+  public long getDroppedEvents() {
+    if (hosts != null) {
+      long dropped = 0;
+      for (final SocketAppender host : hosts) {
+        dropped += host.getDroppedEvents();
+      }
+      return dropped;
+    }
+    final SocketBacklog backlog = this.backlog;
+    return droppedEvents.get() + (backlog == null ? 0 : backlog.getDropped());
+  }
+
+  /**
+   * The Writer sends the queued events in async mode. It drains the queue in
+   * batches and flushes every <code>flushSize</code> events, or once the queue
+   * stayed empty for <code>linger</code> milliseconds. On close it sends the
+   * remaining events.
+   */
+  class Writer implements Runnable {
+
+    public void run() {
+      final LoggingEvent[] batch = new LoggingEvent[Math.min(queue.capacity(), 256)];
+      int unflushed = 0;
+      long lingerUntil = 0;
+      while (true) {
+        signalled.set(false);
+        if (addressChanged) {
+          unflushed = 0;
+          moveAddress();
+        }
+        final Socket connected = pendingSocket;
+        if (connected != null) {
+          pendingSocket = null;
+          try {
+            open(connected);
+            replay();
+          } catch (IOException e) {
+            disconnected(e);
+          }
+        }
+        final int count = queue.drainTo(batch, batch.length);
+        for (int i = 0; i < count; i++) {
+          final LoggingEvent event = batch[i];
+          batch[i] = null;
+          if (!isConnected()) {
+            keep(event);
+            continue;
+          }
+          try {
+            write(event);
+            if (unflushed++ == 0) {
+              lingerUntil = System.currentTimeMillis() + linger;
+            }
+            if (unflushed >= flushSize) {
+              unflushed = 0;
+              flush();
+            }
+          } catch (IOException e) {
+            unflushed = 0;
+            disconnected(e);
+            keep(event);
+          }
+        }
+        if (count > 0) {
+          continue;
+        }
+
+        final long wait = unflushed > 0 ? lingerUntil - System.currentTimeMillis() : IDLE_WAIT;
+        if (unflushed > 0 && (wait <= 0 || shutdown)) {
+          unflushed = 0;
+          try {
+            flush();
+          } catch (IOException e) {
+            disconnected(e);
+          }
+          continue;
+        }
+        if (shutdown) {
+          return;
+        }
+        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(wait));
+      }
+    }
+  }
+
+  /**
+   * The Resolver looks up the addresses of the servers every
+   * <code>resolveInterval</code> milliseconds, until the appender is closed.
+   */
+  class Resolver implements Runnable {
+
+    public void run() {
+      while (true) {
+        try {
+          Thread.sleep(resolveInterval);
+        } catch (InterruptedException e) {
+          return;
+        }
+        if (hosts == null) {
+          resolve();
+        } else {
+          for (final SocketAppender host : hosts) {
+            host.resolve();
+          }
+        }
+      }
+    }
+  }
+
   /**
    * The Connector will reconnect when the server becomes available again. It does
-   * this by attempting to open a new connection every
-   * <code>reconnectionDelay</code> milliseconds.
+   * this by attempting to open a new connection after
+   * <code>minReconnectionDelay</code> milliseconds, doubling the delay after
+   * every failed attempt up to <code>reconnectionDelay</code>.
    * 
    * <p>
    * It stops trying whenever a connection is established. It will restart to try
@@ -364,25 +1622,22 @@ public class SocketAppender extends AppenderSkeleton {
     boolean interrupted = false;
 
     public void run() {
-      Socket socket;
+      int attempt = 0;
       while (!interrupted) {
         try {
-          sleep(reconnectionDelay);
-          LogLog.debug("Attempting connection to " + address.getHostName());
-          socket = new Socket(address, port);
-          synchronized (this) {
-            oos = new ObjectOutputStream(socket.getOutputStream());
-            connector = null;
-            LogLog.debug("Connection established. Exiting connector thread.");
-            break;
-          }
+          sleep(reconnectionDelay(attempt++));
+          resolve();
+          LogLog.debug("Attempting connection to " + remoteHost);
+          connected(new Socket(address, port));
+          LogLog.debug("Connection established. Exiting connector thread.");
+          break;
         } catch (InterruptedException e) {
           LogLog.error("Connector interrupted. Leaving loop.");
           return;
         } catch (java.net.ConnectException e) {
-          LogLog.error("Remote host " + address.getHostName() + " refused connection.");
+          LogLog.error("Remote host " + remoteHost + " refused connection.");
         } catch (IOException e) {
-          LogLog.error("Could not connect to " + address.getHostName() + ". Exception is " + e);
+          LogLog.error("Could not connect to " + remoteHost + ". Exception is " + e);
         }
       }
     }
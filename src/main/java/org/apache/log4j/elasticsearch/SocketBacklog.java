@@ -0,0 +1,172 @@
+/*
+ * Copyright 2020-2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Author: Guillermo Adrián Molina <guillermoadrianmolina@hotmail.com>
+
+package org.apache.log4j.elasticsearch;
+
+import java.io.IOException;
+
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * Formatted events kept while a {@link SocketAppender} is disconnected, to be
+ * sent once it reconnects.
+ *
+ * <p>
+ * Events are kept in memory up to a number of events. Beyond that they spill
+ * to a {@link BulkJournal} if there is one, otherwise the oldest event is
+ * dropped. Once events spilled, the following ones go to the journal too so
+ * that they are replayed in order. Events left in the journal when the
+ * application stops are sent after the next connection.
+ *
+ * <p>
+ * This class is not thread safe, it is used by whichever thread writes to the
+ * socket.
+ */
+public class SocketBacklog {
+  /**
+   * Receives the replayed events.
+   */
+  public interface Sink {
+    void write(byte[] data, int offset, int length) throws IOException;
+  }
+
+  private final byte[][] events;
+  private final int[] lengths;
+  private int head = 0;
+  private int count = 0;
+  private long dropped = 0;
+
+  /**
+   * Spill journal, null if events are only kept in memory.
+   */
+  private final BulkJournal journal;
+
+  /**
+   * Receives the events read from the journal.
+   */
+  private final BulkBuffer batch = new BulkBuffer(16 * 1024);
+
+  /**
+   * @param capacity maximum number of events kept in memory
+   * @param journal  journal the events spill to, may be null
+   */
+  public SocketBacklog(final int capacity, final BulkJournal journal) {
+    events = new byte[Math.max(capacity, 1)][];
+    lengths = new int[events.length];
+    this.journal = journal;
+  }
+
+  /**
+   * Keep an event.
+   */
+  public void add(final byte[] data, final int offset, final int length) {
+    if (journal != null && (count == events.length || journal.hasUnread())) {
+      try {
+        journal.append(data, offset, length);
+        return;
+      } catch (final IOException e) {
+        LogLog.error("Could not spill to the backlog journal", e);
+      }
+    }
+    if (count == events.length) {
+      events[head] = null;
+      head = (head + 1) % events.length;
+      count--;
+      dropped++;
+    }
+    final int tail = (head + count) % events.length;
+    byte[] slot = events[tail];
+    if (slot == null || slot.length < length) {
+      slot = new byte[length];
+    }
+    System.arraycopy(data, offset, slot, 0, length);
+    events[tail] = slot;
+    lengths[tail] = length;
+    count++;
+  }
+
+  /**
+   * Write the kept events, oldest first. Events are removed as they are
+   * written, those left when the sink fails are kept.
+   *
+   * @return the number of events written
+   */
+  public int replay(final Sink sink) throws IOException {
+    int written = 0;
+    while (count > 0) {
+      sink.write(events[head], 0, lengths[head]);
+      events[head] = null;
+      head = (head + 1) % events.length;
+      count--;
+      written++;
+    }
+    if (journal == null) {
+      return written;
+    }
+    try {
+      while (journal.hasUnread()) {
+        batch.clear();
+        final int read = journal.read(batch, events.length);
+        if (read == 0) {
+          break;
+        }
+        for (int i = 0; i < read; i++) {
+          sink.write(batch.array(), batch.documentOffset(i), batch.documentLength(i));
+        }
+        journal.commit();
+        written += read;
+      }
+    } catch (final IOException e) {
+      journal.rewind();
+      throw e;
+    } finally {
+      batch.clear();
+    }
+    return written;
+  }
+
+  /**
+   * @return true if no event is kept
+   */
+  public boolean isEmpty() {
+    return count == 0 && (journal == null || !journal.hasUnread());
+  }
+
+  /**
+   * @return the number of events kept in memory
+   */
+  public int size() {
+    return count;
+  }
+
+  /**
+   * @return the number of events dropped because the backlog was full
+   */
+  public long getDropped() {
+    return dropped;
+  }
+
+  /**
+   * Force the journal to disk and close it.
+   */
+  public void close() {
+    if (journal != null) {
+      journal.close();
+    }
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2020-2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Author: Guillermo Adrián Molina <guillermoadrianmolina@hotmail.com>
+
+package org.apache.log4j.elasticsearch;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Stack trace writer with bounded output.
+ *
+ * <p>
+ * The trace is written from the stack frames, in the format of
+ * <code>Throwable.printStackTrace()</code>: the frames a cause shares with the
+ * throwable it caused are collapsed into <code>... n more</code>, and so are
+ * the frames beyond <code>maxDepth</code>. The text is cut at
+ * <code>maxLength</code> characters.
+ *
+ * <p>
+ * The fingerprint of a throwable is a hash of the classes of the throwable and
+ * its causes and of the classes and methods of their frames, without messages
+ * or line numbers, so that it stays the same for the same failure. With a
+ * dedup window the full trace of a fingerprint is only sent once per window.
+ *
+ * <p>
+ * Immutable, apart from the times the traces were sent, and thread safe.
+ */
+public class ThrowableEncoder {
+  /**
+   * Maximum number of fingerprints whose last trace time is kept, they are
+   * forgotten all at once beyond that.
+   */
+  public static final int MAX_FINGERPRINTS = 10000;
+
+  private static final int MAX_CAUSES = 32;
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final int maxDepth;
+  private final int maxLength;
+  private final long dedupWindow;
+  private final ConcurrentMap<Long, Long> sent = new ConcurrentHashMap<Long, Long>();
+
+  /**
+   * @param maxDepth    frames written per throwable, 0 for all
+   * @param maxLength   characters written, 0 for no limit
+   * @param dedupWindow milliseconds during which the trace of a fingerprint is
+   *                    only sent once, 0 to always send it
+   */
+  public ThrowableEncoder(final int maxDepth, final int maxLength, final long dedupWindow) {
+    this.maxDepth = maxDepth;
+    this.maxLength = maxLength;
+    this.dedupWindow = dedupWindow;
+  }
+
+  /**
+   * Write the stack trace of a throwable and its causes.
+   */
+  public void encode(final Throwable throwable, final StringBuilder out) {
+    final int start = out.length();
+    final int limit = maxLength > 0 ? start + maxLength : Integer.MAX_VALUE;
+    final Throwable[] chain = new Throwable[MAX_CAUSES];
+    StackTraceElement[] enclosing = null;
+    int causes = 0;
+    for (Throwable current = throwable; current != null && out.length() <= limit; current = current.getCause()) {
+      if (causes > 0) {
+        if (causes == MAX_CAUSES) {
+          out.append("\n\t... more causes");
+          break;
+        }
+        out.append("\nCaused by: ");
+        if (contains(chain, causes, current)) {
+          out.append("[CIRCULAR REFERENCE: ").append(current).append(']');
+          break;
+        }
+      }
+      chain[causes++] = current;
+      out.append(current);
+
+      final StackTraceElement[] trace = current.getStackTrace();
+      int m = trace.length - 1;
+      if (enclosing != null) {
+        // skip the frames in common with the enclosing trace
+        int n = enclosing.length - 1;
+        while (m >= 0 && n >= 0 && trace[m].equals(enclosing[n])) {
+          m--;
+          n--;
+        }
+      }
+      int shown = m + 1;
+      if (maxDepth > 0 && shown > maxDepth) {
+        shown = maxDepth;
+      }
+      for (int i = 0; i < shown && out.length() <= limit; i++) {
+        out.append("\n\tat ").append(trace[i]);
+      }
+      if (shown < trace.length) {
+        out.append("\n\t... ").append(trace.length - shown).append(" more");
+      }
+      enclosing = trace;
+    }
+    if (out.length() > limit) {
+      int length = limit;
+      if (Character.isHighSurrogate(out.charAt(length - 1))) {
+        length--;
+      }
+      out.setLength(length);
+      out.append("\n\t... truncated");
+    }
+  }
+
+  /**
+   * @return the fingerprint of a throwable and its causes
+   */
+  public long fingerprint(final Throwable throwable) {
+    long hash = FNV_OFFSET;
+    int causes = 0;
+    for (Throwable current = throwable; current != null && causes < MAX_CAUSES; current = current.getCause()) {
+      causes++;
+      hash = hash(hash, current.getClass().getName());
+      final StackTraceElement[] trace = current.getStackTrace();
+      final int depth = maxDepth > 0 ? Math.min(maxDepth, trace.length) : trace.length;
+      for (int i = 0; i < depth; i++) {
+        hash = hash(hash, trace[i].getClassName());
+        hash = hash(hash, trace[i].getMethodName());
+      }
+    }
+    return hash;
+  }
+
+  /**
+   * Check whether the trace of a fingerprint is to be sent, and if so record
+   * it as sent.
+   *
+   * @param now current time in milliseconds
+   * @return false if it was sent less than the dedup window ago
+   */
+  public boolean shouldSend(final long fingerprint, final long now) {
+    if (dedupWindow <= 0) {
+      return true;
+    }
+    final Long key = Long.valueOf(fingerprint);
+    final Long time = Long.valueOf(now);
+    for (;;) {
+      final Long last = sent.get(key);
+      if (last == null) {
+        if (sent.size() >= MAX_FINGERPRINTS) {
+          sent.clear();
+        }
+        if (sent.putIfAbsent(key, time) == null) {
+          return true;
+        }
+      } else if (now - last.longValue() < dedupWindow) {
+        return false;
+      } else if (sent.replace(key, last, time)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * @return a fingerprint as 16 hexadecimal digits
+   */
+  public static String toHex(final long fingerprint) {
+    final char[] text = new char[16];
+    for (int i = 15; i >= 0; i--) {
+      text[i] = HEX[(int) (fingerprint >>> ((15 - i) * 4)) & 0xf];
+    }
+    return new String(text);
+  }
+
+  private static long hash(long hash, final String text) {
+    for (int i = 0; i < text.length(); i++) {
+      hash = (hash ^ text.charAt(i)) * FNV_PRIME;
+    }
+    return (hash ^ 0xff) * FNV_PRIME;
+  }
+
+  private static boolean contains(final Throwable[] chain, final int length, final Throwable throwable) {
+    for (int i = 0; i < length; i++) {
+      if (chain[i] == throwable) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2020-2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Author: Guillermo Adrián Molina <guillermoadrianmolina@hotmail.com>
+
+package org.apache.log4j.elasticsearch;
+
+/**
+ * UTF-8 encoding of characters straight into a byte array, without the
+ * intermediate arrays of {@link String#getBytes(java.nio.charset.Charset)}.
+ * Malformed surrogates are replaced by <code>?</code>, like
+ * <code>getBytes</code> does.
+ */
+public final class Utf8 {
+  private Utf8() {
+  }
+
+  /**
+   * @return the maximum number of bytes needed to encode <code>chars</code>
+   *         characters
+   */
+  public static int maxBytes(final int chars) {
+    return chars * 3;
+  }
+
+  /**
+   * Encode characters, the destination must have room for
+   * {@link #maxBytes(int)} bytes.
+   *
+   * @param chars    characters to encode
+   * @param start    index of the first character
+   * @param end      index after the last character
+   * @param dst      destination array
+   * @param position position of the first byte in the destination
+   * @return the position after the last byte written
+   */
+  public static int encode(final CharSequence chars, final int start, final int end, final byte[] dst,
+      int position) {
+    for (int i = start; i < end; i++) {
+      final char c = chars.charAt(i);
+      if (c < 0x80) {
+        dst[position++] = (byte) c;
+      } else if (c < 0x800) {
+        dst[position++] = (byte) (0xc0 | (c >> 6));
+        dst[position++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars.charAt(i + 1))) {
+        final int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+        dst[position++] = (byte) (0xf0 | (codePoint >> 18));
+        dst[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        dst[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        dst[position++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+        dst[position++] = '?';
+      } else {
+        dst[position++] = (byte) (0xe0 | (c >> 12));
+        dst[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        dst[position++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    return position;
+  }
+}
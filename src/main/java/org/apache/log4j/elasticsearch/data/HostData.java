@@ -24,6 +24,8 @@ https://github.com/logstash/log4j-jsonevent-layout/blob/master/src/main/java/net
 package org.apache.log4j.elasticsearch.data;
 
 import com.google.gson.JsonObject;
+
+import org.apache.log4j.elasticsearch.JsonTree;
 import java.lang.management.ManagementFactory;
 import java.lang.management.RuntimeMXBean;
 import java.net.UnknownHostException;
@@ -34,7 +36,12 @@ public class HostData {
     private String hostName;
     private int pid;
     Map<String, String> systemProperties;
-    private JsonObject hostData;
+    private volatile JsonObject hostData;
+
+    /**
+     * hostData rendered once, rebuilt only when a field is changed.
+     */
+    private volatile JsonTree.Fragment fragment;
 
     public String getSystemProperty(final String property) {
         return systemProperties.get(property);
@@ -46,6 +53,9 @@ public class HostData {
 
     public void setHostName(final String hostName) {
         this.hostName = hostName;
+        if (hostData != null) {
+            buildHostData();
+        }
     }
 
     public int getPID() {
@@ -54,6 +64,9 @@ public class HostData {
 
     public void setPID(final int pid) {
         this.pid = pid;
+        if (hostData != null) {
+            buildHostData();
+        }
     }
 
     public HostData() {
@@ -80,8 +93,8 @@ public class HostData {
         buildHostData();
     }
 
-    private void buildHostData() {
-        hostData = new JsonObject();
+    private synchronized void buildHostData() {
+        final JsonObject hostData = new JsonObject();
         hostData.addProperty("@version", 1);
 
         final JsonObject host = new JsonObject();
@@ -112,9 +125,19 @@ public class HostData {
             java.addProperty("bits", Integer.parseInt(getSystemProperty("sun.arch.data.model")));
         } catch (final NumberFormatException e) {
         }
+
+        this.fragment = JsonTree.Fragment.of(hostData);
+        this.hostData = hostData;
     }
 
     public JsonObject getCopy() {
         return hostData.deepCopy();
     }
+
+    /**
+     * @return the host fields rendered as JSON, to start each document with
+     */
+    public JsonTree.Fragment getFragment() {
+        return fragment;
+    }
 }
\ No newline at end of file
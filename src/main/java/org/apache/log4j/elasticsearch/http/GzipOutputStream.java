@@ -0,0 +1,108 @@
+/*
+ * Copyright 2020-2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Author: Guillermo Adrián Molina <guillermoadrianmolina@hotmail.com>
+
+package org.apache.log4j.elasticsearch.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip compressing stream that can be reused for many bodies.
+ *
+ * <p>
+ * Unlike {@link java.util.zip.GZIPOutputStream}, the native deflater is kept
+ * between bodies and the compression level is configurable. Call
+ * {@link #reset(OutputStream)} before each body and {@link #finish()} after it.
+ */
+public class GzipOutputStream extends OutputStream {
+  private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+  private final Deflater deflater;
+  private final CRC32 crc = new CRC32();
+  private final byte[] buffer = new byte[8192];
+  private final byte[] single = new byte[1];
+  private OutputStream out;
+
+  /**
+   * @param level compression level, 1 (fastest) to 9 (smallest)
+   */
+  public GzipOutputStream(final int level) {
+    deflater = new Deflater(Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level)), true);
+  }
+
+  /**
+   * Start a new compressed body written to <code>target</code>.
+   */
+  public void reset(final OutputStream target) throws IOException {
+    out = target;
+    deflater.reset();
+    crc.reset();
+    out.write(HEADER);
+  }
+
+  public void write(final int b) throws IOException {
+    single[0] = (byte) b;
+    write(single, 0, 1);
+  }
+
+  public void write(final byte[] data, final int offset, final int length) throws IOException {
+    if (length == 0) {
+      return;
+    }
+    crc.update(data, offset, length);
+    deflater.setInput(data, offset, length);
+    while (!deflater.needsInput()) {
+      deflate();
+    }
+  }
+
+  /**
+   * Complete the body with the gzip trailer.
+   */
+  public void finish() throws IOException {
+    deflater.finish();
+    while (!deflater.finished()) {
+      deflate();
+    }
+    writeInt((int) crc.getValue());
+    writeInt(deflater.getTotalIn());
+  }
+
+  /**
+   * Release the native deflater, the stream can not be used afterwards.
+   */
+  public void close() {
+    deflater.end();
+  }
+
+  private void deflate() throws IOException {
+    final int count = deflater.deflate(buffer, 0, buffer.length);
+    if (count > 0) {
+      out.write(buffer, 0, count);
+    }
+  }
+
+  private void writeInt(final int value) throws IOException {
+    out.write(value & 0xff);
+    out.write((value >> 8) & 0xff);
+    out.write((value >> 16) & 0xff);
+    out.write((value >> 24) & 0xff);
+  }
+}
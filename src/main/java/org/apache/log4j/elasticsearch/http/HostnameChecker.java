@@ -0,0 +1,140 @@
+/*
+ * Copyright 2020-2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Author: Guillermo Adrián Molina <guillermoadrianmolina@hotmail.com>
+
+package org.apache.log4j.elasticsearch.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Checks that the certificate of a server matches its host name, as
+ * HttpsURLConnection does: the subject alternative names, or the common name
+ * when there are no DNS names, then the default HostnameVerifier as a last
+ * resort. Java 6 sockets have no endpoint identification of their own.
+ */
+final class HostnameChecker {
+  private static final int DNS_NAME = 2;
+  private static final int IP_ADDRESS = 7;
+
+  private static final Pattern IPV4 = Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
+
+  private HostnameChecker() {
+  }
+
+  /**
+   * @param host    host name or address the connection was opened to
+   * @param session session of the completed handshake
+   * @throws SSLPeerUnverifiedException if the certificate does not match
+   */
+  static void verify(final String host, final SSLSession session) throws SSLPeerUnverifiedException {
+    final Certificate[] certificates = session.getPeerCertificates();
+    if (certificates.length > 0 && certificates[0] instanceof X509Certificate
+        && matches(host, (X509Certificate) certificates[0])) {
+      return;
+    }
+    if (HttpsURLConnection.getDefaultHostnameVerifier().verify(host, session)) {
+      return;
+    }
+    throw new SSLPeerUnverifiedException("The certificate of the server does not match " + host);
+  }
+
+  static boolean matches(final String host, final X509Certificate certificate) {
+    final boolean address = isAddress(host);
+    boolean hasDnsName = false;
+    final Collection<List<?>> names;
+    try {
+      names = certificate.getSubjectAlternativeNames();
+    } catch (final CertificateParsingException e) {
+      return false;
+    }
+    if (names != null) {
+      for (final List<?> name : names) {
+        final int type = ((Integer) name.get(0)).intValue();
+        if (type == DNS_NAME) {
+          hasDnsName = true;
+          if (!address && matches(host, (String) name.get(1))) {
+            return true;
+          }
+        } else if (type == IP_ADDRESS && address && sameAddress(host, (String) name.get(1))) {
+          return true;
+        }
+      }
+    }
+    if (address || hasDnsName) {
+      return false;
+    }
+    final String commonName = commonName(certificate);
+    return commonName != null && matches(host, commonName);
+  }
+
+  /**
+   * Match a host name with a DNS name of a certificate, a wildcard only stands
+   * for the whole leftmost label.
+   */
+  static boolean matches(final String host, final String name) {
+    final String h = host.toLowerCase(Locale.ENGLISH);
+    final String n = name.toLowerCase(Locale.ENGLISH);
+    if (!n.startsWith("*.")) {
+      return h.equals(n);
+    }
+    final int dot = h.indexOf('.');
+    return dot > 0 && n.indexOf('.', 2) > 0 && h.substring(dot).equals(n.substring(1));
+  }
+
+  private static boolean isAddress(final String host) {
+    return host.indexOf(':') >= 0 || IPV4.matcher(host).matches();
+  }
+
+  private static boolean sameAddress(final String host, final String name) {
+    try {
+      // both are literals, nothing is looked up
+      return InetAddress.getByName(host).equals(InetAddress.getByName(name));
+    } catch (final UnknownHostException e) {
+      return false;
+    }
+  }
+
+  private static String commonName(final X509Certificate certificate) {
+    try {
+      final List<Rdn> rdns = new LdapName(certificate.getSubjectX500Principal().getName()).getRdns();
+      // the most specific name comes last
+      for (int i = rdns.size() - 1; i >= 0; i--) {
+        if ("CN".equalsIgnoreCase(rdns.get(i).getType())) {
+          return rdns.get(i).getValue().toString();
+        }
+      }
+    } catch (final InvalidNameException e) {
+      // no usable common name
+    }
+    return null;
+  }
+}
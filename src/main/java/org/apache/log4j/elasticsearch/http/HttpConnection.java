@@ -0,0 +1,402 @@
+/*
+ * Copyright 2020-2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Author: Guillermo Adrián Molina <guillermoadrianmolina@hotmail.com>
+
+package org.apache.log4j.elasticsearch.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A persistent HTTP/1.1 connection to one server.
+ *
+ * <p>
+ * Only what talking to Elasticsearch needs is implemented: requests with a
+ * known length body, and responses delimited by length, chunked encoding or
+ * the end of the connection. The JVM proxy settings, such as
+ * <code>https.proxyHost</code>, are not used: the server is always connected
+ * to directly.
+ */
+class HttpConnection {
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+  private static final byte[] CRLF = { '\r', '\n' };
+
+  private final Socket socket;
+  private final InputStream in;
+  private final OutputStream out;
+  private final StringBuilder line = new StringBuilder();
+
+  private boolean keepAlive = true;
+  private long lastUsed = System.currentTimeMillis();
+
+  /**
+   * @param sslSocketFactory factory of the https sockets, null for the default
+   *                         one
+   */
+  HttpConnection(final String protocol, final String host, final int port, final int connectTimeout,
+      final int readTimeout, final SSLSocketFactory sslSocketFactory) throws IOException {
+    Socket plain = new Socket();
+    plain.setTcpNoDelay(true);
+    plain.setKeepAlive(true);
+    plain.connect(new InetSocketAddress(host, port), connectTimeout);
+    plain.setSoTimeout(readTimeout);
+    if ("https".equalsIgnoreCase(protocol)) {
+      final SSLSocketFactory factory = sslSocketFactory != null ? sslSocketFactory
+          : (SSLSocketFactory) SSLSocketFactory.getDefault();
+      final SSLSocket ssl = (SSLSocket) factory.createSocket(plain, host, port, true);
+      try {
+        ssl.startHandshake();
+        // the certificate must match the host, like HttpsURLConnection checks
+        HostnameChecker.verify(host, ssl.getSession());
+      } catch (IOException e) {
+        ssl.close();
+        throw e;
+      }
+      plain = ssl;
+    }
+    socket = plain;
+    in = new BufferedInputStream(socket.getInputStream(), 8192);
+    out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+  }
+
+  /**
+   * Send a request and read the response status and headers.
+   *
+   * @param requestLine request line without line terminator
+   * @param headers     pre-encoded header lines, each terminated by CRLF
+   * @param body        request body, may be null
+   * @param transport   transport the connection belongs to
+   */
+  HttpResponse execute(final String requestLine, final byte[] headers, final RequestBody body,
+      final HttpTransport transport) throws IOException {
+    out.write(requestLine.getBytes(ASCII));
+    out.write(CRLF);
+    out.write(headers);
+    if (body != null) {
+      final StringBuilder bodyHeaders = new StringBuilder();
+      bodyHeaders.append("Content-Type: ").append(body.getContentType()).append("\r\n");
+      if (body.getContentEncoding() != null) {
+        bodyHeaders.append("Content-Encoding: ").append(body.getContentEncoding()).append("\r\n");
+      }
+      if (body.getContentLength() < 0) {
+        bodyHeaders.append("Transfer-Encoding: chunked\r\n");
+      } else {
+        bodyHeaders.append("Content-Length: ").append(body.getContentLength()).append("\r\n");
+      }
+      out.write(bodyHeaders.toString().getBytes(ASCII));
+    }
+    out.write(CRLF);
+    if (body != null) {
+      if (body.getContentLength() < 0) {
+        final ChunkedOutputStream chunked = new ChunkedOutputStream();
+        body.writeTo(chunked);
+        chunked.finish();
+      } else {
+        body.writeTo(out);
+      }
+    }
+    out.flush();
+    return readResponse(requestLine.startsWith("HEAD "), transport);
+  }
+
+  private HttpResponse readResponse(final boolean head, final HttpTransport transport) throws IOException {
+    String statusLine = readLine();
+    // skip interim responses such as 100 Continue
+    while (statusLine.startsWith("HTTP/1.1 1") || statusLine.startsWith("HTTP/1.0 1")) {
+      while (readLine().length() > 0) {
+      }
+      statusLine = readLine();
+    }
+    final String[] parts = statusLine.split(" ", 3);
+    if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+      throw new IOException("Invalid HTTP status line: " + statusLine);
+    }
+    final int status;
+    try {
+      status = Integer.parseInt(parts[1]);
+    } catch (final NumberFormatException e) {
+      throw new IOException("Invalid HTTP status line: " + statusLine);
+    }
+
+    final Map<String, String> headers = new HashMap<String, String>();
+    String header;
+    while ((header = readLine()).length() > 0) {
+      final int colon = header.indexOf(':');
+      if (colon > 0) {
+        headers.put(header.substring(0, colon).trim().toLowerCase(), header.substring(colon + 1).trim());
+      }
+    }
+
+    keepAlive = !"close".equalsIgnoreCase(headers.get("connection")) && !parts[0].equals("HTTP/1.0");
+
+    final InputStream body;
+    final String contentLength = headers.get("content-length");
+    if (head || status == 204 || status == 304) {
+      body = new LengthInputStream(in, 0);
+    } else if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+      body = new ChunkedInputStream(in);
+    } else if (contentLength != null) {
+      body = new LengthInputStream(in, Long.parseLong(contentLength));
+    } else {
+      keepAlive = false;
+      body = in;
+    }
+    return new HttpResponse(status, headers, body, this, transport);
+  }
+
+  private String readLine() throws IOException {
+    line.setLength(0);
+    int c;
+    while ((c = in.read()) != '\n') {
+      if (c == -1) {
+        throw new EOFException("Connection closed by server");
+      }
+      if (c != '\r') {
+        line.append((char) c);
+      }
+    }
+    return line.toString();
+  }
+
+  /**
+   * Check whether the server closed the connection while it was idle.
+   */
+  boolean isStale() {
+    if (socket.isClosed() || !keepAlive) {
+      return true;
+    }
+    try {
+      final int timeout = socket.getSoTimeout();
+      try {
+        socket.setSoTimeout(1);
+        in.mark(1);
+        if (in.read() == -1) {
+          return true;
+        }
+        in.reset();
+        return false;
+      } finally {
+        socket.setSoTimeout(timeout);
+      }
+    } catch (final SocketTimeoutException e) {
+      return false;
+    } catch (final IOException e) {
+      return true;
+    }
+  }
+
+  boolean isKeepAlive() {
+    return keepAlive;
+  }
+
+  long getLastUsed() {
+    return lastUsed;
+  }
+
+  void touch() {
+    lastUsed = System.currentTimeMillis();
+  }
+
+  void close() {
+    keepAlive = false;
+    try {
+      socket.close();
+    } catch (final IOException e) {
+    }
+  }
+
+  /**
+   * Request body in chunked transfer encoding, written straight to the socket
+   * stream.
+   */
+  private class ChunkedOutputStream extends OutputStream {
+    private final byte[] buffer = new byte[8192];
+    private int count = 0;
+
+    public void write(final int b) throws IOException {
+      if (count == buffer.length) {
+        flushChunk();
+      }
+      buffer[count++] = (byte) b;
+    }
+
+    public void write(final byte[] data, int offset, int length) throws IOException {
+      if (length >= buffer.length) {
+        flushChunk();
+        writeChunk(data, offset, length);
+        return;
+      }
+      if (count + length > buffer.length) {
+        flushChunk();
+      }
+      System.arraycopy(data, offset, buffer, count, length);
+      count += length;
+    }
+
+    private void flushChunk() throws IOException {
+      writeChunk(buffer, 0, count);
+      count = 0;
+    }
+
+    private void writeChunk(final byte[] data, final int offset, final int length) throws IOException {
+      if (length == 0) {
+        return;
+      }
+      out.write(Integer.toHexString(length).getBytes(ASCII));
+      out.write(CRLF);
+      out.write(data, offset, length);
+      out.write(CRLF);
+    }
+
+    void finish() throws IOException {
+      flushChunk();
+      out.write('0');
+      out.write(CRLF);
+      out.write(CRLF);
+    }
+  }
+
+  /**
+   * Body delimited by a content length.
+   */
+  private static class LengthInputStream extends FilterInputStream {
+    private long remaining;
+
+    LengthInputStream(final InputStream in, final long length) {
+      super(in);
+      this.remaining = length;
+    }
+
+    public int read() throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      final int c = in.read();
+      if (c == -1) {
+        throw new EOFException("Truncated response body");
+      }
+      remaining--;
+      return c;
+    }
+
+    public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      final int count = in.read(buffer, offset, (int) Math.min(length, remaining));
+      if (count == -1) {
+        throw new EOFException("Truncated response body");
+      }
+      remaining -= count;
+      return count;
+    }
+
+    public int available() throws IOException {
+      return (int) Math.min(in.available(), remaining);
+    }
+
+    public void close() {
+    }
+  }
+
+  /**
+   * Body in chunked transfer encoding.
+   */
+  private class ChunkedInputStream extends FilterInputStream {
+    private long remaining = 0;
+    private boolean eof = false;
+
+    ChunkedInputStream(final InputStream in) {
+      super(in);
+    }
+
+    private boolean nextChunk() throws IOException {
+      if (eof) {
+        return false;
+      }
+      if (remaining == 0) {
+        String size = readLine();
+        if (size.length() == 0) {
+          // CRLF ending the previous chunk
+          size = readLine();
+        }
+        final int extension = size.indexOf(';');
+        if (extension >= 0) {
+          size = size.substring(0, extension);
+        }
+        try {
+          remaining = Long.parseLong(size.trim(), 16);
+        } catch (final NumberFormatException e) {
+          throw new IOException("Invalid chunk size: " + size);
+        }
+        if (remaining == 0) {
+          // trailers
+          while (readLine().length() > 0) {
+          }
+          eof = true;
+          return false;
+        }
+      }
+      return true;
+    }
+
+    public int read() throws IOException {
+      if (!nextChunk()) {
+        return -1;
+      }
+      final int c = in.read();
+      if (c == -1) {
+        throw new EOFException("Truncated response body");
+      }
+      remaining--;
+      return c;
+    }
+
+    public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+      if (!nextChunk()) {
+        return -1;
+      }
+      final int count = in.read(buffer, offset, (int) Math.min(length, remaining));
+      if (count == -1) {
+        throw new EOFException("Truncated response body");
+      }
+      remaining -= count;
+      return count;
+    }
+
+    public int available() throws IOException {
+      return (int) Math.min(in.available(), remaining);
+    }
+
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2020-2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Author: Guillermo Adrián Molina <guillermoadrianmolina@hotmail.com>
+
+package org.apache.log4j.elasticsearch.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Response to a request sent through an {@link HttpTransport}.
+ *
+ * <p>
+ * The response holds the connection it was read from until it is closed, the
+ * body must be read or discarded by calling {@link #close()} for the connection
+ * to go back to the pool.
+ */
+public class HttpResponse {
+  private final int status;
+  private final Map<String, String> headers;
+  private final InputStream body;
+  private final HttpConnection connection;
+  private final HttpTransport transport;
+  private boolean closed = false;
+
+  HttpResponse(final int status, final Map<String, String> headers, final InputStream body,
+      final HttpConnection connection, final HttpTransport transport) {
+    this.status = status;
+    this.headers = headers;
+    this.body = body;
+    this.connection = connection;
+    this.transport = transport;
+  }
+
+  /**
+   * @return the HTTP status code
+   */
+  public int getStatus() {
+    return status;
+  }
+
+  /**
+   * @param name header name, case insensitive
+   * @return the header value or null
+   */
+  public String getHeader(final String name) {
+    return headers.get(name.toLowerCase());
+  }
+
+  /**
+   * @return the response body, limited to this response
+   */
+  public InputStream getBody() {
+    return body;
+  }
+
+  /**
+   * Read the whole body as UTF-8 text.
+   *
+   * @return the body
+   * @throws IOException if the body can not be read
+   */
+  public String readBody() throws IOException {
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[4096];
+    int count;
+    while ((count = body.read(buffer)) != -1) {
+      output.write(buffer, 0, count);
+    }
+    return output.toString("UTF-8");
+  }
+
+  /**
+   * Discard the rest of the body and release the connection.
+   */
+  public void close() {
+    if (closed)
+      return;
+    closed = true;
+    boolean reusable = connection.isKeepAlive();
+    if (reusable) {
+      try {
+        final byte[] buffer = new byte[4096];
+        while (body.read(buffer) != -1) {
+        }
+      } catch (IOException e) {
+        reusable = false;
+      }
+    }
+    transport.release(connection, reusable);
+  }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2020-2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Author: Guillermo Adrián Molina <guillermoadrianmolina@hotmail.com>
+
+package org.apache.log4j.elasticsearch.http;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * Pool of persistent HTTP connections to one Elasticsearch node.
+ *
+ * <p>
+ * At most <code>maxConnections</code> connections are open at a time, callers
+ * wait up to the connect timeout for one to be released. Connections idle for
+ * longer than the idle timeout are closed by a background thread, which can
+ * also keep the remaining ones warm with a <code>HEAD /</code> request so that
+ * load balancers and firewalls do not drop them.
+ */
+public class HttpTransport {
+  private static final Charset UTF8_CHARSET = Charset.forName("UTF-8");
+
+  /**
+   * Creates configured transports, one per node.
+   */
+  public interface Factory {
+    HttpTransport create(String host, int port);
+  }
+
+  /**
+   * Thrown when every connection of the pool stays busy for the connect
+   * timeout, the server itself may be perfectly healthy.
+   */
+  public static class PoolExhaustedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public PoolExhaustedException(final String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Thrown when no connection to the server could be opened, unlike failures
+   * of a request on an open connection such as read timeouts.
+   */
+  public static class UnreachableException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public UnreachableException(final String message, final Throwable cause) {
+      super(message, cause);
+    }
+  }
+
+  public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+  public static final int DEFAULT_READ_TIMEOUT = 30000;
+  public static final int DEFAULT_MAX_CONNECTIONS = 4;
+  public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+  public static final long DEFAULT_KEEP_ALIVE_INTERVAL = 0;
+
+  private final String protocol;
+  private final String host;
+  private final int port;
+
+  private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+  private int readTimeout = DEFAULT_READ_TIMEOUT;
+  private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+  private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+  private long keepAliveInterval = DEFAULT_KEEP_ALIVE_INTERVAL;
+  private SSLSocketFactory sslSocketFactory;
+
+  /**
+   * Header lines sent with every request, encoded once.
+   */
+  private byte[] headers;
+
+  private Semaphore permits;
+  private final ArrayDeque<HttpConnection> idle = new ArrayDeque<HttpConnection>();
+  private Thread maintenance;
+  private volatile boolean closed = false;
+
+  /**
+   * Create a transport, it must be started before use.
+   *
+   * @param protocol http or https
+   * @param host     server host
+   * @param port     server port
+   */
+  public HttpTransport(final String protocol, final String host, final int port) {
+    this.protocol = protocol;
+    this.host = host;
+    this.port = port;
+  }
+
+  public void setConnectTimeout(final int connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  public void setReadTimeout(final int readTimeout) {
+    this.readTimeout = readTimeout;
+  }
+
+  public void setMaxConnections(final int maxConnections) {
+    this.maxConnections = Math.max(1, maxConnections);
+  }
+
+  public void setIdleTimeout(final long idleTimeout) {
+    this.idleTimeout = idleTimeout;
+  }
+
+  public void setKeepAliveInterval(final long keepAliveInterval) {
+    this.keepAliveInterval = keepAliveInterval;
+  }
+
+  /**
+   * @param sslSocketFactory factory of the https sockets, the default one if
+   *                         null
+   */
+  void setSSLSocketFactory(final SSLSocketFactory sslSocketFactory) {
+    this.sslSocketFactory = sslSocketFactory;
+  }
+
+  public String getHost() {
+    return host;
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  /**
+   * Pre-compute the request headers and start the maintenance thread.
+   *
+   * @param username user for basic authentication, may be null
+   * @param password password for basic authentication, may be null
+   */
+  public void start(final String username, final String password) {
+    final StringBuilder builder = new StringBuilder();
+    builder.append("Host: ").append(host).append(':').append(port).append("\r\n");
+    builder.append("Connection: keep-alive\r\n");
+    builder.append("Accept: application/json\r\n");
+    if (username != null && password != null) {
+      final String userpass = username + ":" + password;
+      builder.append("Authorization: Basic ")
+          .append(new String(Base64.encodeBase64(userpass.getBytes(UTF8_CHARSET)), UTF8_CHARSET)).append("\r\n");
+    }
+    headers = builder.toString().getBytes(UTF8_CHARSET);
+    permits = new Semaphore(maxConnections, true);
+
+    if (idleTimeout > 0 || keepAliveInterval > 0) {
+      maintenance = new Thread(new Maintenance());
+      maintenance.setDaemon(true);
+      maintenance.setName("HttpTransport-" + host + ":" + port);
+      maintenance.start();
+    }
+  }
+
+  /**
+   * Send a request on a pooled connection. The response must be closed.
+   *
+   * @param method HTTP method
+   * @param path   absolute path and query
+   * @param body   request body, may be null
+   * @return the response
+   * @throws IOException if the request could not be sent or the response read
+   */
+  public HttpResponse execute(final String method, final String path, final RequestBody body) throws IOException {
+    if (closed) {
+      throw new IOException("Transport is closed");
+    }
+    final HttpConnection connection = acquire();
+    try {
+      return connection.execute(method + " " + path + " HTTP/1.1", headers, body, this);
+    } catch (IOException e) {
+      release(connection, false);
+      throw e;
+    } catch (RuntimeException e) {
+      release(connection, false);
+      throw e;
+    }
+  }
+
+  /**
+   * Send a request with a byte array body on a pooled connection. The response
+   * must be closed.
+   *
+   * @param contentType content type of the body, ignored if body is null
+   * @param body        request body, may be null
+   * @param offset      offset of the body
+   * @param length      length of the body
+   * @see #execute(String, String, RequestBody)
+   */
+  public HttpResponse execute(final String method, final String path, final String contentType, final byte[] body,
+      final int offset, final int length) throws IOException {
+    return execute(method, path, body == null ? null : RequestBody.create(contentType, body, offset, length));
+  }
+
+  /**
+   * Send a request and discard the response body.
+   *
+   * @return the response status
+   */
+  public int execute(final String method, final String path) throws IOException {
+    final HttpResponse response = execute(method, path, null, null, 0, 0);
+    response.close();
+    return response.getStatus();
+  }
+
+  private HttpConnection acquire() throws IOException {
+    try {
+      if (!permits.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS)) {
+        throw new PoolExhaustedException("No connection available to " + host + ":" + port);
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for a connection to " + host + ":" + port);
+    }
+    while (true) {
+      HttpConnection connection;
+      synchronized (idle) {
+        connection = idle.pollFirst();
+      }
+      if (connection == null) {
+        break;
+      }
+      if (!connection.isStale()) {
+        return connection;
+      }
+      connection.close();
+    }
+    try {
+      return new HttpConnection(protocol, host, port, connectTimeout, readTimeout, sslSocketFactory);
+    } catch (IOException e) {
+      permits.release();
+      throw new UnreachableException("Could not connect to " + host + ":" + port + ": " + e, e);
+    } catch (RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Give a connection back to the pool.
+   *
+   * @param reusable false to close the connection
+   */
+  void release(final HttpConnection connection, final boolean reusable) {
+    if (reusable && !closed) {
+      connection.touch();
+      synchronized (idle) {
+        idle.addFirst(connection);
+      }
+    } else {
+      connection.close();
+    }
+    permits.release();
+  }
+
+  /**
+   * Close every connection and stop the maintenance thread.
+   */
+  public void close() {
+    closed = true;
+    synchronized (idle) {
+      for (final HttpConnection connection : idle) {
+        connection.close();
+      }
+      idle.clear();
+    }
+    if (maintenance != null) {
+      maintenance.interrupt();
+    }
+  }
+
+  /**
+   * Closes idle connections and keeps the others warm.
+   */
+  private class Maintenance implements Runnable {
+    public void run() {
+      long period = Long.MAX_VALUE;
+      if (idleTimeout > 0)
+        period = Math.min(period, Math.max(1000, idleTimeout / 2));
+      if (keepAliveInterval > 0)
+        period = Math.min(period, Math.max(1000, keepAliveInterval / 2));
+
+      while (!closed) {
+        try {
+          Thread.sleep(period);
+        } catch (final InterruptedException e) {
+          return;
+        }
+
+        final long now = System.currentTimeMillis();
+        final List<HttpConnection> warm = new ArrayList<HttpConnection>();
+        synchronized (idle) {
+          final Iterator<HttpConnection> iterator = idle.iterator();
+          while (iterator.hasNext()) {
+            final HttpConnection connection = iterator.next();
+            final long idleTime = now - connection.getLastUsed();
+            if (idleTimeout > 0 && idleTime >= idleTimeout) {
+              iterator.remove();
+              connection.close();
+            } else if (keepAliveInterval > 0 && idleTime >= keepAliveInterval) {
+              iterator.remove();
+              warm.add(connection);
+            }
+          }
+        }
+
+        for (final HttpConnection connection : warm) {
+          if (!permits.tryAcquire()) {
+            synchronized (idle) {
+              idle.addLast(connection);
+            }
+            continue;
+          }
+          try {
+            connection.execute("HEAD / HTTP/1.1", headers, null, HttpTransport.this).close();
+          } catch (IOException e) {
+            LogLog.debug("Dropping idle connection to " + host + ":" + port + ": " + e);
+            release(connection, false);
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2020-2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Author: Guillermo Adrián Molina <guillermoadrianmolina@hotmail.com>
+
+package org.apache.log4j.elasticsearch.http;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.helpers.LogLog;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Set of Elasticsearch nodes requests are spread over.
+ *
+ * <p>
+ * Nodes that fail to answer are marked dead and skipped until a background
+ * probe finds them alive again. Optionally, the HTTP addresses of the rest of
+ * the cluster are discovered periodically through <code>_nodes/http</code>.
+ */
+public class NodePool {
+  public static final String ROUND_ROBIN = "RoundRobin";
+  public static final String LEAST_IN_FLIGHT = "LeastInFlight";
+
+  public static final long DEFAULT_RETRY_INTERVAL = 10000;
+  public static final long DEFAULT_DISCOVERY_INTERVAL = 300000;
+
+  private static final String DISCOVERY_PATH = "/_nodes/http?filter_path=nodes.*.http.publish_address";
+
+  /**
+   * A node and its health.
+   */
+  public static class Node {
+    private final HttpTransport transport;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile boolean alive = true;
+
+    Node(final HttpTransport transport) {
+      this.transport = transport;
+    }
+
+    public HttpTransport getTransport() {
+      return transport;
+    }
+
+    public boolean isAlive() {
+      return alive;
+    }
+
+    public int getInFlight() {
+      return inFlight.get();
+    }
+
+    public String toString() {
+      return transport.getHost() + ":" + transport.getPort();
+    }
+  }
+
+  private final HttpTransport.Factory factory;
+  private final List<Node> nodes = new CopyOnWriteArrayList<Node>();
+  private final AtomicInteger next = new AtomicInteger();
+  private boolean leastInFlight = false;
+  private long retryInterval = DEFAULT_RETRY_INTERVAL;
+  private boolean discover = false;
+  private long discoveryInterval = DEFAULT_DISCOVERY_INTERVAL;
+  private Thread monitor;
+  private volatile boolean closed = false;
+
+  /**
+   * @param factory creates the transport to each node
+   */
+  public NodePool(final HttpTransport.Factory factory) {
+    this.factory = factory;
+  }
+
+  /**
+   * @param strategy RoundRobin or LeastInFlight
+   */
+  public void setLoadBalancing(final String strategy) {
+    leastInFlight = LEAST_IN_FLIGHT.equalsIgnoreCase(strategy);
+  }
+
+  public void setRetryInterval(final long retryInterval) {
+    this.retryInterval = retryInterval;
+  }
+
+  public void setDiscover(final boolean discover) {
+    this.discover = discover;
+  }
+
+  public void setDiscoveryInterval(final long discoveryInterval) {
+    this.discoveryInterval = discoveryInterval;
+  }
+
+  /**
+   * Add a node, unless it is already in the pool.
+   */
+  public void addNode(final String host, final int port) {
+    for (final Node node : nodes) {
+      if (node.transport.getHost().equalsIgnoreCase(host) && node.transport.getPort() == port) {
+        return;
+      }
+    }
+    nodes.add(new Node(factory.create(host, port)));
+  }
+
+  /**
+   * Add the nodes in a comma separated list of <code>host[:port]</code>.
+   *
+   * @param hosts       list of hosts
+   * @param defaultPort port of the hosts without one
+   */
+  public void addNodes(final String hosts, final int defaultPort) {
+    for (final String entry : hosts.split(",")) {
+      String host = entry.trim();
+      if (host.length() == 0) {
+        continue;
+      }
+      int port = defaultPort;
+      final int colon = host.lastIndexOf(':');
+      if (colon > 0 && host.indexOf(']') < colon && (host.startsWith("[") || host.indexOf(':') == colon)) {
+        try {
+          port = Integer.parseInt(host.substring(colon + 1));
+          host = host.substring(0, colon);
+        } catch (final NumberFormatException e) {
+          LogLog.warn("Invalid port in host [" + entry + "]");
+        }
+      }
+      if (host.startsWith("[") && host.endsWith("]")) {
+        host = host.substring(1, host.length() - 1);
+      }
+      addNode(host, port);
+    }
+  }
+
+  public List<Node> getNodes() {
+    return new ArrayList<Node>(nodes);
+  }
+
+  /**
+   * Start the background probe and discovery.
+   */
+  public void start() {
+    if (discover) {
+      discover();
+    }
+    monitor = new Thread(new Monitor());
+    monitor.setDaemon(true);
+    monitor.setName("NodePool-" + monitor.getName());
+    monitor.start();
+  }
+
+  /**
+   * Pick the node for the next request, dead nodes are only picked if every
+   * node is dead.
+   *
+   * @return the node or null if the pool is empty
+   */
+  public Node select() {
+    final int size = nodes.size();
+    if (size == 0) {
+      return null;
+    }
+    final int start = (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+    Node best = null;
+    for (int i = 0; i < size; i++) {
+      final Node node;
+      try {
+        node = nodes.get((start + i) % size);
+      } catch (final IndexOutOfBoundsException e) {
+        break;
+      }
+      if (!node.alive) {
+        continue;
+      }
+      if (!leastInFlight) {
+        return node;
+      }
+      if (best == null || node.inFlight.get() < best.inFlight.get()) {
+        best = node;
+      }
+    }
+    return best != null ? best : nodes.get(start % nodes.size());
+  }
+
+  /**
+   * Send a request to a live node, failing over to the next node if it can not
+   * be reached. Other failures, such as read timeouts, leave the node alive and
+   * are left to the caller to retry. The response must be closed.
+   *
+   * @see HttpTransport#execute(String, String, RequestBody)
+   */
+  public HttpResponse execute(final String method, final String path, final RequestBody body) throws IOException {
+    IOException failure = null;
+    final int attempts = Math.max(1, nodes.size());
+    for (int i = 0; i < attempts; i++) {
+      final Node node = select();
+      if (node == null) {
+        break;
+      }
+      node.inFlight.incrementAndGet();
+      try {
+        return node.transport.execute(method, path, body);
+      } catch (final HttpTransport.UnreachableException e) {
+        failure = e;
+        markDead(node, e);
+      } catch (final HttpTransport.PoolExhaustedException e) {
+        failure = e;
+      } finally {
+        node.inFlight.decrementAndGet();
+      }
+    }
+    throw failure != null ? failure : new IOException("No Elasticsearch node configured");
+  }
+
+  /**
+   * @see HttpTransport#execute(String, String, String, byte[], int, int)
+   */
+  public HttpResponse execute(final String method, final String path, final String contentType, final byte[] body,
+      final int offset, final int length) throws IOException {
+    return execute(method, path, body == null ? null : RequestBody.create(contentType, body, offset, length));
+  }
+
+  /**
+   * Stop the background thread and close every connection.
+   */
+  public void close() {
+    closed = true;
+    if (monitor != null) {
+      monitor.interrupt();
+    }
+    for (final Node node : nodes) {
+      node.transport.close();
+    }
+  }
+
+  private void markDead(final Node node, final IOException e) {
+    if (node.alive) {
+      node.alive = false;
+      LogLog.warn("Elasticsearch node " + node + " is unavailable: " + e);
+    }
+  }
+
+  /**
+   * Probe a dead node with a lightweight request.
+   */
+  private void probe(final Node node) {
+    try {
+      if (node.transport.execute("HEAD", "/") < 500) {
+        node.alive = true;
+        LogLog.warn("Elasticsearch node " + node + " is available again");
+      }
+    } catch (final IOException e) {
+      LogLog.debug("Elasticsearch node " + node + " is still unavailable: " + e);
+    }
+  }
+
+  /**
+   * Add the HTTP publish addresses of the cluster nodes to the pool.
+   */
+  private void discover() {
+    final Node node = select();
+    if (node == null) {
+      return;
+    }
+    try {
+      final HttpResponse response = node.transport.execute("GET", DISCOVERY_PATH, null, null, 0, 0);
+      try {
+        if (response.getStatus() != 200) {
+          LogLog.warn("Node discovery failed with status " + response.getStatus());
+          return;
+        }
+        final JsonElement root = JsonParser.parseReader(new InputStreamReader(response.getBody(), "UTF-8"));
+        if (!root.isJsonObject() || !root.getAsJsonObject().has("nodes")) {
+          return;
+        }
+        final JsonObject discovered = root.getAsJsonObject().getAsJsonObject("nodes");
+        for (final Map.Entry<String, JsonElement> entry : discovered.entrySet()) {
+          final JsonObject http = entry.getValue().getAsJsonObject().getAsJsonObject("http");
+          if (http == null || !http.has("publish_address")) {
+            continue;
+          }
+          // either "ip:port" or "hostname/ip:port"
+          String address = http.get("publish_address").getAsString();
+          final int slash = address.indexOf('/');
+          if (slash >= 0) {
+            address = address.substring(slash + 1);
+          }
+          final int before = nodes.size();
+          addNodes(address, node.transport.getPort());
+          if (nodes.size() > before) {
+            LogLog.debug("Discovered Elasticsearch node " + address);
+          }
+        }
+      } finally {
+        response.close();
+      }
+    } catch (final HttpTransport.UnreachableException e) {
+      markDead(node, e);
+    } catch (final IOException e) {
+      LogLog.debug("Could not discover the nodes of the cluster: " + e);
+    } catch (final RuntimeException e) {
+      LogLog.warn("Could not parse the node discovery response: " + e);
+    }
+  }
+
+  /**
+   * Probes dead nodes and discovers new ones.
+   */
+  private class Monitor implements Runnable {
+    public void run() {
+      long lastDiscovery = System.currentTimeMillis();
+      long period = retryInterval > 0 ? retryInterval : Long.MAX_VALUE;
+      if (discover && discoveryInterval > 0) {
+        period = Math.min(period, discoveryInterval);
+      }
+      if (period == Long.MAX_VALUE) {
+        return;
+      }
+      while (!closed) {
+        try {
+          Thread.sleep(period);
+        } catch (final InterruptedException e) {
+          return;
+        }
+        if (retryInterval > 0) {
+          for (final Node node : nodes) {
+            if (!node.alive) {
+              probe(node);
+            }
+          }
+        }
+        final long now = System.currentTimeMillis();
+        if (discover && discoveryInterval > 0 && now - lastDiscovery >= discoveryInterval) {
+          lastDiscovery = now;
+          discover();
+        }
+      }
+    }
+  }
+}
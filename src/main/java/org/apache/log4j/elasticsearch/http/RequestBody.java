@@ -0,0 +1,74 @@
+/*
+ * Copyright 2020-2020 The Apache Software Foundation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Author: Guillermo Adrián Molina <guillermoadrianmolina@hotmail.com>
+
+package org.apache.log4j.elasticsearch.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Body of a request sent through an {@link HttpTransport}.
+ */
+public abstract class RequestBody {
+  private final String contentType;
+  private String contentEncoding;
+
+  protected RequestBody(final String contentType) {
+    this.contentType = contentType;
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  /**
+   * @return the content encoding, such as gzip, or null
+   */
+  public String getContentEncoding() {
+    return contentEncoding;
+  }
+
+  public void setContentEncoding(final String contentEncoding) {
+    this.contentEncoding = contentEncoding;
+  }
+
+  /**
+   * @return the length of the body in bytes
+   */
+  public abstract long getContentLength();
+
+  /**
+   * Write the body, it may be called again if the request is retried.
+   */
+  public abstract void writeTo(OutputStream out) throws IOException;
+
+  /**
+   * Create a body from a byte array, which is not copied.
+   */
+  public static RequestBody create(final String contentType, final byte[] data, final int offset, final int length) {
+    return new RequestBody(contentType) {
+      public long getContentLength() {
+        return length;
+      }
+
+      public void writeTo(final OutputStream out) throws IOException {
+        out.write(data, offset, length);
+      }
+    };
+  }
+}
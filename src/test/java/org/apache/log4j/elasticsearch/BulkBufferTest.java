@@ -0,0 +1,76 @@
+package org.apache.log4j.elasticsearch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for BulkBuffer.
+ */
+public class BulkBufferTest extends TestCase {
+
+    public void testEncodingMatchesGetBytes() throws IOException {
+        final String[] docs = { "{\"message\":\"plain\"}\n", "{\"message\":\"élève €\"}\n",
+                "{\"message\":\"😀 emoji\"}\n", "{\"message\":\"lone \ud83d surrogate\"}\n" };
+        final BulkBuffer buffer = new BulkBuffer(16);
+        for (final String doc : docs) {
+            buffer.addDocument(doc);
+        }
+        assertEquals(docs.length, buffer.getCount());
+
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < docs.length; i++) {
+            final byte[] bytes = docs[i].getBytes("UTF-8");
+            assertTrue(Arrays.equals(bytes, Arrays.copyOfRange(buffer.array(), buffer.documentOffset(i),
+                    buffer.documentOffset(i) + buffer.documentLength(i))));
+            expected.write("{\"index\":{}}\n".getBytes("UTF-8"));
+            expected.write(bytes);
+        }
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        buffer.body().writeTo(body);
+        assertEquals(expected.size(), buffer.body().getContentLength());
+        assertTrue(Arrays.equals(expected.toByteArray(), body.toByteArray()));
+    }
+
+    public void testClearKeepsBuffer() {
+        final BulkBuffer buffer = new BulkBuffer(16);
+        buffer.addDocument("{\"a\":1}\n");
+        final byte[] array = buffer.array();
+        buffer.clear();
+        assertTrue(buffer.isEmpty());
+        assertEquals(0, buffer.getLength());
+        buffer.addDocument("{\"b\":2}\n");
+        assertSame(array, buffer.array());
+        assertEquals(1, buffer.getCount());
+    }
+
+    public void testTruncate() {
+        final BulkBuffer buffer = new BulkBuffer(16);
+        buffer.addDocument("{\"a\":1}\n");
+        final int length = buffer.getLength();
+        buffer.addDocument("{\"b\":2}\n");
+        buffer.truncate(1);
+        assertEquals(1, buffer.getCount());
+        assertEquals(length, buffer.getLength());
+        buffer.truncate(5);
+        assertEquals(1, buffer.getCount());
+    }
+
+    public void testNewDocument() throws IOException {
+        final BulkBuffer expected = new BulkBuffer(16);
+        expected.addDocument("{\"a\":\"é\"}\n");
+        expected.addDocument("{\"b\":2}\n");
+
+        final BulkBuffer buffer = new BulkBuffer(16);
+        buffer.newDocument().write("{\"a\":\"é\"}\n".getBytes("UTF-8"));
+        buffer.newDocument().write("{\"b\":2}\n".getBytes("UTF-8"));
+        assertEquals(2, buffer.getCount());
+        assertEquals(expected.getLength(), buffer.getLength());
+        assertTrue(Arrays.equals(Arrays.copyOf(expected.array(), expected.getLength()),
+                Arrays.copyOf(buffer.array(), buffer.getLength())));
+        assertEquals(expected.documentLength(0), buffer.documentLength(0));
+    }
+}
@@ -0,0 +1,126 @@
+package org.apache.log4j.elasticsearch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for BulkJournal.
+ */
+public class BulkJournalTest extends TestCase {
+    private File directory;
+
+    protected void setUp() throws IOException {
+        directory = File.createTempFile("journal", "");
+        directory.delete();
+    }
+
+    protected void tearDown() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static void append(final BulkJournal journal, final String doc) throws IOException {
+        final byte[] data = doc.getBytes("UTF-8");
+        journal.append(data, 0, data.length);
+    }
+
+    private static List<String> read(final BulkJournal journal, final int max) throws IOException {
+        final BulkBuffer docs = new BulkBuffer(256);
+        journal.read(docs, max);
+        final List<String> result = new ArrayList<String>();
+        for (int i = 0; i < docs.getCount(); i++) {
+            result.add(new String(docs.array(), docs.documentOffset(i), docs.documentLength(i), "UTF-8"));
+        }
+        return result;
+    }
+
+    public void testReadStopsAtMaxBytes() throws IOException {
+        final BulkJournal journal = new BulkJournal(directory, 256, 0);
+        append(journal, "0123456789");
+        append(journal, "0123456789");
+        append(journal, "0123456789");
+
+        final BulkBuffer docs = new BulkBuffer(256);
+        assertEquals(2, journal.read(docs, 10, 2 * BulkBuffer.itemLength(10)));
+        assertEquals(2 * BulkBuffer.itemLength(10), docs.getLength());
+
+        // a document larger than the limit is still read on its own
+        docs.clear();
+        assertEquals(1, journal.read(docs, 10, 1));
+        journal.close();
+    }
+
+    public void testReadCommitAndRewind() throws IOException {
+        final BulkJournal journal = new BulkJournal(directory, 64, 0);
+        append(journal, "one");
+        append(journal, "two");
+        append(journal, "three");
+
+        assertEquals(2, read(journal, 2).size());
+        journal.commit();
+        assertEquals("[three]", read(journal, 10).toString());
+        journal.rewind();
+        assertTrue(journal.hasUnread());
+        assertEquals("[three]", read(journal, 10).toString());
+        journal.commit();
+        assertFalse(journal.hasUnread());
+        journal.close();
+    }
+
+    public void testSegmentsRollAndSurviveReopen() throws IOException {
+        BulkJournal journal = new BulkJournal(directory, 16, 0);
+        for (int i = 0; i < 10; i++) {
+            append(journal, "document-" + i);
+        }
+        assertEquals(3, read(journal, 3).size());
+        journal.commit();
+        journal.close();
+
+        journal = new BulkJournal(directory, 16, 0);
+        final List<String> docs = read(journal, 100);
+        assertEquals(7, docs.size());
+        assertEquals("document-3", docs.get(0));
+        assertEquals("document-9", docs.get(6));
+        append(journal, "document-10");
+        assertEquals("[document-10]", read(journal, 100).toString());
+        journal.close();
+    }
+
+    public void testOldestSegmentsAreDiscardedWhenFull() throws IOException {
+        final BulkJournal journal = new BulkJournal(directory, 16, 2);
+        for (int i = 0; i < 10; i++) {
+            append(journal, "document-" + i);
+        }
+        final List<String> docs = read(journal, 100);
+        assertEquals("[document-8, document-9]", docs.toString());
+        journal.close();
+    }
+
+    public void testCorruptRecordSkipsRestOfSegment() throws IOException {
+        BulkJournal journal = new BulkJournal(directory, 16, 0);
+        for (int i = 0; i < 3; i++) {
+            append(journal, "document-" + i);
+        }
+        journal.close();
+        final RandomAccessFile segment = new RandomAccessFile(new File(directory, "00000000000000000001.journal"), "rw");
+        try {
+            segment.writeInt(1000);
+        } finally {
+            segment.close();
+        }
+        journal = new BulkJournal(directory, 16, 0);
+        assertEquals("[document-0, document-2]", read(journal, 100).toString());
+        assertFalse(journal.hasUnread());
+        journal.close();
+    }
+}
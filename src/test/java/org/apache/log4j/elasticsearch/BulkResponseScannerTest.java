@@ -0,0 +1,57 @@
+package org.apache.log4j.elasticsearch;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for BulkResponseScanner.
+ */
+public class BulkResponseScannerTest extends TestCase {
+
+    private static InputStream stream(final String json) throws IOException {
+        return new ByteArrayInputStream(json.getBytes("UTF-8"));
+    }
+
+    public void testNoErrorsStopsEarly() throws IOException {
+        // the items are truncated, they must not be read
+        final BulkResponseScanner.Result result = BulkResponseScanner
+                .scan(stream("{\"errors\":false,\"items\":[{\"index\":{\"sta"), 2);
+        assertFalse(result.hasErrors());
+        assertEquals(200, result.getStatus(0));
+        assertEquals(200, result.getStatus(1));
+    }
+
+    public void testItemStatuses() throws IOException {
+        final String json = "{\"took\":3,\"errors\":true,\"items\":["
+                + "{\"index\":{\"status\":201}},"
+                + "{\"index\":{\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\",\"reason\":\"queue full\"}}},"
+                + "{\"create\":{\"error\":{\"type\":\"mapper_parsing_exception\",\"reason\":\"bad\"},\"status\":400}}"
+                + "]}";
+        final BulkResponseScanner.Result result = BulkResponseScanner.scan(stream(json), 3);
+        assertTrue(result.hasErrors());
+        assertEquals(201, result.getStatus(0));
+        assertEquals(429, result.getStatus(1));
+        assertEquals(400, result.getStatus(2));
+        assertEquals("es_rejected_execution_exception: queue full", result.getFirstError());
+        assertTrue(BulkResponseScanner.isRetryable(result.getStatus(1)));
+        assertFalse(BulkResponseScanner.isRetryable(result.getStatus(2)));
+    }
+
+    public void testMissingItemIsRetried() throws IOException {
+        final BulkResponseScanner.Result result = BulkResponseScanner
+                .scan(stream("{\"errors\":true,\"items\":[{\"index\":{\"status\":503}}]}"), 2);
+        assertEquals(503, result.getStatus(0));
+        assertEquals(0, result.getStatus(1));
+        assertTrue(BulkResponseScanner.isRetryable(result.getStatus(1)));
+    }
+
+    public void testFailedRequest() {
+        final BulkResponseScanner.Result result = BulkResponseScanner.failed(429, "too many requests");
+        assertTrue(result.hasErrors());
+        assertEquals(429, result.getStatus(5));
+        assertEquals("too many requests", result.getFirstError());
+    }
+}
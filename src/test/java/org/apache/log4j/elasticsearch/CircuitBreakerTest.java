@@ -0,0 +1,84 @@
+package org.apache.log4j.elasticsearch;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for CircuitBreaker.
+ */
+public class CircuitBreakerTest extends TestCase {
+
+    public void testOpensAfterThreshold() {
+        final CircuitBreaker breaker = new CircuitBreaker(3, 1000);
+        breaker.recordFailure(0, 0);
+        breaker.recordFailure(0, 0);
+        assertTrue(breaker.allowRequest(0));
+        breaker.recordFailure(0, 0);
+        assertTrue(breaker.isOpen());
+        assertFalse(breaker.allowRequest(999));
+        assertEquals(3, breaker.getFailures());
+    }
+
+    public void testSuccessResetsFailures() {
+        final CircuitBreaker breaker = new CircuitBreaker(2, 1000);
+        breaker.recordFailure(0, 0);
+        breaker.recordSuccess();
+        breaker.recordFailure(0, 0);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    public void testHalfOpenProbe() {
+        final CircuitBreaker breaker = new CircuitBreaker(1, 1000);
+        breaker.recordFailure(0, 0);
+        assertTrue(breaker.allowRequest(1000));
+        assertTrue(breaker.isHalfOpen());
+
+        // a failed probe opens the breaker again
+        breaker.recordFailure(1000, 0);
+        assertTrue(breaker.isOpen());
+        assertFalse(breaker.allowRequest(1500));
+
+        assertTrue(breaker.allowRequest(2000));
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getFailures());
+    }
+
+    public void testHalfOpenLetsOneProbeThrough() {
+        final CircuitBreaker breaker = new CircuitBreaker(1, 1000);
+        breaker.recordFailure(0, 0);
+        assertFalse(breaker.isPaused(1000));
+        assertTrue(breaker.allowRequest(1000));
+        // the probe is in flight
+        assertFalse(breaker.allowRequest(1000));
+        assertFalse(breaker.allowRequest(1999));
+        assertTrue(breaker.isPaused(1500));
+        breaker.recordSuccess();
+        assertTrue(breaker.allowRequest(1500));
+        assertTrue(breaker.allowRequest(1500));
+    }
+
+    public void testLostProbeExpires() {
+        final CircuitBreaker breaker = new CircuitBreaker(1, 1000);
+        breaker.recordFailure(0, 0);
+        assertTrue(breaker.allowRequest(1000));
+        assertFalse(breaker.allowRequest(1999));
+        assertTrue(breaker.allowRequest(2000));
+    }
+
+    public void testRetryAfterExtendsPause() {
+        final CircuitBreaker breaker = new CircuitBreaker(1, 1000);
+        breaker.recordFailure(0, 5000);
+        assertEquals(5000, breaker.getOpenUntil());
+        assertFalse(breaker.allowRequest(4999));
+        assertTrue(breaker.allowRequest(5000));
+    }
+
+    public void testZeroThresholdNeverOpens() {
+        final CircuitBreaker breaker = new CircuitBreaker(0, 1000);
+        for (int i = 0; i < 100; i++) {
+            breaker.recordFailure(0, 0);
+        }
+        assertTrue(breaker.allowRequest(0));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+}
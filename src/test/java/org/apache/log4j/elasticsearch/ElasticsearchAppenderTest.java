@@ -0,0 +1,62 @@
+package org.apache.log4j.elasticsearch;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.varia.LevelMatchFilter;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for ElasticsearchAppender.
+ */
+public class ElasticsearchAppenderTest extends TestCase {
+
+    private static LoggingEvent event(final Level level) {
+        return new LoggingEvent(Logger.class.getName(), Logger.getLogger("test.appender"), level, "message", null);
+    }
+
+    public void testConcurrentAppendAppliesThresholdAndFilters() throws Exception {
+        final AtomicInteger appended = new AtomicInteger();
+        final AtomicInteger locked = new AtomicInteger();
+        final ElasticsearchAppender appender = new ElasticsearchAppender() {
+            protected void append(final LoggingEvent event) {
+                if (Thread.holdsLock(this)) {
+                    locked.incrementAndGet();
+                }
+                appended.incrementAndGet();
+            }
+        };
+        appender.setConcurrentAppend(true);
+        appender.setThreshold(Level.INFO);
+        final LevelMatchFilter deny = new LevelMatchFilter();
+        deny.setLevelToMatch("WARN");
+        deny.setAcceptOnMatch(false);
+        appender.addFilter(deny);
+
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        appender.doAppend(event(Level.DEBUG));
+                        appender.doAppend(event(Level.WARN));
+                        appender.doAppend(event(Level.ERROR));
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(4000, appended.get());
+        assertEquals(0, locked.get());
+
+        appender.close();
+        appender.doAppend(event(Level.ERROR));
+        assertEquals(4000, appended.get());
+    }
+}
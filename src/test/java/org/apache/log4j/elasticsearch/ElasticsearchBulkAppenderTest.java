@@ -0,0 +1,233 @@
+package org.apache.log4j.elasticsearch;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for ElasticsearchBulkAppender against a fake Elasticsearch.
+ */
+public class ElasticsearchBulkAppenderTest extends TestCase {
+    private FakeElasticsearch server;
+
+    protected void setUp() throws Exception {
+        server = new FakeElasticsearch();
+    }
+
+    protected void tearDown() throws Exception {
+        server.close();
+    }
+
+    private static LoggingEvent event(final String logger, final Level level, final String message) {
+        return new LoggingEvent(Logger.class.getName(), Logger.getLogger(logger), level, message, null);
+    }
+
+    private static LoggingEvent event(final Level level, final String message) {
+        return event("test.bulk", level, message);
+    }
+
+    private ElasticsearchBulkAppender appender() {
+        final ElasticsearchBulkAppender appender = new ElasticsearchBulkAppender();
+        appender.setServer("127.0.0.1");
+        appender.setPort(server.getPort());
+        appender.setIndex("logs");
+        appender.setLayout(new JSONEventLayout(false));
+        appender.setRetryBackoff(10);
+        appender.setMaxRetryBackoff(50);
+        return appender;
+    }
+
+    /**
+     * @return an appender whose dispatcher only drains the buffer on close
+     */
+    private ElasticsearchBulkAppender overflowing(final String policy, final int maxBufferSize) {
+        final ElasticsearchBulkAppender appender = appender();
+        appender.setOverflowPolicy(policy);
+        appender.setMaxBufferSize(maxBufferSize);
+        appender.setBufferSize(1000);
+        appender.setTimeout(60000);
+        appender.setMaxBatchBytes(0);
+        appender.activateOptions();
+        return appender;
+    }
+
+    /**
+     * @return the summary of the dropped events, the last document sent
+     */
+    private String summary() {
+        final List<String> documents = server.getDocuments();
+        final String summary = documents.get(documents.size() - 1);
+        assertTrue(summary.contains("\"overflow\""));
+        return summary;
+    }
+
+    public void testDropOldest() {
+        final ElasticsearchBulkAppender appender = overflowing("DropOldest", 4);
+        for (int i = 0; i < 6; i++) {
+            appender.doAppend(event(Level.INFO, "event " + i));
+        }
+        appender.close();
+        assertEquals("[event 2, event 3, event 4, event 5, Too many messages, 2 have been dropped]",
+                server.getMessages().toString());
+        assertTrue(summary().contains("\"total\":2"));
+        assertTrue(summary().contains("\"info\":2"));
+    }
+
+    public void testDropNewest() {
+        final ElasticsearchBulkAppender appender = overflowing("DropNewest", 4);
+        for (int i = 0; i < 6; i++) {
+            appender.doAppend(event(Level.INFO, "event " + i));
+        }
+        appender.close();
+        assertEquals("[event 0, event 1, event 2, event 3, Too many messages, 2 have been dropped]",
+                server.getMessages().toString());
+    }
+
+    public void testDropBelowLevelEvictsLowerLevelsFirst() {
+        final ElasticsearchBulkAppender appender = overflowing("DropBelowLevel", 4);
+        appender.doAppend(event(Level.ERROR, "error 0"));
+        appender.doAppend(event(Level.DEBUG, "debug 0"));
+        appender.doAppend(event(Level.INFO, "info 0"));
+        appender.doAppend(event(Level.ERROR, "error 1"));
+        // full: the new DEBUG is dropped, the ERRORs replace the DEBUG then the INFO
+        appender.doAppend(event(Level.DEBUG, "debug 1"));
+        appender.doAppend(event(Level.ERROR, "error 2"));
+        appender.doAppend(event(Level.ERROR, "error 3"));
+        // nothing below WARN is left, the oldest ERROR goes
+        appender.doAppend(event(Level.ERROR, "error 4"));
+        appender.close();
+        assertEquals("[error 2, error 3, error 1, error 4, Too many messages, 4 have been dropped]",
+                server.getMessages().toString());
+        final String summary = summary();
+        assertTrue(summary.contains("\"debug\":2"));
+        assertTrue(summary.contains("\"info\":1"));
+        assertTrue(summary.contains("\"error\":1"));
+        assertTrue(summary.contains("\"policy\":\"DROP_BELOW_LEVEL\""));
+    }
+
+    public void testBlockWaitsForRoom() {
+        final ElasticsearchBulkAppender appender = overflowing("Block", 4);
+        for (int i = 0; i < 20; i++) {
+            appender.doAppend(event(Level.INFO, "event " + i));
+        }
+        appender.close();
+        assertEquals(20, server.getMessages().size());
+        for (final String document : server.getDocuments()) {
+            assertFalse(document.contains("\"overflow\""));
+        }
+    }
+
+    /**
+     * Log the events of several loggers, interleaved.
+     */
+    private static void logInterleaved(final ElasticsearchBulkAppender appender, final int loggers, final int events) {
+        for (int i = 0; i < events; i++) {
+            for (int l = 0; l < loggers; l++) {
+                appender.doAppend(event("test.bulk." + l, Level.INFO, l + "-" + i));
+            }
+        }
+    }
+
+    /**
+     * Wait until some messages were delivered, retries stop once the appender
+     * is closed.
+     */
+    private void awaitMessages(final int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (server.getMessages().size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Check that every event was delivered once, in order for each logger.
+     */
+    private void assertDeliveredInOrder(final int loggers, final int events) {
+        final List<String> messages = server.getMessages();
+        assertEquals(loggers * events, messages.size());
+        final int[] next = new int[loggers];
+        for (final String message : messages) {
+            final String[] parts = message.split("-");
+            final int logger = Integer.parseInt(parts[0]);
+            assertEquals("order of logger " + logger, next[logger]++, Integer.parseInt(parts[1]));
+        }
+    }
+
+    public void testOrderedDeliveryWithSeveralWorkers() {
+        final ElasticsearchBulkAppender appender = appender();
+        appender.setConcurrency(4);
+        appender.setOrderedDelivery(true);
+        appender.setBufferSize(10);
+        appender.setTimeout(10);
+        server.delay = 2;
+        appender.activateOptions();
+        logInterleaved(appender, 8, 200);
+        appender.close();
+        assertDeliveredInOrder(8, 200);
+        assertTrue(server.requests.get() > 4);
+    }
+
+    public void testFailedRequestsAreRetried() throws Exception {
+        final ElasticsearchBulkAppender appender = appender();
+        appender.setBufferSize(50);
+        appender.setTimeout(10);
+        appender.setMaxRetries(5);
+        server.failures.set(3);
+        appender.activateOptions();
+        logInterleaved(appender, 1, 200);
+        awaitMessages(200);
+        appender.close();
+        assertDeliveredInOrder(1, 200);
+        assertEquals(0, appender.getFailedDocuments());
+    }
+
+    public void testWorkersHoldBatchesWhileBreakerIsOpen() throws Exception {
+        final ElasticsearchBulkAppender appender = appender();
+        appender.setBufferSize(50);
+        appender.setTimeout(10);
+        appender.setConcurrency(2);
+        appender.setMaxRetries(0);
+        appender.setCircuitBreakerThreshold(1);
+        appender.setCircuitBreakerInterval(50);
+        server.failures.set(5);
+        appender.activateOptions();
+        logInterleaved(appender, 1, 200);
+        awaitMessages(200);
+        appender.close();
+        assertEquals(200, server.getMessages().size());
+        assertEquals(0, appender.getFailedDocuments());
+    }
+
+    public void testJournalDeliversAfterOutage() throws Exception {
+        final File directory = File.createTempFile("journal", "");
+        directory.delete();
+        try {
+            final ElasticsearchBulkAppender appender = appender();
+            appender.setJournalDirectory(directory.getPath());
+            appender.setBufferSize(50);
+            appender.setTimeout(10);
+            appender.setMaxRetries(0);
+            appender.setCircuitBreakerThreshold(1000);
+            server.failures.set(5);
+            appender.activateOptions();
+            logInterleaved(appender, 2, 200);
+            awaitMessages(400);
+            appender.close();
+            assertDeliveredInOrder(2, 200);
+        } finally {
+            final File[] files = directory.listFiles();
+            if (files != null) {
+                for (final File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+}
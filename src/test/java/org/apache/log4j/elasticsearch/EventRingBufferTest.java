@@ -0,0 +1,85 @@
+package org.apache.log4j.elasticsearch;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for EventRingBuffer.
+ */
+public class EventRingBufferTest extends TestCase {
+
+    public void testCapacityIsRoundedToPowerOfTwo() {
+        assertEquals(8, new EventRingBuffer<String>(5).capacity());
+        assertEquals(4096, new EventRingBuffer<String>(4096).capacity());
+    }
+
+    public void testFifoAndFull() {
+        final EventRingBuffer<Integer> buffer = new EventRingBuffer<Integer>(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(i));
+        }
+        assertFalse(buffer.offer(4));
+        assertEquals(4, buffer.size());
+        assertEquals(Integer.valueOf(0), buffer.poll());
+        assertTrue(buffer.offer(4));
+
+        final Integer[] drained = new Integer[8];
+        assertEquals(4, buffer.drainTo(drained, drained.length));
+        for (int i = 0; i < 4; i++) {
+            assertEquals(Integer.valueOf(i + 1), drained[i]);
+        }
+        assertNull(buffer.poll());
+        assertTrue(buffer.isEmpty());
+    }
+
+    public void testConcurrentProducers() throws InterruptedException {
+        final EventRingBuffer<Integer> buffer = new EventRingBuffer<Integer>(64);
+        final int producers = 4;
+        final int perProducer = 10000;
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            new Thread() {
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        while (!buffer.offer(i)) {
+                            Thread.yield();
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        final AtomicInteger received = new AtomicInteger();
+        final Integer[] drained = new Integer[16];
+        while (received.get() < producers * perProducer) {
+            final int count = buffer.drainTo(drained, drained.length);
+            for (int i = 0; i < count; i++) {
+                assertNotNull(drained[i]);
+            }
+            received.addAndGet(count);
+        }
+        done.await();
+        assertTrue(buffer.isEmpty());
+    }
+
+    public void testReplaceEvictsOldestMatch() {
+        final EventRingBuffer<Integer> buffer = new EventRingBuffer<Integer>(4);
+        for (final int i : new int[] { 10, 1, 11, 2 }) {
+            buffer.offer(i);
+        }
+        final EventRingBuffer.Matcher<Integer> small = new EventRingBuffer.Matcher<Integer>() {
+            public boolean matches(final Integer element) {
+                return element < 10;
+            }
+        };
+        assertEquals(Integer.valueOf(1), buffer.replace(small, 12));
+        assertEquals(Integer.valueOf(2), buffer.replace(small, 13));
+        assertNull(buffer.replace(small, 14));
+        final Integer[] drained = new Integer[4];
+        assertEquals(4, buffer.drainTo(drained, drained.length));
+        assertEquals("[10, 12, 11, 13]", java.util.Arrays.toString(drained));
+    }
+}
@@ -0,0 +1,159 @@
+package org.apache.log4j.elasticsearch;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal Elasticsearch answering bulk requests, keeping the documents it
+ * accepted in order.
+ */
+public class FakeElasticsearch {
+    private final ServerSocket server;
+    private final List<String> documents = new ArrayList<String>();
+
+    /**
+     * Number of requests received, failed or not.
+     */
+    final AtomicInteger requests = new AtomicInteger();
+
+    /**
+     * Number of the next requests answered with 503.
+     */
+    final AtomicInteger failures = new AtomicInteger();
+
+    /**
+     * Time each request takes in milliseconds.
+     */
+    volatile long delay = 0;
+
+    public FakeElasticsearch() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        final Thread acceptor = new Thread() {
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = server.accept();
+                        final Thread connection = new Thread() {
+                            public void run() {
+                                serve(socket);
+                            }
+                        };
+                        connection.setDaemon(true);
+                        connection.start();
+                    }
+                } catch (IOException e) {
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    public void close() throws IOException {
+        server.close();
+    }
+
+    /**
+     * @return the documents accepted so far
+     */
+    public List<String> getDocuments() {
+        synchronized (documents) {
+            return new ArrayList<String>(documents);
+        }
+    }
+
+    /**
+     * @return the messages of the documents accepted so far
+     */
+    public List<String> getMessages() {
+        final List<String> messages = new ArrayList<String>();
+        for (final String document : getDocuments()) {
+            final int start = document.indexOf("\"message\":\"");
+            if (start >= 0) {
+                messages.add(document.substring(start + 11, document.indexOf('"', start + 11)));
+            }
+        }
+        return messages;
+    }
+
+    private static String readLine(final InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                return null;
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private void serve(final Socket socket) {
+        try {
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            while (readLine(in) != null) {
+                int length = 0;
+                boolean chunked = false;
+                String header;
+                while ((header = readLine(in)).length() > 0) {
+                    if (header.toLowerCase().startsWith("content-length:")) {
+                        length = Integer.parseInt(header.substring(15).trim());
+                    } else if (header.equalsIgnoreCase("transfer-encoding: chunked")) {
+                        chunked = true;
+                    }
+                }
+                final ByteArrayOutputStream body = new ByteArrayOutputStream();
+                if (chunked) {
+                    while ((length = Integer.parseInt(readLine(in), 16)) > 0) {
+                        for (int i = 0; i < length; i++) {
+                            body.write(in.read());
+                        }
+                        readLine(in);
+                    }
+                    readLine(in);
+                } else {
+                    for (int i = 0; i < length; i++) {
+                        body.write(in.read());
+                    }
+                }
+                requests.incrementAndGet();
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+                final String response;
+                if (failures.get() > 0 && failures.getAndDecrement() > 0) {
+                    response = "HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\n\r\n";
+                } else {
+                    final String[] lines = body.toString("UTF-8").split("\n");
+                    synchronized (documents) {
+                        for (int i = 1; i < lines.length; i += 2) {
+                            documents.add(lines[i]);
+                        }
+                    }
+                    response = "HTTP/1.1 200 OK\r\nContent-Length: 16\r\n\r\n{\"errors\":false}";
+                }
+                out.write(response.getBytes("UTF-8"));
+                out.flush();
+            }
+            socket.close();
+        } catch (IOException e) {
+        } catch (InterruptedException e) {
+        }
+    }
+}
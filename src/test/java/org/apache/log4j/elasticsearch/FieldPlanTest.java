@@ -0,0 +1,60 @@
+package org.apache.log4j.elasticsearch;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for FieldPlan.
+ */
+public class FieldPlanTest extends TestCase {
+
+    private static String write(final FieldPlan plan, final String loggerName) {
+        final JsonTree tree = new JsonTree();
+        plan.write(tree, new LoggingEvent(Logger.class.getName(), Logger.getLogger(loggerName), Level.INFO, "m", null));
+        final StringBuilder out = new StringBuilder();
+        tree.write(out);
+        return out.toString();
+    }
+
+    public void testPatternsResolvedPerLogger() {
+        final FieldPlan plan = FieldPlan.compile("a:1,app:(shop\\..*),b:x,other:(web.*)", null);
+        assertEquals("{\"a\":1,\"app\":\"shop.cart\",\"b\":\"x\"}", write(plan, "shop.cart"));
+        assertEquals("{\"a\":1,\"app\":\"shop.cart\",\"b\":\"x\"}", write(plan, "shop.cart"));
+        assertEquals("{\"a\":1,\"b\":\"x\",\"other\":\"web.login\"}", write(plan, "web.login"));
+        assertEquals(2, plan.getCachedLoggers());
+    }
+
+    public void testCacheIsBounded() {
+        final FieldPlan plan = FieldPlan.compile("app:(.*)", null);
+        for (int i = 0; i < FieldPlan.MAX_CACHED_LOGGERS + 10; i++) {
+            assertEquals("{\"app\":\"logger" + i + "\"}", write(plan, "logger" + i));
+        }
+        assertEquals(FieldPlan.MAX_CACHED_LOGGERS, plan.getCachedLoggers());
+    }
+
+    public void testNullLoggerNameGetsNoPatternField() {
+        final FieldPlan plan = FieldPlan.compile("a:1,app:(.*),b:x", null);
+        final LoggingEvent event = new LoggingEvent(Logger.class.getName(), Logger.getLogger("x"), Level.INFO, "m",
+                null) {
+            private static final long serialVersionUID = 1L;
+
+            public String getLoggerName() {
+                return null;
+            }
+        };
+        final JsonTree tree = new JsonTree();
+        plan.write(tree, event);
+        final StringBuilder out = new StringBuilder();
+        tree.write(out);
+        assertEquals("{\"a\":1,\"b\":\"x\"}", out.toString());
+    }
+
+    public void testConstantsOnlyAreNotCached() {
+        final FieldPlan plan = FieldPlan.compile("a.b:c", null);
+        assertEquals("{\"a\":{\"b\":\"c\"}}", write(plan, "x"));
+        assertEquals(0, plan.getCachedLoggers());
+    }
+}
@@ -0,0 +1,28 @@
+package org.apache.log4j.elasticsearch;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for IsoTimestamp.
+ */
+public class IsoTimestampTest extends TestCase {
+
+    public void testSameAsFastDateFormat() {
+        final IsoTimestamp format = new IsoTimestamp();
+        final long[] timestamps = { 0, 1, 999, 1000, 1594030530123L, 1594030530999L, 1594030531000L, -1, -999, -1000,
+                -1001 };
+        for (final long timestamp : timestamps) {
+            assertEquals(JSONEventLayout.ISO_DATETIME_TIME_ZONE_FORMAT_WITH_MILLIS.format(timestamp),
+                    format.format(timestamp));
+        }
+        final Random random = new Random(7);
+        long timestamp = 1594030530000L;
+        for (int i = 0; i < 10000; i++) {
+            timestamp += random.nextInt(400);
+            assertEquals(JSONEventLayout.ISO_DATETIME_TIME_ZONE_FORMAT_WITH_MILLIS.format(timestamp),
+                    format.format(timestamp));
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package org.apache.log4j.elasticsearch;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.NDC;
+import org.apache.log4j.elasticsearch.data.HostData;
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for JSONEventLayout.
+ */
+public class JSONEventLayoutTest extends TestCase {
+
+    private static LoggingEvent event(final String message, final Throwable throwable) {
+        return new LoggingEvent(Logger.class.getName(), Logger.getLogger("test.layout"), Level.ERROR, message,
+                throwable);
+    }
+
+    /**
+     * The document built with Gson the way the layout used to.
+     */
+    private static String reference(final LoggingEvent event, final String userFields, final String mdcProperties) {
+        final JsonObject json = new HostData().getCopy();
+        json.addProperty("@timestamp", event.timeStamp);
+        json.addProperty("message", event.getRenderedMessage());
+        if (event.getThrowableInformation() != null) {
+            final Throwable throwable = event.getThrowableInformation().getThrowable();
+            final String[] lines = event.getThrowableStrRep().clone();
+            lines[0] = lines[0].replace("\"", "\\\"");
+            final JsonObject error = new JsonObject();
+            json.add("error", error);
+            error.addProperty("type", throwable.getClass().getCanonicalName());
+            if (throwable.getMessage() != null)
+                error.addProperty("message", throwable.getMessage().replace("\"", "\\\""));
+            final StringBuilder trace = new StringBuilder(lines[0]);
+            for (int i = 1; i < lines.length; i++)
+                trace.append('\n').append(lines[i]);
+            error.addProperty("stack_trace", trace.toString());
+        }
+        final JsonObject log = new JsonObject();
+        json.add("log", log);
+        log.addProperty("logger", event.getLoggerName());
+        log.addProperty("level", event.getLevel().toString());
+        add(json, "process.thread.name", event.getThreadName());
+        if (event.getNDC() != null)
+            add(json, "jboss.ndc", event.getThreadName());
+        for (final String pair : userFields.split(",")) {
+            final String[] field = pair.split(":", 2);
+            if (field[1].matches("\\(.*\\)")) {
+                if (event.getLoggerName().matches(field[1]))
+                    add(json, field[0], event.getLoggerName());
+            } else {
+                try {
+                    add(json, field[0], Integer.parseInt(field[1]));
+                } catch (final NumberFormatException e) {
+                    add(json, field[0], field[1]);
+                }
+            }
+        }
+        for (final String pair : mdcProperties.split(",")) {
+            final String[] field = pair.split(":", 2);
+            if (event.getMDC(field[1]) != null)
+                add(json, field[0], String.valueOf(event.getMDC(field[1])));
+        }
+        return json.toString() + "\n";
+    }
+
+    private static void add(final JsonObject json, final String name, final Object value) {
+        final String[] keys = name.split("\\.");
+        JsonObject object = json;
+        for (int i = 0; i < keys.length - 1; i++) {
+            final JsonElement inner = object.get(keys[i]);
+            if (inner != null && inner.isJsonObject()) {
+                object = inner.getAsJsonObject();
+            } else {
+                final JsonObject created = new JsonObject();
+                object.add(keys[i], created);
+                object = created;
+            }
+        }
+        object.add(keys[keys.length - 1], new Gson().toJsonTree(value));
+    }
+
+    public void testSameOutputAsGson() {
+        final String userFields = "application:shop,host.name:override,process.thread.id:7,answer:42,"
+                + "java:flattened,matched:(test\\..*),unmatched:(other.*)";
+        final String mdcProperties = "user.id:user,trace:trace";
+        final JSONEventLayout layout = new JSONEventLayout(false);
+        layout.setUserFields(userFields);
+        layout.setMDCProperties(mdcProperties);
+
+        MDC.put("user", "jdoe \"quoted\"");
+        NDC.push("context");
+        try {
+            final String[] messages = { "plain", "quote \" backslash \\ slash /", "control \t\n\r\b\f\u0001\u001f",
+                    "unicode é € \u2028 \u2029 😀", "<html> & 'apos' =", null };
+            for (final String message : messages) {
+                final LoggingEvent event = event(message, null);
+                assertEquals(reference(event, userFields, mdcProperties), layout.format(event));
+            }
+            final LoggingEvent failure = event("failed", new IllegalArgumentException("bad \"argument\""));
+            assertEquals(reference(failure, userFields, mdcProperties), layout.format(failure));
+        } finally {
+            MDC.remove("user");
+            NDC.remove();
+        }
+    }
+
+    public void testSystemPropertiesReadOnActivateOptions() {
+        final JSONEventLayout layout = new JSONEventLayout(false);
+        layout.setUserFields("application:shop,bad");
+        layout.setMDCProperties("user.id:user");
+        final LoggingEvent event = event("message", null);
+        assertTrue(layout.format(event).contains("\"application\":\"shop\""));
+
+        System.setProperty(JSONEventLayout.ADDITIONAL_DATA_PROPERTY, "application:cli,port:8080");
+        try {
+            // not read until the options are activated again
+            assertFalse(layout.format(event).contains("\"port\""));
+            layout.activateOptions();
+            final String doc = layout.format(event);
+            assertTrue(doc.contains("\"application\":\"cli\""));
+            assertTrue(doc.contains("\"port\":8080"));
+        } finally {
+            System.clearProperty(JSONEventLayout.ADDITIONAL_DATA_PROPERTY);
+        }
+    }
+
+    public void testIsoTimestamp() {
+        final JSONEventLayout layout = new JSONEventLayout(false);
+        layout.setTimestampFormat("iso");
+        layout.setEventCreated(true);
+        final LoggingEvent event = event("message", null);
+        final String doc = layout.format(event);
+        assertTrue(doc.contains("\"@timestamp\":\"" + JSONEventLayout.dateFormat(event.timeStamp) + "\""));
+        assertTrue(doc.matches(".*\"event\":\\{\"created\":\"[0-9-]+T[0-9:.]+Z\"\\}.*\\s*"));
+
+        layout.setTimestampFormat("bogus");
+        assertEquals("iso", layout.getTimestampFormat());
+        layout.setTimestampFormat("epoch");
+        assertTrue(layout.format(event).contains("\"@timestamp\":" + event.timeStamp + ","));
+    }
+
+    public void testStackTraceDedup() {
+        final JSONEventLayout layout = new JSONEventLayout(false);
+        layout.setStackTraceDedupWindow(60000);
+        final RuntimeException failure = new RuntimeException("failure");
+        final String first = layout.format(event("first", failure));
+        final String second = layout.format(event("second", failure));
+        assertTrue(first.contains("\"stack_trace\":\"java.lang.RuntimeException: failure\\n\\tat "));
+        assertFalse(second.contains("\"stack_trace\""));
+        final String fingerprint = first.replaceAll(".*(\"fingerprint\":\"[0-9a-f]{16}\").*\\s*", "$1");
+        assertTrue(second.contains(fingerprint));
+    }
+
+    public void testEncodeMatchesFormat() throws Exception {
+        final JSONEventLayout layout = new JSONEventLayout(false);
+        final StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            big.append("é😀");
+        }
+        final String[] messages = { "plain", "unicode é € 😀", big.toString() };
+        for (final String message : messages) {
+            final LoggingEvent event = event(message, null);
+            final byte[] expected = layout.format(event).getBytes("UTF-8");
+
+            final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            assertEquals(expected.length, layout.encode(event, stream));
+            assertTrue(Arrays.equals(expected, stream.toByteArray()));
+
+            final ByteBuffer buffer = ByteBuffer.allocate(expected.length + 10);
+            buffer.position(10);
+            assertEquals(expected.length, layout.encode(event, buffer));
+            assertTrue(Arrays.equals(expected, Arrays.copyOfRange(buffer.array(), 10, buffer.position())));
+
+            final ByteBuffer small = ByteBuffer.allocate(expected.length - 1);
+            small.position(3);
+            try {
+                layout.encode(event, small);
+                fail();
+            } catch (final BufferOverflowException e) {
+                assertEquals(3, small.position());
+            }
+        }
+    }
+
+    public void testHostNameRefreshesHostFields() {
+        final JSONEventLayout layout = new JSONEventLayout(false);
+        final LoggingEvent event = event("message", null);
+        assertTrue(layout.format(event).contains("\"host\":{\"name\":" + new Gson().toJson(layout.getHostName())));
+        layout.setHostName("web-\"01\"");
+        assertTrue(layout.format(event).contains("\"host\":{\"name\":\"web-\\\"01\\\"\""));
+    }
+
+    public void testFormatIsRepeatable() {
+        final JSONEventLayout layout = new JSONEventLayout(false);
+        final LoggingEvent event = event("say \"hi\"", new IllegalStateException("quoted \"state\""));
+        final String first = layout.format(event);
+        assertEquals(first, layout.format(event));
+        assertEquals(first.trim(), layout.toString());
+    }
+
+    public void testEventDataKeepsHtmlCharacters() {
+        final JsonTree tree = new JsonTree();
+        JSONEventLayout.addEventData(tree, new String[] { "labels", "page" }, Arrays.asList("<a href='x?y=1'>&</a>"));
+        final StringBuilder out = new StringBuilder();
+        tree.write(out);
+        assertEquals("{\"labels\":{\"page\":[\"<a href='x?y=1'>&</a>\"]}}", out.toString());
+    }
+
+    public void testConcurrentFormat() throws Exception {
+        final JSONEventLayout layout = new JSONEventLayout(false);
+        layout.setUserFields("application:test,number:42");
+        final List<LoggingEvent> events = new ArrayList<LoggingEvent>();
+        final List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) {
+            final LoggingEvent event = event("message " + i, i % 10 == 0 ? new RuntimeException("failure " + i) : null);
+            events.add(event);
+            expected.add(layout.format(event));
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+            for (int t = 0; t < 4; t++) {
+                results.add(executor.submit(new Callable<List<String>>() {
+                    public List<String> call() {
+                        final List<String> docs = new ArrayList<String>();
+                        for (final LoggingEvent event : events) {
+                            docs.add(layout.format(event));
+                        }
+                        return docs;
+                    }
+                }));
+            }
+            for (final Future<List<String>> result : results) {
+                assertEquals(expected, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
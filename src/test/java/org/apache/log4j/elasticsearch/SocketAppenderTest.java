@@ -0,0 +1,372 @@
+package org.apache.log4j.elasticsearch;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for SocketAppender.
+ */
+public class SocketAppenderTest extends TestCase {
+
+    private ServerSocket server;
+
+    protected void setUp() throws Exception {
+        server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        server.setSoTimeout(5000);
+    }
+
+    protected void tearDown() throws Exception {
+        server.close();
+    }
+
+    private static LoggingEvent event(final String message) {
+        return new LoggingEvent(Logger.class.getName(), Logger.getLogger("test.socket"), Level.INFO, message, null);
+    }
+
+    private SocketAppender appender(final String framing) {
+        final SocketAppender appender = new SocketAppender();
+        appender.setLayout(new JSONEventLayout(false));
+        appender.setRemoteHost("127.0.0.1");
+        appender.setPort(server.getLocalPort());
+        appender.setReconnectionDelay(0);
+        appender.setFraming(framing);
+        return appender;
+    }
+
+    public void testLineFraming() throws Exception {
+        final SocketAppender appender = appender("line");
+        appender.setImmediateFlush(false);
+        appender.activateOptions();
+        final Socket socket = server.accept();
+        try {
+            appender.doAppend(event("first"));
+            appender.doAppend(event("second é"));
+            appender.close();
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            assertTrue(reader.readLine().contains("\"message\":\"first\""));
+            assertTrue(reader.readLine().contains("\"message\":\"second é\""));
+            assertNull(reader.readLine());
+        } finally {
+            socket.close();
+        }
+    }
+
+    public void testLengthFraming() throws Exception {
+        final SocketAppender appender = appender("length");
+        appender.activateOptions();
+        final Socket socket = server.accept();
+        try {
+            appender.doAppend(event("framed"));
+            final DataInputStream in = new DataInputStream(socket.getInputStream());
+            final byte[] frame = new byte[in.readInt()];
+            in.readFully(frame);
+            final String doc = new String(frame, "UTF-8");
+            assertTrue(doc.contains("\"message\":\"framed\""));
+            assertTrue(doc.endsWith("}\n"));
+            appender.close();
+        } finally {
+            socket.close();
+        }
+    }
+
+    public void testObjectFraming() throws Exception {
+        final SocketAppender appender = appender("object");
+        appender.activateOptions();
+        final Socket socket = server.accept();
+        try {
+            appender.doAppend(event("serialized"));
+            final ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+            assertTrue(((String) in.readObject()).contains("\"message\":\"serialized\""));
+            appender.close();
+        } finally {
+            socket.close();
+        }
+    }
+
+    public void testAsyncSendsQueuedEventsOnClose() throws Exception {
+        final SocketAppender appender = appender("line");
+        appender.setAsync(true);
+        appender.setQueueSize(2048);
+        appender.setFlushSize(10);
+        appender.setTcpNoDelay(true);
+        appender.activateOptions();
+        final Socket socket = server.accept();
+        try {
+            for (int i = 0; i < 1000; i++) {
+                appender.doAppend(event("event " + i));
+            }
+            appender.close();
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            for (int i = 0; i < 1000; i++) {
+                assertTrue(reader.readLine().contains("\"message\":\"event " + i + "\""));
+            }
+            assertNull(reader.readLine());
+            assertEquals(0, appender.getDroppedEvents());
+        } finally {
+            socket.close();
+        }
+    }
+
+    public void testAsyncDoesNotBlockWithoutServer() throws Exception {
+        final int port = server.getLocalPort();
+        server.close();
+        final SocketAppender appender = appender("line");
+        appender.setPort(port);
+        appender.setAsync(true);
+        appender.setQueueSize(16);
+        appender.activateOptions();
+        final long start = System.currentTimeMillis();
+        for (int i = 0; i < 10000; i++) {
+            appender.doAppend(event("event " + i));
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        appender.close();
+    }
+
+    public void testBacklogReplayedOnReconnect() throws Exception {
+        final int port = server.getLocalPort();
+        server.close();
+        final SocketAppender appender = appender("line");
+        appender.setBacklogSize(3);
+        appender.setMinReconnectionDelay(20);
+        appender.setReconnectionDelay(100);
+        appender.activateOptions();
+        for (int i = 0; i < 5; i++) {
+            appender.doAppend(event("event " + i));
+        }
+        assertEquals(2, appender.getDroppedEvents());
+        server = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        server.setSoTimeout(5000);
+        final Socket socket = server.accept();
+        try {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            for (int i = 2; i < 5; i++) {
+                assertTrue(reader.readLine().contains("\"message\":\"event " + i + "\""));
+            }
+            appender.doAppend(event("event 5"));
+            assertTrue(reader.readLine().contains("\"message\":\"event 5\""));
+            appender.close();
+            assertNull(reader.readLine());
+        } finally {
+            socket.close();
+        }
+    }
+
+    public void testReconnectionDelayBacksOff() {
+        final SocketAppender appender = new SocketAppender();
+        appender.setMinReconnectionDelay(100);
+        appender.setReconnectionDelay(1000);
+        for (int i = 0; i < 100; i++) {
+            final long first = appender.reconnectionDelay(0);
+            assertTrue(first >= 50 && first <= 100);
+            final long third = appender.reconnectionDelay(2);
+            assertTrue(third >= 200 && third <= 400);
+            final long last = appender.reconnectionDelay(40);
+            assertTrue(last >= 500 && last <= 1000);
+        }
+    }
+
+    public void testUdpPacksEventsIntoDatagrams() throws Exception {
+        final DatagramSocket collector = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        collector.setSoTimeout(5000);
+        try {
+            final SocketAppender appender = appender("line");
+            appender.setPort(collector.getLocalPort());
+            appender.setProtocol("udp");
+            appender.setMaxDatagramSize(1000);
+            appender.setImmediateFlush(false);
+            appender.activateOptions();
+            for (int i = 0; i < 20; i++) {
+                appender.doAppend(event("event " + i));
+            }
+            appender.close();
+
+            final StringBuilder received = new StringBuilder();
+            final DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+            int datagrams = 0;
+            while (received.toString().split("\n").length < 20) {
+                collector.receive(packet);
+                assertTrue(packet.getLength() <= 1000);
+                received.append(new String(packet.getData(), 0, packet.getLength(), "UTF-8"));
+                datagrams++;
+            }
+            assertTrue(datagrams < 20);
+            final String[] lines = received.toString().split("\n");
+            for (int i = 0; i < 20; i++) {
+                assertTrue(lines[i].contains("\"message\":\"event " + i + "\""));
+            }
+            assertEquals(0, appender.getDroppedEvents());
+        } finally {
+            collector.close();
+        }
+    }
+
+    public void testUdpSendsWithoutCollector() throws Exception {
+        final DatagramSocket collector = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        final int port = collector.getLocalPort();
+        collector.close();
+        final SocketAppender appender = appender("line");
+        appender.setPort(port);
+        appender.setProtocol("udp");
+        appender.activateOptions();
+        for (int i = 0; i < 100; i++) {
+            appender.doAppend(event("event " + i));
+        }
+        appender.close();
+    }
+
+    private SocketAppender multiHost(final ServerSocket other, final String loadBalancing) {
+        final SocketAppender appender = appender("line");
+        appender.setRemoteHosts("127.0.0.1:" + server.getLocalPort() + ", 127.0.0.1:" + other.getLocalPort());
+        appender.setLoadBalancing(loadBalancing);
+        appender.activateOptions();
+        return appender;
+    }
+
+    private static int countLines(final Socket socket) throws Exception {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        int lines = 0;
+        while (reader.readLine() != null) {
+            lines++;
+        }
+        return lines;
+    }
+
+    public void testRemoteHostsRoundRobin() throws Exception {
+        final ServerSocket other = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        other.setSoTimeout(5000);
+        try {
+            final SocketAppender appender = multiHost(other, "RoundRobin");
+            final Socket first = server.accept();
+            final Socket second = other.accept();
+            for (int i = 0; i < 10; i++) {
+                appender.doAppend(event("event " + i));
+            }
+            appender.close();
+            assertEquals(5, countLines(first));
+            assertEquals(5, countLines(second));
+            first.close();
+            second.close();
+        } finally {
+            other.close();
+        }
+    }
+
+    public void testRemoteHostsSticky() throws Exception {
+        final ServerSocket other = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        other.setSoTimeout(5000);
+        try {
+            final SocketAppender appender = multiHost(other, "Sticky");
+            final Socket first = server.accept();
+            final Socket second = other.accept();
+            for (int i = 0; i < 10; i++) {
+                appender.doAppend(event("event " + i));
+            }
+            appender.close();
+            final int lines = countLines(first);
+            assertEquals(10, lines + countLines(second));
+            assertTrue(lines == 0 || lines == 10);
+            first.close();
+            second.close();
+        } finally {
+            other.close();
+        }
+    }
+
+    public void testRemoteHostsSkipsDisconnectedHost() throws Exception {
+        final ServerSocket other = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        other.close();
+        final SocketAppender appender = multiHost(other, "RoundRobin");
+        final Socket socket = server.accept();
+        try {
+            for (int i = 0; i < 10; i++) {
+                appender.doAppend(event("event " + i));
+            }
+            appender.close();
+            assertEquals(10, countLines(socket));
+            assertEquals(0, appender.getDroppedEvents());
+        } finally {
+            socket.close();
+        }
+    }
+
+    public void testRemoteHostsAppendWithoutParentLock() throws Exception {
+        final ServerSocket other = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        other.setSoTimeout(5000);
+        try {
+            final SocketAppender appender = multiHost(other, "RoundRobin");
+            final Socket first = server.accept();
+            final Socket second = other.accept();
+            final Thread logger = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 10; i++) {
+                        appender.doAppend(event("event " + i));
+                    }
+                }
+            };
+            synchronized (appender) {
+                logger.start();
+                logger.join(5000);
+                assertFalse(logger.isAlive());
+            }
+            appender.close();
+            assertEquals(10, countLines(first) + countLines(second));
+            first.close();
+            second.close();
+        } finally {
+            other.close();
+        }
+    }
+
+    public void testResolveKeepsListedAddress() throws Exception {
+        final SocketAppender appender = appender("line");
+        appender.activateOptions();
+        final Socket socket = server.accept();
+        try {
+            final InetAddress address = appender.address;
+            appender.resolve();
+            assertSame(address, appender.address);
+            appender.doAppend(event("kept"));
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            assertTrue(reader.readLine().contains("\"message\":\"kept\""));
+            appender.close();
+        } finally {
+            socket.close();
+        }
+    }
+
+    public void testReconnectsWhenAddressChanges() throws Exception {
+        final SocketAppender appender = appender("line");
+        appender.setMinReconnectionDelay(10);
+        appender.setReconnectionDelay(100);
+        appender.activateOptions();
+        final Socket first = server.accept();
+        appender.address = InetAddress.getByName("127.0.0.2");
+        appender.resolve();
+        assertEquals(InetAddress.getByName("127.0.0.1"), appender.address);
+        appender.doAppend(event("moved"));
+        assertEquals(0, countLines(first));
+        first.close();
+        final Socket second = server.accept();
+        try {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(second.getInputStream(), "UTF-8"));
+            assertTrue(reader.readLine().contains("\"message\":\"moved\""));
+            appender.close();
+        } finally {
+            second.close();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.apache.log4j.elasticsearch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for SocketBacklog.
+ */
+public class SocketBacklogTest extends TestCase {
+    private File directory;
+
+    protected void setUp() throws IOException {
+        directory = File.createTempFile("backlog", "");
+        directory.delete();
+    }
+
+    protected void tearDown() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static void add(final SocketBacklog backlog, final String event) throws IOException {
+        final byte[] data = event.getBytes("UTF-8");
+        backlog.add(data, 0, data.length);
+    }
+
+    private static class Collector implements SocketBacklog.Sink {
+        final List<String> events = new ArrayList<String>();
+        int failAfter = Integer.MAX_VALUE;
+
+        public void write(final byte[] data, final int offset, final int length) throws IOException {
+            if (events.size() == failAfter) {
+                throw new IOException("broken");
+            }
+            events.add(new String(data, offset, length, "UTF-8"));
+        }
+    }
+
+    public void testOldestEventsDroppedWhenFull() throws IOException {
+        final SocketBacklog backlog = new SocketBacklog(2, null);
+        add(backlog, "a");
+        add(backlog, "b");
+        add(backlog, "c");
+        assertEquals(1, backlog.getDropped());
+        final Collector sink = new Collector();
+        assertEquals(2, backlog.replay(sink));
+        assertEquals(2, sink.events.size());
+        assertEquals("b", sink.events.get(0));
+        assertEquals("c", sink.events.get(1));
+        assertTrue(backlog.isEmpty());
+    }
+
+    public void testFailedReplayKeepsUnsentEvents() throws IOException {
+        final SocketBacklog backlog = new SocketBacklog(4, null);
+        add(backlog, "a");
+        add(backlog, "b");
+        add(backlog, "c");
+        final Collector sink = new Collector();
+        sink.failAfter = 1;
+        try {
+            backlog.replay(sink);
+            fail();
+        } catch (final IOException e) {
+            // expected
+        }
+        assertEquals(2, backlog.size());
+        sink.failAfter = Integer.MAX_VALUE;
+        backlog.replay(sink);
+        assertEquals(3, sink.events.size());
+        assertEquals("c", sink.events.get(2));
+    }
+
+    public void testSpillsToJournalInOrder() throws IOException {
+        final SocketBacklog backlog = new SocketBacklog(2, new BulkJournal(directory, 1024, 4));
+        for (int i = 0; i < 6; i++) {
+            add(backlog, "event " + i);
+        }
+        assertEquals(0, backlog.getDropped());
+        final Collector sink = new Collector();
+        assertEquals(6, backlog.replay(sink));
+        for (int i = 0; i < 6; i++) {
+            assertEquals("event " + i, sink.events.get(i));
+        }
+        assertTrue(backlog.isEmpty());
+        backlog.close();
+    }
+
+    public void testJournalSurvivesRestart() throws IOException {
+        SocketBacklog backlog = new SocketBacklog(1, new BulkJournal(directory, 1024, 4));
+        add(backlog, "in memory");
+        add(backlog, "on disk");
+        backlog.close();
+        backlog = new SocketBacklog(1, new BulkJournal(directory, 1024, 4));
+        assertFalse(backlog.isEmpty());
+        final Collector sink = new Collector();
+        assertEquals(1, backlog.replay(sink));
+        assertEquals("on disk", sink.events.get(0));
+        backlog.close();
+    }
+}
@@ -0,0 +1,73 @@
+package org.apache.log4j.elasticsearch;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for ThrowableEncoder.
+ */
+public class ThrowableEncoderTest extends TestCase {
+
+    private static Throwable nested() {
+        try {
+            try {
+                throw new IllegalStateException("inner");
+            } catch (final IllegalStateException e) {
+                throw new RuntimeException("outer", e);
+            }
+        } catch (final RuntimeException e) {
+            return e;
+        }
+    }
+
+    private static String encode(final ThrowableEncoder encoder, final Throwable throwable) {
+        final StringBuilder out = new StringBuilder();
+        encoder.encode(throwable, out);
+        return out.toString();
+    }
+
+    public void testSameAsPrintStackTrace() {
+        final Throwable throwable = nested();
+        final StringWriter expected = new StringWriter();
+        throwable.printStackTrace(new PrintWriter(expected));
+        assertEquals(expected.toString().trim().replace(System.getProperty("line.separator"), "\n"),
+                encode(new ThrowableEncoder(0, 0, 0), throwable));
+    }
+
+    public void testMaxDepthAndLength() {
+        final Throwable throwable = nested();
+        final String shallow = encode(new ThrowableEncoder(1, 0, 0), throwable);
+        final String[] lines = shallow.split("\n");
+        assertEquals("java.lang.RuntimeException: outer", lines[0]);
+        assertTrue(lines[1].startsWith("\tat "));
+        assertEquals("\t... " + (throwable.getStackTrace().length - 1) + " more", lines[2]);
+        assertEquals("Caused by: java.lang.IllegalStateException: inner", lines[3]);
+
+        final String cut = encode(new ThrowableEncoder(0, 50, 0), throwable);
+        assertEquals(50 + "\n\t... truncated".length(), cut.length());
+        assertTrue(cut.endsWith("\n\t... truncated"));
+    }
+
+    public void testFingerprintIgnoresMessages() {
+        final ThrowableEncoder encoder = new ThrowableEncoder(0, 0, 0);
+        final Throwable first = new IllegalStateException("first");
+        final Throwable second = new IllegalStateException("second");
+        second.setStackTrace(first.getStackTrace());
+        assertEquals(encoder.fingerprint(first), encoder.fingerprint(second));
+        final Throwable other = new IllegalArgumentException("first");
+        other.setStackTrace(first.getStackTrace());
+        assertFalse(encoder.fingerprint(first) == encoder.fingerprint(other));
+        assertEquals(16, ThrowableEncoder.toHex(encoder.fingerprint(first)).length());
+    }
+
+    public void testDedupWindow() {
+        final ThrowableEncoder encoder = new ThrowableEncoder(0, 0, 1000);
+        assertTrue(encoder.shouldSend(42, 0));
+        assertFalse(encoder.shouldSend(42, 999));
+        assertTrue(encoder.shouldSend(7, 999));
+        assertTrue(encoder.shouldSend(42, 1000));
+        assertFalse(encoder.shouldSend(42, 1500));
+    }
+}
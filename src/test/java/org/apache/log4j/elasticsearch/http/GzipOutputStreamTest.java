@@ -0,0 +1,41 @@
+package org.apache.log4j.elasticsearch.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for GzipOutputStream.
+ */
+public class GzipOutputStreamTest extends TestCase {
+    private static String gunzip(final byte[] data) throws IOException {
+        final GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toString("UTF-8");
+    }
+
+    public void testReusedForSeveralBodies() throws IOException {
+        final GzipOutputStream gzip = new GzipOutputStream(6);
+        for (int i = 0; i < 3; i++) {
+            final StringBuilder text = new StringBuilder();
+            for (int j = 0; j < 1000 * (i + 1); j++) {
+                text.append("{\"index\":{}}\n{\"message\":\"line ").append(j).append("\"}\n");
+            }
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            gzip.reset(out);
+            gzip.write(text.toString().getBytes("UTF-8"));
+            gzip.finish();
+            assertTrue(out.size() < text.length() / 4);
+            assertEquals(text.toString(), gunzip(out.toByteArray()));
+        }
+        gzip.close();
+    }
+}
@@ -0,0 +1,20 @@
+package org.apache.log4j.elasticsearch.http;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for HostnameChecker.
+ */
+public class HostnameCheckerTest extends TestCase {
+    public void testExactName() {
+        assertTrue(HostnameChecker.matches("es1.example.com", "ES1.example.com"));
+        assertFalse(HostnameChecker.matches("es2.example.com", "es1.example.com"));
+    }
+
+    public void testWildcardMatchesOneLabel() {
+        assertTrue(HostnameChecker.matches("es1.example.com", "*.example.com"));
+        assertFalse(HostnameChecker.matches("a.es1.example.com", "*.example.com"));
+        assertFalse(HostnameChecker.matches("example.com", "*.example.com"));
+        assertFalse(HostnameChecker.matches("es1.com", "*.com"));
+    }
+}
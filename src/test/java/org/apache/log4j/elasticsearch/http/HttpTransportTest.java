@@ -0,0 +1,236 @@
+package org.apache.log4j.elasticsearch.http;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for HttpTransport against a minimal keep-alive server.
+ */
+public class HttpTransportTest extends TestCase {
+    private ServerSocket server;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final List<String> bodies = Collections.synchronizedList(new ArrayList<String>());
+    private volatile String response = "HTTP/1.1 201 Created\r\nContent-Length: 2\r\n\r\n{}";
+
+    protected void setUp() throws IOException {
+        listen(new ServerSocket(0));
+    }
+
+    private void listen(final ServerSocket socket) {
+        server = socket;
+        final Thread acceptor = new Thread() {
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = server.accept();
+                        connections.incrementAndGet();
+                        new Thread() {
+                            public void run() {
+                                serve(socket);
+                            }
+                        }.start();
+                    }
+                } catch (IOException e) {
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    protected void tearDown() throws IOException {
+        server.close();
+    }
+
+    private static String readLine(final InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                return null;
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private void serve(final Socket socket) {
+        try {
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            String requestLine;
+            while ((requestLine = readLine(in)) != null) {
+                int length = 0;
+                boolean chunked = false;
+                String header;
+                while ((header = readLine(in)).length() > 0) {
+                    if (header.toLowerCase().startsWith("content-length:")) {
+                        length = Integer.parseInt(header.substring(15).trim());
+                    } else if (header.equalsIgnoreCase("transfer-encoding: chunked")) {
+                        chunked = true;
+                    }
+                }
+                final ByteArrayOutputStream body = new ByteArrayOutputStream();
+                if (chunked) {
+                    while ((length = Integer.parseInt(readLine(in), 16)) > 0) {
+                        for (int i = 0; i < length; i++) {
+                            body.write(in.read());
+                        }
+                        readLine(in);
+                    }
+                    readLine(in);
+                } else {
+                    for (int i = 0; i < length; i++) {
+                        body.write(in.read());
+                    }
+                }
+                bodies.add(requestLine + " " + body.toString("UTF-8"));
+                out.write(response.getBytes("UTF-8"));
+                out.flush();
+            }
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private HttpTransport transport() {
+        final HttpTransport transport = new HttpTransport("http", "localhost", server.getLocalPort());
+        transport.start("user", "secret");
+        return transport;
+    }
+
+    /**
+     * @return a context with the self-signed certificate of localhost, as key
+     *         and as the only trusted certificate
+     */
+    private static SSLContext localhostContext() throws Exception {
+        final KeyStore keyStore = KeyStore.getInstance("JKS");
+        final InputStream in = HttpTransportTest.class.getResourceAsStream("/localhost.jks");
+        try {
+            keyStore.load(in, "changeit".toCharArray());
+        } finally {
+            in.close();
+        }
+        final KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(keyStore, "changeit".toCharArray());
+        final TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(keyStore);
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+        return context;
+    }
+
+    private HttpTransport httpsTransport(final String host) throws Exception {
+        final SSLContext context = localhostContext();
+        server.close();
+        listen(context.getServerSocketFactory().createServerSocket(0));
+        final HttpTransport transport = new HttpTransport("https", host, server.getLocalPort());
+        transport.setSSLSocketFactory(context.getSocketFactory());
+        transport.start("user", "secret");
+        return transport;
+    }
+
+    public void testHttps() throws Exception {
+        final HttpTransport transport = httpsTransport("localhost");
+        final byte[] body = "{}".getBytes("UTF-8");
+        final HttpResponse result = transport.execute("POST", "/index/_doc", "application/json", body, 0, body.length);
+        assertEquals(201, result.getStatus());
+        assertEquals("{}", result.readBody());
+        result.close();
+        transport.close();
+    }
+
+    public void testHttpsRejectsCertificateOfAnotherHost() throws Exception {
+        final HttpTransport transport = httpsTransport("127.0.0.1");
+        try {
+            transport.execute("GET", "/");
+            fail("certificate of localhost accepted for 127.0.0.1");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            transport.close();
+        }
+    }
+
+    public void testConnectionIsReused() throws IOException {
+        final HttpTransport transport = transport();
+        for (int i = 0; i < 3; i++) {
+            final byte[] body = ("{\"n\":" + i + "}").getBytes("UTF-8");
+            final HttpResponse result = transport.execute("POST", "/index/_doc", "application/json", body, 0,
+                    body.length);
+            assertEquals(201, result.getStatus());
+            assertEquals("{}", result.readBody());
+            result.close();
+        }
+        transport.close();
+        assertEquals(1, connections.get());
+        assertEquals("[POST /index/_doc HTTP/1.1 {\"n\":0}, POST /index/_doc HTTP/1.1 {\"n\":1}, "
+                + "POST /index/_doc HTTP/1.1 {\"n\":2}]", bodies.toString());
+    }
+
+    public void testChunkedRequest() throws IOException {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            text.append(i).append(',');
+        }
+        final byte[] data = text.toString().getBytes("UTF-8");
+        final HttpTransport transport = transport();
+        for (int i = 0; i < 2; i++) {
+            final HttpResponse result = transport.execute("POST", "/chunked", new RequestBody("text/plain") {
+                public long getContentLength() {
+                    return -1;
+                }
+
+                public void writeTo(final OutputStream out) throws IOException {
+                    out.write(data, 0, 10);
+                    out.write(data, 10, data.length - 10);
+                }
+            });
+            assertEquals(201, result.getStatus());
+            result.close();
+        }
+        transport.close();
+        assertEquals(1, connections.get());
+        assertEquals("POST /chunked HTTP/1.1 " + text, bodies.get(1));
+    }
+
+    public void testChunkedResponse() throws IOException {
+        response = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n6\r\n world\r\n0\r\n\r\n";
+        final HttpTransport transport = transport();
+        for (int i = 0; i < 2; i++) {
+            final HttpResponse result = transport.execute("GET", "/", null, null, 0, 0);
+            assertEquals(200, result.getStatus());
+            assertEquals("hello world", result.readBody());
+            result.close();
+        }
+        transport.close();
+        assertEquals(1, connections.get());
+    }
+
+    public void testConnectionClosedByServerIsReplaced() throws IOException {
+        response = "HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 0\r\n\r\n";
+        final HttpTransport transport = transport();
+        assertEquals(200, transport.execute("GET", "/"));
+        assertEquals(200, transport.execute("GET", "/"));
+        transport.close();
+        assertEquals(2, connections.get());
+    }
+}
@@ -0,0 +1,79 @@
+package org.apache.log4j.elasticsearch.http;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for NodePool.
+ */
+public class NodePoolTest extends TestCase {
+    private static NodePool pool() {
+        return new NodePool(new HttpTransport.Factory() {
+            public HttpTransport create(final String host, final int port) {
+                return new HttpTransport("http", host, port);
+            }
+        });
+    }
+
+    public void testHostsParsing() {
+        final NodePool pool = pool();
+        pool.addNodes("es1, es2:9201,[::1]:9202,[::2],es1:9200", 9200);
+        final List<NodePool.Node> nodes = pool.getNodes();
+        assertEquals("[es1:9200, es2:9201, ::1:9202, ::2:9200]", nodes.toString());
+    }
+
+    public void testRoundRobin() {
+        final NodePool pool = pool();
+        pool.addNodes("a,b,c", 9200);
+        final StringBuilder order = new StringBuilder();
+        for (int i = 0; i < 6; i++) {
+            order.append(pool.select().getTransport().getHost());
+        }
+        assertEquals("abcabc", order.toString());
+    }
+
+    public void testUnreachableNodeFailsOver() throws Exception {
+        final NodePool pool = pool();
+        pool.addNodes("127.0.0.1:1,127.0.0.1:2", 9200);
+        for (final NodePool.Node node : pool.getNodes()) {
+            node.getTransport().setConnectTimeout(500);
+            node.getTransport().start(null, null);
+        }
+        try {
+            pool.execute("GET", "/", null, null, 0, 0);
+            fail("no node is reachable");
+        } catch (java.io.IOException e) {
+        }
+        for (final NodePool.Node node : pool.getNodes()) {
+            assertFalse(node.isAlive());
+        }
+        // every node dead, still returns one to try
+        assertNotNull(pool.select());
+        pool.close();
+    }
+
+    public void testReadTimeoutKeepsNodeAlive() throws Exception {
+        // accepts connections into its backlog but never answers
+        final ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        final NodePool pool = pool();
+        try {
+            pool.addNodes("127.0.0.1:" + server.getLocalPort(), 9200);
+            final NodePool.Node node = pool.getNodes().get(0);
+            node.getTransport().setReadTimeout(200);
+            node.getTransport().start(null, null);
+            try {
+                pool.execute("GET", "/", null, null, 0, 0);
+                fail("the server never answers");
+            } catch (SocketTimeoutException e) {
+            }
+            assertTrue(node.isAlive());
+        } finally {
+            pool.close();
+            server.close();
+        }
+    }
+}